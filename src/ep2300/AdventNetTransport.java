@@ -0,0 +1,75 @@
+package ep2300;
+
+import com.adventnet.snmp.snmp2.SnmpClient;
+import com.adventnet.snmp.snmp2.SnmpException;
+import com.adventnet.snmp.snmp2.SnmpPDU;
+import com.adventnet.snmp.snmp2.SnmpSession;
+
+/**
+ * Sends the requests over UDP with the AdventNet SNMP API, using the
+ * sessions in SNMPConnection.
+ */
+public class AdventNetTransport implements SNMPTransport
+{
+    @Override
+    public boolean send(String address, SnmpClient client, SnmpPDU pdu,
+            int timeout)
+    {
+        SnmpSession session = null;
+        int id = -1;
+        try {
+            SNMPConnection.Result res = SNMPConnection.createSession(address,
+                    client); // Begin here
+            session = res.getSession();
+            id = res.getClientId();
+        }
+        catch (SnmpException e) {
+            System.err.println("Could not start session to ip " + address
+                    + ": " + e.getMessage());
+            // e.printStackTrace();
+        }
+        if (session != null) { // Should always happen
+            pdu.setClientID(id);
+            pdu.setTimeout(timeout);
+            pdu.setRetries(0);
+            try {
+                session.send(pdu);
+                return true;
+            }
+            catch (SnmpException e) {
+                e.printStackTrace();
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void reportSuccess(String address)
+    {
+        SNMPConnection.reportSuccess(address);
+    }
+
+    @Override
+    public void reportFailure(String address)
+    {
+        SNMPConnection.reportFailure(address);
+    }
+
+    @Override
+    public void reportNotInTimeWindow(String address)
+    {
+        SNMPConnection.reportNotInTimeWindow(address);
+    }
+
+    @Override
+    public void evictIdle(long maxIdle)
+    {
+        SNMPConnection.evictIdle(maxIdle);
+    }
+
+    @Override
+    public void close()
+    {
+        SNMPConnection.close();
+    }
+}
@@ -20,9 +20,27 @@ public final class ArrayResponse<T extends SnmpVar> implements Iterable<T>
 {
 
     private final List<T> elements;
-    private final SnmpOID lastOID;
+    private final List<SnmpOID> oids;
+    private final int[] lastOID;
     private final boolean reachedEnd;
 
+    /**
+     * Receives the elements of an array in a response one by one, so that
+     * they don't have to be collected into lists.
+     */
+    public interface Visitor
+    {
+        /**
+         * Called for each element of the array, in the order of the
+         * response.
+         *
+         * @param oid The subidentifiers of the OID of the element. They
+         *            must not be changed.
+         * @param value The value of the element
+         */
+        void visit(int[] oid, SnmpVar value);
+    }
+
     /**
      * Parses a response of a getbulk operation on an array. The response
      * may contain nodes after the array, which are not added. This class
@@ -50,20 +68,23 @@ public final class ArrayResponse<T extends SnmpVar> implements Iterable<T>
     public ArrayResponse(SnmpPDU pdu, SnmpOID arrayPrefix, int numAskedFor)
     {
         boolean reachedEnd = false;
-        SnmpOID lastOID = null;
+        int[] lastOID = null;
         List<T> elements = new ArrayList<T>();
+        List<SnmpOID> oids = new ArrayList<SnmpOID>();
 
+        int[] prefix = arrayPrefix.toIntArray();
         Vector bindings = pdu.getVariableBindings();
         for (int i = 0; i < bindings.size(); ++i) {
             SnmpVarBind vb = (SnmpVarBind) bindings.get(i);
             SnmpOID oid = vb.getObjectID();
+            int[] subIds = oid.toIntArray();
 
-            if (SnmpOID.getLexicographicallyFirstOID(oid, arrayPrefix) == oid) {
+            if (OIDPrefix.compare(subIds, prefix) <= 0) {
                 // This OID comes before the array, so skip it!
                 continue;
             }
 
-            if (!SNMP.samePrefix(oid, arrayPrefix)) {
+            if (!OIDPrefix.startsWith(subIds, prefix)) {
                 // Reached something that's not in the array.
                 // This also means that we reached the end.
                 reachedEnd = true;
@@ -72,7 +93,8 @@ public final class ArrayResponse<T extends SnmpVar> implements Iterable<T>
 
             SnmpVar var = ((SnmpVarBind) bindings.get(i)).getVariable();
             elements.add((T) var);
-            lastOID = oid;
+            oids.add(oid);
+            lastOID = subIds;
         }
 
         // If we have less than the asked for elements, then we have also
@@ -82,6 +104,77 @@ public final class ArrayResponse<T extends SnmpVar> implements Iterable<T>
         }
 
         this.elements = elements;
+        this.oids = oids;
+        this.lastOID = lastOID;
+        this.reachedEnd = reachedEnd;
+    }
+
+    /**
+     * Parses one column of a response of a getbulk operation on several
+     * arrays at once (without non-repeaters). In such a response, the
+     * variable bindings of the columns are interleaved, so every
+     * numColumns:th binding, starting at column, belongs to this array.
+     * 
+     * For instance, with this request PDU...
+     * 
+     * SnmpPDU pdu = new SnmpPDU();
+     * pdu.setCommand(SnmpAPI.GETBULK_REQ_MSG);
+     * pdu.setMaxRepetitions(30);
+     * pdu.addNull(new SnmpOID(".1.3.6.1.2.1.2.2.1.10"));
+     * pdu.addNull(new SnmpOID(".1.3.6.1.2.1.2.2.1.11"));
+     * 
+     * ...the packets array would be parsed with these parameters:
+     * 
+     * arrayPrefix = ".1.3.6.1.2.1.2.2.1.11"
+     * column = 1
+     * numColumns = 2
+     * 
+     * If the request has non-repeaters, their bindings come first, so their
+     * number should be added to column.
+     * 
+     * Since agents may return fewer repetitions than asked for if the
+     * response would be too big, the end is only considered to be reached
+     * when an OID outside of the array is returned.
+     * 
+     * @param pdu The SnmpPDU to parse
+     * @param arrayPrefix The prefix of the OID of this column
+     * @param column The index of the column in the request
+     * @param numColumns The number of columns in the request
+     */
+    @SuppressWarnings("unchecked")
+    public ArrayResponse(SnmpPDU pdu, SnmpOID arrayPrefix, int column,
+            int numColumns)
+    {
+        boolean reachedEnd = false;
+        int[] lastOID = null;
+        List<T> elements = new ArrayList<T>();
+        List<SnmpOID> oids = new ArrayList<SnmpOID>();
+
+        int[] prefix = arrayPrefix.toIntArray();
+        Vector bindings = pdu.getVariableBindings();
+        for (int i = column; i < bindings.size(); i += numColumns) {
+            SnmpVarBind vb = (SnmpVarBind) bindings.get(i);
+            SnmpOID oid = vb.getObjectID();
+            int[] subIds = oid.toIntArray();
+
+            if (!OIDPrefix.startsWith(subIds, prefix)) {
+                // Walked past the end of the array
+                reachedEnd = true;
+                break;
+            }
+
+            elements.add((T) vb.getVariable());
+            oids.add(oid);
+            lastOID = subIds;
+        }
+
+        if (lastOID == null && !reachedEnd) {
+            // Nothing was returned for this column, so we can't continue
+            reachedEnd = true;
+        }
+
+        this.elements = elements;
+        this.oids = oids;
         this.lastOID = lastOID;
         this.reachedEnd = reachedEnd;
     }
@@ -107,9 +200,7 @@ public final class ArrayResponse<T extends SnmpVar> implements Iterable<T>
             return null; // no remaining elements
         }
 
-        // This is not a valid OID of an element, but it comes before the
-        // next element, and after the last element in this response.
-        return new SnmpOID(lastOID.toString() + ".1");
+        return OIDPrefix.firstChild(lastOID);
     }
 
     /**
@@ -122,6 +213,17 @@ public final class ArrayResponse<T extends SnmpVar> implements Iterable<T>
         return elements;
     }
 
+    /**
+     * Get the OIDs of all relevant elements, in the same order as the
+     * elements
+     * 
+     * @return A list of OIDs
+     */
+    public List<SnmpOID> getOIDs()
+    {
+        return oids;
+    }
+
     @Override
     public Iterator<T> iterator()
     {
@@ -138,10 +240,54 @@ public final class ArrayResponse<T extends SnmpVar> implements Iterable<T>
     public static long sum(SnmpPDU pdu, SnmpOID arrayPrefix)
     {
         long sum = 0;
-        for (SnmpUnsignedInt value : new ArrayResponse<SnmpUnsignedInt>(pdu,
-                arrayPrefix, 0)) {
-            sum += value.longValue();
+        int[] prefix = arrayPrefix.toIntArray();
+        Vector<?> bindings = pdu.getVariableBindings();
+        for (int i = 0; i < bindings.size(); ++i) {
+            SnmpVarBind vb = (SnmpVarBind) bindings.get(i);
+            int[] oid = vb.getObjectID().toIntArray();
+            if (OIDPrefix.compare(oid, prefix) <= 0) {
+                continue;
+            }
+            if (!OIDPrefix.startsWith(oid, prefix)) {
+                break;
+            }
+            sum += ((SnmpUnsignedInt) vb.getVariable()).longValue();
         }
         return sum;
     }
+
+    /**
+     * Passes the elements of one column of a getbulk response to a visitor,
+     * like the column constructor but without collecting them. Nothing is
+     * allocated for each element, other than what SnmpOID.toIntArray()
+     * may allocate.
+     * 
+     * @param pdu The SnmpPDU to parse
+     * @param arrayPrefix The prefix of the OID of this column
+     * @param column The index of the column in the request
+     * @param numColumns The number of columns in the request
+     * @param visitor Receives the elements
+     * @return The OID to start the next request from, or null if the end of
+     *         the array was reached
+     */
+    public static SnmpOID visit(SnmpPDU pdu, OIDPrefix arrayPrefix,
+            int column, int numColumns, Visitor visitor)
+    {
+        int[] lastOID = null;
+        Vector<?> bindings = pdu.getVariableBindings();
+        for (int i = column; i < bindings.size(); i += numColumns) {
+            SnmpVarBind vb = (SnmpVarBind) bindings.get(i);
+            int[] oid = vb.getObjectID().toIntArray();
+            if (!arrayPrefix.matches(oid)) {
+                // Walked past the end of the array
+                return null;
+            }
+
+            visitor.visit(oid, vb.getVariable());
+            lastOID = oid;
+        }
+
+        // Nothing was returned for this column, so we can't continue
+        return lastOID != null ? OIDPrefix.firstChild(lastOID) : null;
+    }
 }
@@ -0,0 +1,491 @@
+package ep2300;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import com.adventnet.snmp.snmp2.SnmpCounter;
+import com.adventnet.snmp.snmp2.SnmpCounter64;
+import com.adventnet.snmp.snmp2.SnmpGauge;
+import com.adventnet.snmp.snmp2.SnmpInt;
+import com.adventnet.snmp.snmp2.SnmpIpAddress;
+import com.adventnet.snmp.snmp2.SnmpNull;
+import com.adventnet.snmp.snmp2.SnmpOID;
+import com.adventnet.snmp.snmp2.SnmpString;
+import com.adventnet.snmp.snmp2.SnmpTimeticks;
+import com.adventnet.snmp.snmp2.SnmpVar;
+
+/**
+ * Encodes and decodes the BER (Basic Encoding Rules) used by SNMP messages,
+ * directly in ByteBuffers. Only the types used by SNMP are supported.
+ */
+public final class BER
+{
+    /** Universal types */
+    public static final byte INTEGER = 0x02;
+    public static final byte OCTET_STRING = 0x04;
+    public static final byte NULL = 0x05;
+    public static final byte OID = 0x06;
+    public static final byte SEQUENCE = 0x30;
+
+    /** Application types of SNMPv2 */
+    public static final byte IP_ADDRESS = 0x40;
+    public static final byte COUNTER32 = 0x41;
+    public static final byte GAUGE32 = 0x42;
+    public static final byte TIMETICKS = 0x43;
+    public static final byte OPAQUE = 0x44;
+    public static final byte COUNTER64 = 0x46;
+
+    /** Exceptions in variable bindings of responses */
+    public static final byte NO_SUCH_OBJECT = (byte) 0x80;
+    public static final byte NO_SUCH_INSTANCE = (byte) 0x81;
+    public static final byte END_OF_MIB_VIEW = (byte) 0x82;
+
+    private BER()
+    {
+        // Not instantiable
+    }
+
+    /**
+     * Writes BER backwards, from the end of a buffer towards the start. The
+     * contents of a constructed type are written before its header, so the
+     * lengths are always known and nothing has to be moved afterwards.
+     *
+     * To write a sequence, get a mark() first, then write the contents in
+     * reverse order, and finish with writeHeader(SEQUENCE, mark).
+     */
+    public static final class Writer
+    {
+        private final ByteBuffer buffer;
+        private int pos;
+
+        /**
+         * Create a writer that writes backwards from the limit of the
+         * buffer.
+         *
+         * @param buffer The buffer to write in
+         */
+        public Writer(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+            this.pos = buffer.limit();
+        }
+
+        /**
+         * Get the current position, which is where the last written byte
+         * starts.
+         *
+         * @return The position in the buffer
+         */
+        public int position()
+        {
+            return pos;
+        }
+
+        /**
+         * Get a mark for the end of a constructed type
+         *
+         * @return The mark
+         */
+        public int mark()
+        {
+            return pos;
+        }
+
+        /**
+         * Sets the position and limit of the buffer to the written data.
+         *
+         * @return The buffer
+         */
+        public ByteBuffer finish()
+        {
+            buffer.position(pos);
+            return buffer;
+        }
+
+        private void put(int b)
+        {
+            if (pos == 0) {
+                throw new BufferOverflowException();
+            }
+            buffer.put(--pos, (byte) b);
+        }
+
+        private void writeLength(int length)
+        {
+            if (length < 0x80) {
+                put(length);
+                return;
+            }
+
+            int bytes = 0;
+            while (length != 0) {
+                put(length);
+                length >>>= 8;
+                bytes++;
+            }
+            put(0x80 | bytes);
+        }
+
+        /**
+         * Writes the header of a type, whose contents have been written
+         * since the mark.
+         *
+         * @param type The type
+         * @param mark The mark from before the contents were written
+         */
+        public void writeHeader(byte type, int mark)
+        {
+            writeLength(mark - pos);
+            put(type);
+        }
+
+        /**
+         * Writes an integer. This is also used for the unsigned types, such
+         * as Counter32, which are encoded the same way.
+         *
+         * @param type The type
+         * @param value The value
+         */
+        public void writeInteger(byte type, long value)
+        {
+            int mark = mark();
+            do {
+                put((int) value);
+                value >>= 8;
+                // Stop when the rest is only the sign extension of the
+                // byte just written.
+            } while (!(value == 0 && (buffer.get(pos) & 0x80) == 0)
+                    && !(value == -1 && (buffer.get(pos) & 0x80) != 0));
+            writeHeader(type, mark);
+        }
+
+        /**
+         * Writes an INTEGER
+         *
+         * @param value The value
+         */
+        public void writeInteger(long value)
+        {
+            writeInteger(INTEGER, value);
+        }
+
+        /**
+         * Writes a string of bytes
+         *
+         * @param type The type
+         * @param bytes The bytes
+         */
+        public void writeOctets(byte type, byte[] bytes)
+        {
+            if (pos < bytes.length) {
+                throw new BufferOverflowException();
+            }
+            int mark = mark();
+            pos -= bytes.length;
+            for (int i = 0; i < bytes.length; i++) {
+                buffer.put(pos + i, bytes[i]);
+            }
+            writeHeader(type, mark);
+        }
+
+        /**
+         * Writes an OCTET STRING
+         *
+         * @param bytes The bytes
+         */
+        public void writeOctets(byte[] bytes)
+        {
+            writeOctets(OCTET_STRING, bytes);
+        }
+
+        /**
+         * Writes a NULL
+         */
+        public void writeNull()
+        {
+            put(0);
+            put(NULL);
+        }
+
+        /**
+         * Writes an OBJECT IDENTIFIER
+         *
+         * @param subIds The subidentifiers of the OID
+         */
+        public void writeOID(int[] subIds)
+        {
+            int mark = mark();
+            for (int i = subIds.length - 1; i >= 2; i--) {
+                writeSubId(subIds[i] & 0xffffffffL);
+            }
+            // The first two subidentifiers are encoded together
+            long first = (subIds.length > 0 ? subIds[0] : 0) * 40L;
+            writeSubId(first + (subIds.length > 1 ? subIds[1] : 0));
+            writeHeader(OID, mark);
+        }
+
+        private void writeSubId(long subId)
+        {
+            put((int) (subId & 0x7f));
+            subId >>>= 7;
+            while (subId != 0) {
+                put((int) (0x80 | (subId & 0x7f)));
+                subId >>>= 7;
+            }
+        }
+    }
+
+    /**
+     * Reads BER from a buffer, starting at the position of the buffer. The
+     * values are read directly from the buffer, without copying it first.
+     */
+    public static final class Reader
+    {
+        private final ByteBuffer buffer;
+        private int pos;
+
+        /**
+         * Create a reader that reads from the position to the limit of the
+         * buffer.
+         *
+         * @param buffer The buffer to read from
+         */
+        public Reader(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+            this.pos = buffer.position();
+        }
+
+        /**
+         * Get the current position in the buffer
+         *
+         * @return The position
+         */
+        public int position()
+        {
+            return pos;
+        }
+
+        /**
+         * Check if there is more to read before the specified end.
+         *
+         * @param end The end position of a constructed type
+         * @return True if there is more to read
+         */
+        public boolean hasMore(int end)
+        {
+            return pos < end;
+        }
+
+        private int get() throws IOException
+        {
+            if (pos >= buffer.limit()) {
+                throw new IOException("Truncated message");
+            }
+            return buffer.get(pos++) & 0xff;
+        }
+
+        /**
+         * Get the type of the next value, without reading it
+         *
+         * @return The type
+         * @throws IOException If the message is truncated
+         */
+        public byte peekType() throws IOException
+        {
+            if (pos >= buffer.limit()) {
+                throw new IOException("Truncated message");
+            }
+            return buffer.get(pos);
+        }
+
+        /**
+         * Reads the header of a value of the expected type.
+         *
+         * @param type The expected type
+         * @return The length of the contents
+         * @throws IOException If the header is not of the expected type, or
+         *             the message is truncated
+         */
+        public int readHeader(byte type) throws IOException
+        {
+            int actual = get();
+            if ((byte) actual != type) {
+                throw new IOException(String.format(
+                        "Expected type %02x, got %02x", type & 0xff, actual));
+            }
+            return readLength();
+        }
+
+        private int readLength() throws IOException
+        {
+            int length = get();
+            if ((length & 0x80) != 0) {
+                int bytes = length & 0x7f;
+                if (bytes > 3) {
+                    throw new IOException("Too long length: " + bytes);
+                }
+                length = 0;
+                for (int i = 0; i < bytes; i++) {
+                    length = (length << 8) | get();
+                }
+            }
+            if (pos + length > buffer.limit()) {
+                throw new IOException("Truncated message");
+            }
+            return length;
+        }
+
+        /**
+         * Skips the contents of a value whose header has been read
+         *
+         * @param length The length of the contents
+         */
+        public void skip(int length)
+        {
+            pos += length;
+        }
+
+        /**
+         * Reads an integer of any type
+         *
+         * @param type The expected type
+         * @return The value
+         * @throws IOException If the value is not of the expected type
+         */
+        public long readInteger(byte type) throws IOException
+        {
+            int length = readHeader(type);
+            if (length < 1 || length > 9) {
+                throw new IOException("Invalid integer length: " + length);
+            }
+
+            long value = (byte) get(); // Sign extended
+            for (int i = 1; i < length; i++) {
+                value = (value << 8) | get();
+            }
+            return value;
+        }
+
+        /**
+         * Reads an INTEGER
+         *
+         * @return The value
+         * @throws IOException If the value is not an INTEGER
+         */
+        public long readInteger() throws IOException
+        {
+            return readInteger(INTEGER);
+        }
+
+        /**
+         * Reads an OCTET STRING
+         *
+         * @return The bytes
+         * @throws IOException If the value is not an OCTET STRING
+         */
+        public byte[] readOctets() throws IOException
+        {
+            return readOctets(OCTET_STRING);
+        }
+
+        private byte[] readOctets(byte type) throws IOException
+        {
+            byte[] bytes = new byte[readHeader(type)];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(pos + i);
+            }
+            pos += bytes.length;
+            return bytes;
+        }
+
+        /**
+         * Reads an OBJECT IDENTIFIER
+         *
+         * @return The subidentifiers
+         * @throws IOException If the value is not an OID
+         */
+        public int[] readOID() throws IOException
+        {
+            int end = readHeader(OID) + pos;
+
+            // Count the subidentifiers first, to allocate the array once
+            int count = 1;
+            for (int i = pos; i < end; i++) {
+                if ((buffer.get(i) & 0x80) == 0) {
+                    count++;
+                }
+            }
+
+            int[] subIds = new int[count];
+            int n = 0;
+            while (pos < end) {
+                long subId = 0;
+                int b;
+                do {
+                    b = get();
+                    subId = (subId << 7) | (b & 0x7f);
+                } while ((b & 0x80) != 0 && pos < end);
+
+                if (n == 0) {
+                    subIds[n++] = (int) Math.min(2, subId / 40);
+                    subIds[n++] = (int) (subId - subIds[0] * 40);
+                }
+                else {
+                    subIds[n++] = (int) subId;
+                }
+            }
+            return n == count ? subIds : new int[0];
+        }
+
+        /**
+         * Reads a value of any type that can be in a variable binding.
+         *
+         * @return The value. NULL and the exceptions are returned as
+         *         SnmpNull.
+         * @throws IOException If the type is unknown or the message is
+         *             malformed
+         */
+        public SnmpVar readVar() throws IOException
+        {
+            byte type = peekType();
+            switch (type) {
+            case INTEGER:
+                return new SnmpInt((int) readInteger());
+            case OCTET_STRING:
+            case OPAQUE:
+                return new SnmpString(readOctets(type));
+            case OID:
+                return new SnmpOID(readOID());
+            case IP_ADDRESS:
+                return new SnmpIpAddress(readOctets(type));
+            case COUNTER32:
+                return new SnmpCounter(readInteger(type) & 0xffffffffL);
+            case GAUGE32:
+                return new SnmpGauge(readInteger(type) & 0xffffffffL);
+            case TIMETICKS:
+                return new SnmpTimeticks(readInteger(type) & 0xffffffffL);
+            case COUNTER64:
+                return new SnmpCounter64(readUnsigned64());
+            case NULL:
+            case NO_SUCH_OBJECT:
+            case NO_SUCH_INSTANCE:
+            case END_OF_MIB_VIEW:
+                skip(readHeader(type));
+                return new SnmpNull();
+            default:
+                throw new IOException(String.format("Unknown type %02x",
+                        type & 0xff));
+            }
+        }
+
+        private BigInteger readUnsigned64() throws IOException
+        {
+            byte[] bytes = readOctets(COUNTER64);
+            // Always positive, even if the first bit is set
+            return new BigInteger(1, bytes);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package ep2300;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.adventnet.snmp.snmp2.SnmpClient;
+import com.adventnet.snmp.snmp2.SnmpPDU;
+import com.adventnet.snmp.snmp2.SnmpSession;
+
+/**
+ * Blocking SNMP requests, for code that runs a thread per router instead of
+ * reacting to callbacks. The requests are sent with SNMP.send(), so they go
+ * through the same send window, timeouts and transport as the callback
+ * based requests.
+ *
+ * The threads should preferably be virtual threads, which are used by
+ * newExecutor() if the JVM has them. Otherwise a pool of ordinary threads
+ * is used, which limits how many routers can wait for a response at once.
+ */
+public final class BlockingSNMP
+{
+    /**
+     * The number of threads in the pool, if there are no virtual threads
+     */
+    private static final int poolSize = Integer.getInteger(
+            "ep2300.pollthreads", 256);
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor(), which is only in newer
+     * JVMs, or null if it's missing or doesn't work. In JDK 19 and 20 the
+     * method exists but throws without --enable-preview, so an executor is
+     * created to find out.
+     */
+    private static final Method virtualFactory = probeVirtualThreads();
+
+    /**
+     * The requests that are waiting for a response, by request ID
+     */
+    private static final Map<Integer, Waiting> waiting = new ConcurrentHashMap<Integer, Waiting>();
+
+    /**
+     * A request that a thread is waiting for. A latch is used instead of
+     * wait(), since that would pin a virtual thread to its carrier.
+     */
+    private final static class Waiting
+    {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile SnmpPDU response = null;
+    }
+
+    /**
+     * Passes the responses to the waiting threads. A single client is used
+     * for all requests, since SNMP keeps a tracker for each client.
+     */
+    private static final SnmpClient client = new SnmpClient() {
+        @Override
+        public boolean authenticate(SnmpPDU pdu, String community)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean callback(SnmpSession session, SnmpPDU pdu,
+                int requestID)
+        {
+            Waiting request = waiting.remove(requestID);
+            if (request != null) {
+                request.response = pdu;
+                request.done.countDown();
+            }
+            // Otherwise the thread has stopped waiting
+            return true;
+        }
+
+        @Override
+        public void debugPrint(String debugOutput)
+        {
+            System.err.println(debugOutput);
+        }
+    };
+
+    private BlockingSNMP()
+    {
+        // Not instantiable
+    }
+
+    /**
+     * Sends a request and waits for the response.
+     *
+     * @param ip The IP of the router
+     * @param pdu The request. A new request ID is set in it.
+     * @param deadline The latest time to wait until, from System.nanoTime()
+     * @return The response, or null if the request timed out or the
+     *         deadline passed
+     * @throws InterruptedException If the thread was interrupted while
+     *             waiting
+     */
+    public static SnmpPDU request(String ip, SnmpPDU pdu, long deadline)
+            throws InterruptedException
+    {
+        int requestID = SNMP.newRequestID();
+        pdu.setRequestID(requestID);
+
+        Waiting request = new Waiting();
+        waiting.put(requestID, request);
+        try {
+            SNMP.send(ip, client, pdu);
+            long left = deadline - System.nanoTime();
+            if (left > 0) {
+                request.done.await(left, TimeUnit.NANOSECONDS);
+            }
+            return request.response;
+        }
+        finally {
+            waiting.remove(requestID);
+        }
+    }
+
+    /**
+     * Creates an executor that runs each task in a new virtual thread, or
+     * in a pool of daemon threads if the JVM has no virtual threads.
+     *
+     * @return A new executor
+     */
+    public static ExecutorService newExecutor()
+    {
+        if (virtualFactory != null) {
+            try {
+                return (ExecutorService) virtualFactory.invoke(null);
+            }
+            catch (Exception e) {
+                // The probe worked, so this should not happen
+            }
+        }
+        return Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "BlockingSNMP");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Check if newExecutor() uses virtual threads
+     *
+     * @return True if the JVM has virtual threads
+     */
+    public static boolean hasVirtualThreads()
+    {
+        return virtualFactory != null;
+    }
+
+    /**
+     * Finds the factory of virtual thread executors, by creating one
+     */
+    private static Method probeVirtualThreads()
+    {
+        try {
+            Method factory = Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor");
+            ((ExecutorService) factory.invoke(null)).shutdown();
+            return factory;
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+}
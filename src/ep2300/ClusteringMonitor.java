@@ -3,7 +3,9 @@ package ep2300;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Monitor what clusters exists in the statistical data inside the network.
@@ -16,7 +18,9 @@ public class ClusteringMonitor
     private final int interval;
     private final int numClusters;
     private final int numTimeSteps;
-    private List<TimeStep> means = new ArrayList<TimeStep>();
+    private final TimeStepHistory means = new TimeStepHistory();
+    private TickScheduler schedule = null;
+    private TimeSeriesStore store = null;
 
     /**
      * Create a new ClusteringMonitor.
@@ -67,6 +71,33 @@ public class ClusteringMonitor
         }
     }
 
+    /**
+     * Loads the TimeSteps of a time range from a store.
+     * 
+     * @param directory The directory of the store
+     * @param from The earliest time to load, in milliseconds since the
+     *            epoch
+     * @param to The time to load until, exclusive
+     * @throws IOException If the store cannot be read
+     */
+    public void loadFromStore(String directory, long from, long to)
+            throws IOException
+    {
+        means.addAll(TimeSeriesStore.readTimeSteps(directory, from, to));
+    }
+
+    /**
+     * Set a store to add the TimeSteps to as they are collected. The store
+     * is synced after each TimeStep, so the polled counters that were
+     * added to it are also on the disk.
+     * 
+     * @param store The store, or null to not store the TimeSteps
+     */
+    public void setStore(TimeSeriesStore store)
+    {
+        this.store = store;
+    }
+
     /**
      * Get a list of TimeSteps with data gathered so far
      * 
@@ -74,24 +105,18 @@ public class ClusteringMonitor
      */
     public List<TimeStep> getMeans()
     {
-        return means;
+        return means.toList();
     }
 
     /**
-     * Returns the difference of the last two elements in a list.
+     * Returns the difference of the last two samples in a series.
      */
-    private long diffLast(List<Long> list)
+    private long diffLast(Series series)
     {
-        int size = list.size();
-        if (size == 0) {
-            return 0;
-        }
-        else if (size == 1) {
-            return list.get(0);
-        }
-        else {
-            return list.get(size - 1) - list.get(size - 2);
+        if (series.size() == 1) {
+            return series.get(0);
         }
+        return series.getLastDelta();
     }
 
     /**
@@ -120,50 +145,83 @@ public class ClusteringMonitor
     {
         means.clear();
         stats.clear();
+        TickScheduler ticks = new TickScheduler(interval);
+        schedule = ticks;
         for (int t = 0; t < numTimeSteps; t++) {
 
-            long startTime = System.currentTimeMillis();
-
-            stats.update();
-            int unfinished = stats.waitUntilFinished(interval);
-            if (unfinished > 0) {
-                System.err.println("unfinished requests: " + unfinished);
+            long tick = ticks.awaitNextTick();
+
+            // Spread the polls over the first part of the interval, so the
+            // last ones have time to be answered. The answers are waited for
+            // until the next tick, not a whole interval from now, so the
+            // time taken by the tick and update() doesn't add up.
+            stats.update(interval * 3 / 4);
+            stats.waitUntilFinished(ticks.nanosUntilNextTick() / 1000000);
+            PollCycle cycle = stats.getCycle();
+            if (cycle.getCompleteness() < 1) {
+                System.err.println(cycle + " (" + stats.getRetryPolicy()
+                        + "; " + SNMP.window + ")");
             }
 
             Collection<Router> routers = stats.getTopology().getTopology()
                     .values();
 
             double octetSum = 0, packetSum = 0;
+            int numRouters = 0;
 
-            // Calculate mean values
+            // Calculate mean values. Only the routers that were polled in
+            // both this and the previous cycle are counted. The changes are
+            // scaled from the actual time between the samples to the
+            // interval.
             for (Router router : routers) {
-                octetSum += diffLast(router.octets);
-                packetSum += diffLast(router.packets);
+                if (router.hasSamplesUntil(cycle.getEpoch())) {
+                    double sampleInterval = router.getLastSampleInterval();
+                    double scale = (sampleInterval > 0 ? interval
+                            / sampleInterval : 1);
+                    octetSum += diffLast(router.octets) * scale;
+                    packetSum += diffLast(router.packets) * scale;
+                    numRouters++;
+                }
             }
 
-            double numRouters = routers.size();
             double packetMean = packetSum / numRouters;
             double octetMean = (octetSum / numRouters) / packetMean;
 
-            if (t > 0) {
-                System.out.println(t + ": " + (int) octetMean + " "
+            // The step is the number of the tick, so that missed ticks show
+            // up as gaps between the steps.
+            if (t > 0 && numRouters > 0) {
+                System.out.println(tick + ": " + (int) octetMean + " "
                         + (int) packetMean);
-                means.add(new TimeStep(t, octetMean, packetMean));
-            }
-
-            long workDuration = System.currentTimeMillis() - startTime;
-
-            long delay = interval - workDuration;
-            if (delay > 0) {
-                try {
-                    Thread.sleep(delay);
-                }
-                catch (InterruptedException e) {
-                    // If we are interrupted, just continue
+                TimeStep step = new TimeStep((int) tick, octetMean,
+                        packetMean);
+                means.add(step);
+                if (store != null) {
+                    try {
+                        store.addTimeStep(System.currentTimeMillis(), step);
+                        store.sync();
+                    }
+                    catch (IOException e) {
+                        System.err.println("Cannot store " + step + ": "
+                                + e.getMessage());
+                    }
                 }
             }
         }
 
+        if (ticks.getMissedTicks() > 0) {
+            System.err.println("Collection schedule: " + ticks);
+        }
+    }
+
+    /**
+     * Get the scheduler of the last data collection, which has statistics
+     * about how well the interval was kept.
+     * 
+     * @return The scheduler, or null if no data has been collected
+     */
+    public TickScheduler getSchedule()
+    {
+        return schedule;
     }
 
     /**
@@ -175,25 +233,23 @@ public class ClusteringMonitor
     {
         // return this.means;/*
 
-        double octetsMin = Double.MAX_VALUE;
-        double packetsMin = Double.MAX_VALUE;
-        double octetsMax = 0, packetsMax = 0;
-        for (TimeStep t : means) {
-            if (t.octets < octetsMin) {
-                octetsMin = t.octets;
-            }
-            if (t.octets > octetsMax) {
-                octetsMax = t.octets;
-            }
-
-            if (t.packets < packetsMin) {
-                packetsMin = t.packets;
-            }
-            if (t.packets > packetsMax) {
-                packetsMax = t.packets;
+        // Two passes over the compressed means: the bounds, and then the
+        // normalized TimeSteps
+        final double[] bounds = { Double.MAX_VALUE, 0, Double.MAX_VALUE, 0 };
+        means.forEach(new TimeStepHistory.Visitor() {
+            @Override
+            public void visit(int step, double octets, double packets)
+            {
+                bounds[0] = Math.min(bounds[0], octets);
+                bounds[1] = Math.max(bounds[1], octets);
+                bounds[2] = Math.min(bounds[2], packets);
+                bounds[3] = Math.max(bounds[3], packets);
             }
-        }
-        List<TimeStep> means = new ArrayList<TimeStep>();
+        });
+        final double octetsMin = bounds[0], octetsMax = bounds[1];
+        final double packetsMin = bounds[2], packetsMax = bounds[3];
+        final List<TimeStep> means = new ArrayList<TimeStep>(this.means
+                .size());
 
         // double min = Math.min(packetsMin, octetsMin);
         // double max = Math.max(packetsMax, octetsMax);
@@ -203,11 +259,15 @@ public class ClusteringMonitor
         // (t.packets - min) / (max - min)));
         // }
 
-        for (TimeStep t : this.means) {
-            means.add(new TimeStep(t.step, (t.octets - octetsMin)
-                    / (octetsMax - octetsMin), (t.packets - packetsMin)
-                    / (packetsMax - packetsMin)));
-        }
+        this.means.forEach(new TimeStepHistory.Visitor() {
+            @Override
+            public void visit(int step, double octets, double packets)
+            {
+                means.add(new TimeStep(step, (octets - octetsMin)
+                        / (octetsMax - octetsMin), (packets - packetsMin)
+                        / (packetsMax - packetsMin)));
+            }
+        });
         return means;
         // */
 
@@ -237,19 +297,46 @@ public class ClusteringMonitor
         System.out.println("  Clusters -- the syntax for samples is: timestep(packetsize,packets)");
         System.out.println();
 
+        // The samples are normalized, so print the original values
+        Map<Integer, TimeStep> original = new HashMap<Integer, TimeStep>();
+        for (TimeStep t : means.toList()) {
+            original.put(t.step, t);
+        }
+
         List<List<TimeStep>> clusters = km.getClusters();
         int ki = 0;
         for (List<TimeStep> cluster : clusters) {
             System.out.println("cluster:  id=" + (ki++) + "");
             System.out.print("  ");
             for (TimeStep sample : cluster) {
-                System.out.print("  " + means.get(sample.step - 1));
+                System.out.print("  " + original.get(sample.step));
             }
             System.out.println();
             System.out.println();
         }
     }
 
+    /**
+     * Open the store given by ep2300.store for writing, if it is set.
+     * 
+     * @return The store, or null if there is none or it cannot be opened
+     */
+    public static TimeSeriesStore openStore()
+    {
+        String directory = System.getProperty("ep2300.store");
+        if (directory == null) {
+            return null;
+        }
+        try {
+            return new TimeSeriesStore(directory);
+        }
+        catch (IOException e) {
+            System.err.println("Not storing the statistics: "
+                    + e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Gather statistics over the network and calculate the clusters.
      * 
@@ -270,17 +357,19 @@ public class ClusteringMonitor
         int numClusters = Integer.parseInt(args[3]);
 
         System.out.println("Discovering the topology...");
-        Topology topo = new Topology(firstRouter);
-        topo.waitUntilFinished();
+        Topology topo = Topology.discover(firstRouter);
 
         System.out.println("Monitoring...");
         LinkStatistics stats = new LinkStatistics(topo);
 
         ClusteringMonitor monitor = new ClusteringMonitor(stats, interval,
                 timespan / interval, numClusters);
+        TimeSeriesStore store = openStore();
+        stats.setStore(store);
+        monitor.setStore(store);
         monitor.run();
 
-        SNMPConnection.close();
+        SNMP.close();
     }
 
 }
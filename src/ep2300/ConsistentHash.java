@@ -0,0 +1,87 @@
+package ep2300;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Assigns keys (such as router addresses) to nodes (such as shards) by
+ * consistent hashing. Each node is placed at many points on a ring of
+ * hashes, and a key belongs to the first node after its hash. When a node
+ * is added or removed, only the keys of that node move.
+ *
+ * @param <T> The type of the nodes
+ */
+public class ConsistentHash<T>
+{
+    private final SortedMap<Integer, T> ring = new TreeMap<Integer, T>();
+    private final int replicas;
+
+    /**
+     * Create an empty ring
+     *
+     * @param replicas The number of points of each node on the ring. More
+     *            points give a more even distribution.
+     */
+    public ConsistentHash(int replicas)
+    {
+        this.replicas = replicas;
+    }
+
+    /**
+     * Add a node to the ring. The points of the node are chosen from its
+     * toString(), so it should be unique.
+     *
+     * @param node The node to add
+     */
+    public synchronized void add(T node)
+    {
+        for (int i = 0; i < replicas; i++) {
+            ring.put(hash(node + "#" + i), node);
+        }
+    }
+
+    /**
+     * Remove a node from the ring
+     *
+     * @param node The node to remove
+     */
+    public synchronized void remove(T node)
+    {
+        for (int i = 0; i < replicas; i++) {
+            ring.remove(hash(node + "#" + i));
+        }
+    }
+
+    /**
+     * Get the node that a key belongs to
+     *
+     * @param key The key
+     * @return The node, or null if the ring is empty
+     */
+    public synchronized T get(String key)
+    {
+        if (ring.isEmpty()) {
+            return null;
+        }
+
+        SortedMap<Integer, T> tail = ring.tailMap(hash(key));
+        return tail.isEmpty() ? ring.get(ring.firstKey()) : tail.get(tail
+                .firstKey());
+    }
+
+    /**
+     * Spreads the bits of the hash code of a string, since similar strings
+     * (such as addresses in the same subnet) have similar hash codes.
+     */
+    private static int hash(String s)
+    {
+        // The finalizer of MurmurHash3
+        int h = s.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,128 @@
+package ep2300;
+
+import java.util.Arrays;
+
+/**
+ * Computes how much a counter column of a router has changed since the
+ * last sample, by adding up the changes of the counter of each interface.
+ * The changes are taken before the interfaces are added up, so that a
+ * counter that wraps or is reset on one interface doesn't show up as a huge
+ * change of the whole router.
+ *
+ * The last values are kept in primitive arrays. They are usually a slice of
+ * the values of all polled columns, which are by column and then by row
+ * (interface).
+ *
+ * A Counter32 that has gone backwards is taken to have wrapped once, if
+ * that means it changed by less than 2^31. Otherwise it's taken to have
+ * been reset, and its change is its new value, since it counts from 0
+ * again. A Counter64 never wraps in practice, so it has always been reset.
+ * Counters that wrap more than once between two samples can't be told
+ * from ones that wrap once, so Counter32s only work for intervals where
+ * that doesn't happen.
+ */
+final class CounterDeltas
+{
+    private static final long counter32Range = 1L << 32;
+
+    // The ifIndex of each row of the last sample, or null if there is none,
+    // and where the values of the rows start in values
+    private int[] rows = null;
+    private long[] values = null;
+    private int start = 0;
+
+    /**
+     * Check if there is a sample to compare the next one with
+     *
+     * @return True if a sample has been added since the last clear()
+     */
+    boolean hasSample()
+    {
+        return rows != null;
+    }
+
+    /**
+     * Add a sample, and get how much the counters changed since the last
+     * one. Only the rows that are in both samples are counted.
+     *
+     * @param rows The ifIndex of each row. It's kept until the next sample,
+     *            so it must not be changed.
+     * @param values The values of the rows are at [start, start +
+     *            rows.length). It's also kept.
+     * @param start Where the values of the rows start
+     * @param wide True if the counters are Counter64s
+     * @return The sum of the changes of the rows, or 0 if there was no
+     *         previous sample
+     */
+    long update(int[] rows, long[] values, int start, boolean wide)
+    {
+        int[] lastRows = this.rows;
+        long[] last = this.values;
+        int lastStart = this.start;
+        this.rows = rows;
+        this.values = values;
+        this.start = start;
+        if (lastRows == null) {
+            return 0;
+        }
+
+        long sum = 0;
+        if (Arrays.equals(rows, lastRows)) {
+            // The usual case, where the interfaces are the same
+            for (int r = 0; r < rows.length; r++) {
+                sum += delta(last[lastStart + r], values[start + r], wide);
+            }
+            return sum;
+        }
+
+        IntIntMap lastRow = new IntIntMap(lastRows.length, -1);
+        for (int r = 0; r < lastRows.length; r++) {
+            lastRow.put(lastRows[r], r);
+        }
+        for (int r = 0; r < rows.length; r++) {
+            int previous = lastRow.get(rows[r]);
+            if (previous >= 0) {
+                // A new interface has no previous value to compare with
+                sum += delta(last[lastStart + previous], values[start + r],
+                        wide);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Forget the last sample
+     */
+    void clear()
+    {
+        rows = null;
+        values = null;
+        start = 0;
+    }
+
+    /**
+     * Get how much a counter has changed between two values, taking wraps
+     * and resets into account.
+     *
+     * @param previous The previous value
+     * @param current The current value
+     * @param wide True if the counter is a Counter64
+     * @return The change, which is never negative
+     */
+    static long delta(long previous, long current, boolean wide)
+    {
+        if (wide) {
+            // Compared as unsigned, since the values are 64 bit counters
+            boolean forward = (current ^ Long.MIN_VALUE) >= (previous
+                    ^ Long.MIN_VALUE);
+            return forward ? current - previous : current;
+        }
+
+        long delta = current - previous;
+        if (delta >= 0) {
+            return delta;
+        }
+        long wrapped = delta + counter32Range;
+        return wrapped < counter32Range / 2 ? wrapped : current;
+    }
+}
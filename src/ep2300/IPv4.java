@@ -0,0 +1,69 @@
+package ep2300;
+
+/**
+ * Conversions between IPv4 addresses in dotted notation and ints, which
+ * are much more compact to store and faster to compare and hash than
+ * strings.
+ */
+public final class IPv4
+{
+    private IPv4()
+    {
+        // Not instantiable
+    }
+
+    /**
+     * Converts an IPv4 address in dotted notation to an int
+     *
+     * @param address The address
+     * @return The address as an int, with the first part in the highest
+     *         byte
+     * @throws IllegalArgumentException If it's not an IPv4 address
+     */
+    public static int parse(String address)
+    {
+        int ip = 0;
+        int parts = 0;
+        int value = -1;
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255) {
+                    throw invalid(address);
+                }
+            }
+            else if (c == '.' && value >= 0 && parts < 3) {
+                ip = (ip << 8) | value;
+                parts++;
+                value = -1;
+            }
+            else {
+                throw invalid(address);
+            }
+        }
+
+        if (value < 0 || parts != 3) {
+            throw invalid(address);
+        }
+        return (ip << 8) | value;
+    }
+
+    private static IllegalArgumentException invalid(String address)
+    {
+        return new IllegalArgumentException("Not an IPv4 address: "
+                + address);
+    }
+
+    /**
+     * Converts an IPv4 address as an int to dotted notation
+     *
+     * @param ip The address
+     * @return The address in dotted notation
+     */
+    public static String toString(int ip)
+    {
+        return (ip >>> 24) + "." + ((ip >>> 16) & 0xff) + "."
+                + ((ip >>> 8) & 0xff) + "." + (ip & 0xff);
+    }
+}
@@ -0,0 +1,224 @@
+package ep2300;
+
+/**
+ * A map from int to int with open addressing and linear probing, which
+ * stores the keys and values in two arrays instead of an object per entry.
+ * It's not thread safe.
+ */
+public final class IntIntMap
+{
+    // Marks an empty slot. The key 0 is stored separately.
+    private static final int free = 0;
+
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int size = 0;
+
+    private boolean hasFreeKey = false;
+    private int freeKeyValue;
+
+    private final int missing;
+
+    /**
+     * Create an empty map
+     *
+     * @param expected The expected number of entries, which fit without
+     *            growing the map
+     * @param missing The value that get() returns for keys that are not in
+     *            the map
+     */
+    public IntIntMap(int expected, int missing)
+    {
+        int capacity = 4;
+        while (capacity * 3L < expected * 4L) {
+            capacity <<= 1;
+        }
+        keys = new int[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        this.missing = missing;
+    }
+
+    /**
+     * Get the value of a key
+     *
+     * @param key The key
+     * @return The value, or the missing value if the key is not in the map
+     */
+    public int get(int key)
+    {
+        if (key == free) {
+            return hasFreeKey ? freeKeyValue : missing;
+        }
+
+        for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+            else if (keys[i] == free) {
+                return missing;
+            }
+        }
+    }
+
+    /**
+     * Check if a key is in the map
+     *
+     * @param key The key
+     * @return True if the key has a value
+     */
+    public boolean containsKey(int key)
+    {
+        if (key == free) {
+            return hasFreeKey;
+        }
+
+        for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return true;
+            }
+            else if (keys[i] == free) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Set the value of a key
+     *
+     * @param key The key
+     * @param value The value
+     */
+    public void put(int key, int value)
+    {
+        if (key == free) {
+            if (!hasFreeKey) {
+                size++;
+            }
+            hasFreeKey = true;
+            freeKeyValue = value;
+            return;
+        }
+
+        int i = hash(key) & mask;
+        while (keys[i] != free && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (keys[i] == free) {
+            keys[i] = key;
+            size++;
+        }
+        values[i] = value;
+
+        // At most three quarters full, so the probe sequences stay short
+        if (size > keys.length / 4 * 3) {
+            grow();
+        }
+    }
+
+    /**
+     * Remove a key from the map. The entries after it in its probe sequence
+     * are moved back, so that lookups don't need tombstones.
+     *
+     * @param key The key
+     */
+    public void remove(int key)
+    {
+        if (key == free) {
+            if (hasFreeKey) {
+                hasFreeKey = false;
+                size--;
+            }
+            return;
+        }
+
+        int i = hash(key) & mask;
+        while (keys[i] != key) {
+            if (keys[i] == free) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        size--;
+
+        for (int j = (i + 1) & mask; keys[j] != free; j = (j + 1) & mask) {
+            int home = hash(keys[j]) & mask;
+            // Entries whose home slot is between the hole and them stay
+            boolean stays = (i <= j ? i < home && home <= j : i < home
+                    || home <= j);
+            if (!stays) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = free;
+    }
+
+    /**
+     * Get all keys of the map, in no particular order
+     *
+     * @return A new array of the keys
+     */
+    public int[] keys()
+    {
+        int[] all = new int[size];
+        int n = 0;
+        if (hasFreeKey) {
+            all[n++] = free;
+        }
+        for (int key : keys) {
+            if (key != free) {
+                all[n++] = key;
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Get the number of keys in the map
+     *
+     * @return The number of keys
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    private void grow()
+    {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        mask = keys.length - 1;
+
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != free) {
+                int i = hash(oldKeys[j]) & mask;
+                while (keys[i] != free) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    /**
+     * Spreads the bits of a key, since addresses in the same subnet differ
+     * only in the lowest bits.
+     */
+    private static int hash(int key)
+    {
+        // The finalizer of MurmurHash3
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -1,46 +1,278 @@
 package ep2300;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
-import java.util.Iterator;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import com.adventnet.snmp.snmp2.SnmpClient;
+import com.adventnet.snmp.snmp2.SnmpOID;
 import com.adventnet.snmp.snmp2.SnmpPDU;
 import com.adventnet.snmp.snmp2.SnmpSession;
-import com.adventnet.snmp.snmp2.UDPProtocolOptions;
 
 /**
  * Maintains statistics about the sent data on all links in a network.
  * Performs SNMP polling through the SNMP class and the SnmpClient callback
- * interface.
+ * interface. Which ifTable columns to poll is configurable, and all of them
+ * are fetched together by a PollPlanner, which walks the ifTable the first
+ * time and then only GETs the known rows.
+ * 
+ * Each call to update() starts a new PollCycle. Requests are tagged with
+ * the cycle they were sent in, and responses that arrive after the next
+ * cycle has started are dropped and counted, instead of being stored as
+ * samples of the wrong cycle.
+ * 
+ * The polls of a cycle can be spread out over a part of the interval, with
+ * a fixed phase offset for each router, so that the load on the network is
+ * steady instead of having a burst at the start of each cycle. Since every
+ * sample is timestamped, the changes can still be scaled to the interval.
+ * 
+ * Instead of update() and waitUntilFinished(), pollAsync() can be used.
+ * It returns a future of a Snapshot with the result of each router, so
+ * that no thread has to wait for the cycle to end.
  */
 public final class LinkStatistics implements SnmpClient
 {
     private Topology topology;
 
-    private AtomicInteger outstandingRequests = new AtomicInteger(0);
+    private final PollPlanner planner;
 
     /**
-     * Create a new LinkStatistics object with the defined topology
+     * A poll that is waiting for a response, and the router and cycle it
+     * belongs to. The router is kept so that it doesn't have to be looked
+     * up by address for every response.
+     */
+    private final static class PendingPoll
+    {
+        private final Router router;
+        private final PollPlanner.Poll poll;
+        private final PollCycle cycle;
+
+        // The number of times the last request has been retried
+        private int attempt = 0;
+
+        private PendingPoll(Router router, PollPlanner.Poll poll,
+                PollCycle cycle)
+        {
+            this.router = router;
+            this.poll = poll;
+            this.cycle = cycle;
+        }
+    }
+
+    /**
+     * The polls that are waiting for a response, by request ID
+     */
+    private final Map<Integer, PendingPoll> polls = new HashMap<Integer, PendingPoll>();
+
+    private volatile PollCycle currentCycle = new PollCycle(0, 0);
+
+    /**
+     * A cycle started by pollAsync(), and its snapshot
+     */
+    private final static class AsyncPoll
+    {
+        private final Snapshot snapshot;
+        private final CompletableFuture<Snapshot> future = new CompletableFuture<Snapshot>();
+
+        private AsyncPoll(Snapshot snapshot)
+        {
+            this.snapshot = snapshot;
+        }
+    }
+
+    /**
+     * The cycle of the last call to pollAsync(), if it's the current cycle
+     */
+    private volatile AsyncPoll asyncPoll = null;
+
+    /**
+     * Failed requests are retried at most twice, and at most one retry per
+     * ten routers is made in each cycle.
+     */
+    private final RetryPolicy retries = new RetryPolicy(2, 50, 1000, 0);
+
+    /**
+     * Sessions that have not been used for this many milliseconds are closed
+     * at the end of a poll cycle. These are typically the sessions to the
+     * other interfaces of the routers, which were only used during the
+     * topology discovery.
+     */
+    private static final long maxIdleSession = 60000;
+
+    // What checkResponse() says should be done with a response
+    private static final int responseOK = 0;
+    private static final int responseRetry = 1;
+    private static final int responseFailed = 2;
+
+    /**
+     * The store that the polled counters are added to, if any
+     */
+    private volatile TimeSeriesStore store = null;
+
+    /**
+     * Whether the 64 bit counters of the ifXTable are polled by default,
+     * instead of the 32 bit ones of the ifTable
+     */
+    private static final boolean hcCounters = Boolean
+            .getBoolean("ep2300.hccounters");
+
+    /**
+     * The threads of updateBlocking(), created when first needed
+     */
+    private ExecutorService pollThreads = null;
+
+    /**
+     * Create a new LinkStatistics object with the defined topology, which
+     * polls the inbound octets and packets. They are polled as 64 bit
+     * counters if ep2300.hccounters is true.
      * The topology must already be discovered
      * 
      * @param topology The topology of the network
      */
     public LinkStatistics(Topology topology)
+    {
+        this(topology, hcCounters ? SNMP.hcInOctetsOID : SNMP.inOctetsOID,
+                hcCounters ? SNMP.hcInPacketsOID : SNMP.inPacketsOID);
+    }
+
+    /**
+     * Create a new LinkStatistics object with the defined topology, which
+     * polls the specified ifTable or ifXTable columns. The values are
+     * stored in the counters of the routers (see Router.getCounter()).
+     * The topology must already be discovered
+     * 
+     * @param topology The topology of the network
+     * @param columns The columns to poll, which must be in the same table
+     */
+    public LinkStatistics(Topology topology, SnmpOID... columns)
     {
         this.topology = topology;
+        this.planner = new PollPlanner(SNMP.repetitions, columns);
+    }
+
+    /**
+     * Probe a router for updated statistics.
+     * 
+     * @param router The router to probe
+     * @param cycle The cycle the probe belongs to
+     */
+    private void probe(Router router, PollCycle cycle)
+    {
+        send(new PendingPoll(router, planner.start(router.getIP()), cycle));
     }
 
     /**
-     * Probe an IP for updated statistics.
+     * Send the next request of a poll.
      * 
-     * @param ip The IP to probe
+     * @param pending The poll to continue
      */
-    private void probe(String ip)
+    private void send(PendingPoll pending)
     {
-        SNMP.sendOID(ip, this, SNMP.inOctetsOID);
-        outstandingRequests.incrementAndGet();
+        pending.cycle.requestSent();
+
+        // The poll is registered before sending, since the callback can
+        // come before SNMP.send() returns.
+        SnmpPDU pdu = pending.poll.nextPDU();
+        int id = SNMP.newRequestID();
+        pdu.setRequestID(id);
+        synchronized (polls) {
+            polls.put(id, pending);
+        }
+        SNMP.send(pending.poll.getAddress(), this, pdu);
+    }
+
+    /**
+     * Retry the last request of a poll later, if the retry policy allows it.
+     * 
+     * @param pending The poll to retry
+     */
+    private void retry(final PendingPoll pending)
+    {
+        final PollCycle cycle = pending.cycle;
+
+        // The retry is outstanding until it has been sent
+        cycle.requestSent();
+        boolean scheduled = retries.retry(pending.attempt++, new Runnable() {
+            @Override
+            public void run()
+            {
+                if (cycle.isClosed()) {
+                    // Too late, which the snapshot counts as a timeout
+                    cycle.pollFailed();
+                }
+                else {
+                    send(pending);
+                }
+                finishRequest(cycle);
+            }
+        });
+
+        if (!scheduled) {
+            System.out.println("Giving up on polling "
+                    + pending.poll.getAddress());
+            pollFailed(pending);
+            finishRequest(cycle);
+        }
+    }
+
+    /**
+     * Marks a poll as failed in its cycle, and in its snapshot if it has one
+     * and the cycle has not ended yet
+     */
+    private void pollFailed(PendingPoll pending)
+    {
+        pending.cycle.pollFailed();
+        AsyncPoll async = asyncPoll;
+        if (async != null && async.snapshot.getCycle() == pending.cycle
+                && !pending.cycle.isClosed()) {
+            async.snapshot.fail(pending.router.getSysName());
+        }
+    }
+
+    /**
+     * Stores the result of a complete poll in the router
+     */
+    private void store(Router router, PollPlanner.Poll poll, PollCycle cycle)
+    {
+        SnmpOID[] columns = planner.getColumns();
+        long[] values = new long[columns.length];
+        boolean[] wide = new boolean[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            values[i] = poll.getSum(i);
+            wide[i] = poll.isWide(i);
+        }
+        // Otherwise the table changed during a walk, so the values of the
+        // interfaces are not known
+        if (poll.getValues() != null) {
+            router.addSample(cycle.getEpoch(), System.nanoTime(), columns,
+                    poll.getRows(), poll.getValues(), wide);
+
+            TimeSeriesStore history = store;
+            if (history != null) {
+                try {
+                    history.addCounters(System.currentTimeMillis(), router
+                            .getSysName(), columns, poll.getRows(), poll
+                            .getValues());
+                }
+                catch (IOException e) {
+                    System.err.println("Cannot store the counters of "
+                            + router + ": " + e.getMessage());
+                }
+            }
+        }
+
+        AsyncPoll async = asyncPoll;
+        if (async != null && async.snapshot.getCycle() == cycle) {
+            async.snapshot.complete(router.getSysName(), values);
+        }
     }
 
     @Override
@@ -50,58 +282,191 @@ public final class LinkStatistics implements SnmpClient
     }
 
     /**
-     * Add all nexthops and the router in the response to the list of routes.
+     * Add the polled values in the response to the poll it belongs to, and
+     * continue the poll if it's not complete.
      */
     @Override
     public boolean callback(SnmpSession session, SnmpPDU pdu, int requestID)
     {
+        PollCycle cycle = null;
         try {
-            UDPProtocolOptions opt = (UDPProtocolOptions) session
-                    .getProtocolOptions();
-            String address = opt.getRemoteAddress().getCanonicalHostName();
+            PendingPoll pending;
+            synchronized (polls) {
+                pending = polls.remove(requestID);
+            }
 
-            if (pdu.getErrstat() != 0) {
-                System.out.println("A request has failed:");
-                System.out.println(pdu.getError());
+            if (pending == null) {
+                System.out.println("Response to an unknown request: "
+                        + requestID);
+                return true;
+            }
+
+            PollPlanner.Poll poll = pending.poll;
+            String address = poll.getAddress();
+            cycle = pending.cycle;
+            if (pdu == null) {
+                // The request timed out
+                retry(pending);
+                return true;
+            }
+
+            if (cycle.isClosed()) {
+                // The cycle has ended, so the response is too late to be used
+                cycle.lateResponse();
+                return true;
+            }
+
+            int status = checkResponse(address, pdu);
+            if (status == responseFailed) {
+                poll.handleError();
+                pollFailed(pending);
                 return true; // No further processing is needed since the
                 // request
                 // failed
             }
-            else if (pdu.getObjectID(0).equals(SNMP.usmStatsNotInTimeWindows)) {
-                // Try again
-                probe(address);
+            else if (status == responseRetry) {
+                retry(pending);
                 return true;
             }
-            else if (!SNMP.samePrefix(pdu.getObjectID(0), SNMP.inOctetsOID)) {
-                System.out.println("Invalid response, probing again: "
-                        + pdu.getObjectID(0));
-                probe(address);
-
-                return false;
-            }
             else {
-                Router router = topology.getRouterFromIP(address);
-                long octets = 0;
-                long packets = 0;
+                pending.attempt = 0;
+                if (poll.handleResponse(pdu)) {
+                    synchronized (cycle) {
+                        // Check again, since the cycle could have ended
+                        if (cycle.isClosed()) {
+                            cycle.lateResponse();
+                        }
+                        else {
+                            store(pending.router, poll, cycle);
+                            cycle.pollCompleted();
+                        }
+                    }
+                }
+                else {
+                    // Some columns didn't fit in the response
+                    send(pending);
+                }
 
-                octets = ArrayResponse.sum(pdu, SNMP.inOctetsOID);
-                packets = ArrayResponse.sum(pdu, SNMP.inPacketsOID);
+                return true; // done processing PDU
+            }
+        }
+        finally {
+            if (cycle != null) {
+                finishRequest(cycle);
+            }
+        }
+    }
 
-                // System.out.println(address+" octets = "+octets+"  packets = "+packets);
+    /**
+     * Checks if a response can be used, or if the request should be retried
+     * or has failed.
+     * 
+     * @return responseOK, responseRetry or responseFailed
+     */
+    private static int checkResponse(String address, SnmpPDU pdu)
+    {
+        if (pdu.getErrstat() != 0) {
+            System.out.println("A request has failed:");
+            System.out.println(pdu.getError());
+            return responseFailed;
+        }
+        else if (pdu.getObjectID(0).equals(SNMP.usmStatsNotInTimeWindows)) {
+            // Remember the new time window, and try again
+            SNMP.reportNotInTimeWindow(address);
+            return responseRetry;
+        }
+        else if (!SNMP.interfacesPrefix.matches(pdu.getObjectID(0))
+                && !SNMP.ifMIBPrefix.matches(pdu.getObjectID(0))) {
+            System.out.println("Invalid response, probing again: "
+                    + pdu.getObjectID(0));
+            return responseRetry;
+        }
+        return responseOK;
+    }
 
-                router.octets.add(octets);
-                router.packets.add(packets);
+    /**
+     * Marks a request as finished, and notifies waitUntilFinished() if it
+     * was the last one.
+     */
+    private void finishRequest(PollCycle cycle)
+    {
+        if (cycle.requestFinished() <= 0) {
+            synchronized (this) {
+                notifyAll();
+            }
 
-                return true; // done processing PDU
+            AsyncPoll async = asyncPoll;
+            if (async != null && async.snapshot.getCycle() == cycle) {
+                finishAsync(async);
             }
         }
-        finally {
-            if (outstandingRequests.decrementAndGet() <= 0) {
-                synchronized (this) {
-                    notifyAll();
-                }
+    }
+
+    /**
+     * Ends the cycle of pollAsync(), and completes its future with the
+     * snapshot. Does nothing if it has already been done.
+     */
+    private void finishAsync(AsyncPoll async)
+    {
+        if (async.future.isDone()) {
+            return;
+        }
+
+        // Responses after this are late, so the snapshot doesn't change
+        async.snapshot.getCycle().close();
+        async.snapshot.freeze();
+        SNMP.getTransport().evictIdle(maxIdleSession);
+        async.future.complete(async.snapshot);
+    }
+
+    /**
+     * Probe all network nodes for their statistical data, without waiting
+     * for the responses. The cycle ends when all routers have been polled,
+     * or when the timeout has passed, and then the future is completed with
+     * the snapshot of the cycle. The values are also stored in the routers,
+     * like with update().
+     * 
+     * The future is completed by the thread of the last response or by the
+     * timer thread, so the actions that depend on it should not block, or
+     * should run in another executor (with the async methods of the
+     * future).
+     * 
+     * @param timeout The time that the cycle may take, in milliseconds
+     * @return The future snapshot of the cycle
+     */
+    public CompletableFuture<Snapshot> pollAsync(long timeout)
+    {
+        PollCycle cycle = startCycle();
+        List<Router> routers = new ArrayList<Router>(topology.getTopology()
+                .values());
+        List<String> names = new ArrayList<String>();
+        for (Router router : routers) {
+            names.add(router.getSysName());
+        }
+
+        final AsyncPoll async = new AsyncPoll(new Snapshot(cycle, planner
+                .getColumns(), names));
+        asyncPoll = async;
+        if (routers.isEmpty()) {
+            finishAsync(async);
+            return async.future;
+        }
+
+        Timers.get().schedule(new Runnable() {
+            @Override
+            public void run()
+            {
+                finishAsync(async);
             }
+        }, timeout, TimeUnit.MILLISECONDS);
+
+        // The cycle can't end before all polls have been started
+        cycle.requestSent();
+        for (Router router : routers) {
+            probe(router, cycle);
         }
+        finishRequest(cycle);
+        return async.future;
     }
 
     /**
@@ -109,23 +474,245 @@ public final class LinkStatistics implements SnmpClient
      */
     public void update()
     {
-        for (Router address : topology.getTopology().values()) {
-            probe(address.getIP());
+        update(0);
+    }
+
+    /**
+     * Probe all network nodes for their statistical data, spread out over
+     * the specified time. Each router is probed at the same offset into
+     * the spread in every cycle, which is chosen from a hash of its name.
+     * 
+     * @param spread The time to spread the probes over, in milliseconds
+     */
+    public void update(long spread)
+    {
+        PollCycle cycle = startCycle();
+        for (Router router : topology.getTopology().values()) {
+            long offset = (spread > 0 ? getPhase(router, spread) : 0);
+            if (offset == 0) {
+                probe(router, cycle);
+            }
+            else {
+                scheduleProbe(router, cycle, offset);
+            }
         }
     }
 
+    /**
+     * Ends the current cycle and starts a new one
+     */
+    private PollCycle startCycle()
+    {
+        PollCycle cycle = new PollCycle(currentCycle.getEpoch() + 1,
+                topology.getTopology().size());
+        currentCycle.close();
+        currentCycle = cycle;
+        asyncPoll = null;
+        retries.newCycle(Math.max(5, cycle.getRouters() / 10));
+        return cycle;
+    }
+
+    /**
+     * Probe all network nodes for their statistical data, with one thread
+     * per router that makes blocking requests (virtual threads if the JVM
+     * has them, see BlockingSNMP). This is an alternative to update() and
+     * waitUntilFinished(). It returns when all routers have been polled, or
+     * when the timeout has passed, in which case the polls that are left
+     * are cancelled. Either way the cycle has ended when this returns.
+     * 
+     * @param timeout The time that the cycle may take, in milliseconds
+     * @return The cycle, which tells how complete the polling was
+     */
+    public PollCycle updateBlocking(long timeout)
+    {
+        final PollCycle cycle = startCycle();
+        final long deadline = System.nanoTime() + timeout * 1000000L;
+
+        List<Callable<Void>> polls = new ArrayList<Callable<Void>>();
+        for (Router router : topology.getTopology().values()) {
+            final Router polled = router;
+            polls.add(new Callable<Void>() {
+                @Override
+                public Void call()
+                {
+                    pollBlocking(polled, cycle, deadline);
+                    return null;
+                }
+            });
+        }
+
+        synchronized (this) {
+            if (pollThreads == null) {
+                pollThreads = BlockingSNMP.newExecutor();
+            }
+        }
+        try {
+            // Cancels the polls that are not done at the deadline
+            pollThreads.invokeAll(polls, timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        cycle.close();
+        SNMP.getTransport().evictIdle(maxIdleSession);
+        return cycle;
+    }
+
+    /**
+     * Polls one router with blocking requests, until the poll is complete,
+     * has failed, or the deadline has passed.
+     */
+    private void pollBlocking(Router router, PollCycle cycle, long deadline)
+    {
+        String ip = router.getIP();
+        PollPlanner.Poll poll = planner.start(ip);
+        int attempt = 0;
+        try {
+            while (!poll.isComplete()) {
+                cycle.requestSent();
+                SnmpPDU pdu;
+                try {
+                    pdu = BlockingSNMP.request(ip, poll.nextPDU(), deadline);
+                }
+                finally {
+                    cycle.requestFinished();
+                }
+
+                int status = (pdu != null ? checkResponse(ip, pdu)
+                        : responseRetry);
+                if (status == responseFailed) {
+                    poll.handleError();
+                    cycle.pollFailed();
+                    return;
+                }
+                else if (status == responseRetry) {
+                    long delay = retries.nextDelay(attempt++);
+                    if (delay < 0 || System.nanoTime() >= deadline) {
+                        System.out.println("Giving up on polling " + ip);
+                        cycle.pollFailed();
+                        return;
+                    }
+                    Thread.sleep(delay);
+                }
+                else {
+                    attempt = 0;
+                    poll.handleResponse(pdu);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            // Cancelled at the end of the cycle
+            cycle.pollFailed();
+            return;
+        }
+
+        synchronized (cycle) {
+            if (cycle.isClosed()) {
+                cycle.lateResponse();
+            }
+            else {
+                store(router, poll, cycle);
+                cycle.pollCompleted();
+            }
+        }
+    }
+
+    /**
+     * Get the offset of a router into the spread of a cycle. The offset is
+     * stable as long as the router name and the spread are the same.
+     */
+    private static long getPhase(Router router, long spread)
+    {
+        // Mix the bits of the hash, since names of routers often differ
+        // only in the last few characters.
+        int hash = router.getSysName().hashCode() * 0x9e3779b9;
+        hash ^= hash >>> 16;
+        double fraction = (hash & 0x7fffffff) / (double) Integer.MAX_VALUE;
+        return (long) (fraction * spread);
+    }
+
+    /**
+     * Probe a router after the specified delay
+     */
+    private void scheduleProbe(final Router router, final PollCycle cycle,
+            long delay)
+    {
+        // The probe is outstanding until it has been sent. Sending may
+        // create a session, so it's not done on the timer thread.
+        cycle.requestSent();
+        Timers.later(new Runnable() {
+            @Override
+            public void run()
+            {
+                if (cycle.isClosed()) {
+                    cycle.pollFailed();
+                }
+                else {
+                    probe(router, cycle);
+                }
+                finishRequest(cycle);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Set a store to add the polled counters of each interface to
+     * 
+     * @param store The store, or null to not store the counters
+     */
+    public void setStore(TimeSeriesStore store)
+    {
+        this.store = store;
+    }
+
+    /**
+     * Get the current poll cycle, which is the one started by the last call
+     * to update(). It tells how complete the polling was.
+     * 
+     * @return The current poll cycle
+     */
+    public PollCycle getCycle()
+    {
+        return currentCycle;
+    }
+
+    /**
+     * Get the retry policy, which counts the retries and the requests that
+     * were given up on.
+     * 
+     * @return The retry policy
+     */
+    public RetryPolicy getRetryPolicy()
+    {
+        return retries;
+    }
+
     /**
      * Clear all statistics gathered
      */
     public void clear()
     {
         topology.clear();
-        outstandingRequests.set(0);
+        synchronized (polls) {
+            polls.clear();
+        }
+    }
+
+    /**
+     * Stop polling with this object. Its tracker in SNMP is dropped once the
+     * outstanding requests have finished.
+     */
+    public void close()
+    {
+        SNMP.unregister(null, this);
     }
 
     /**
      * Waits until all requests have finished, or at most timeout
-     * milliseconds. Returns the number of unfinished requests.
+     * milliseconds, and then ends the current cycle. Returns the number of
+     * unfinished requests. The sessions are kept open for the next poll
+     * cycle, except for those that have been idle for a long time.
      * 
      * @param timeout The time to wait, in milliseconds
      * @return The number of outstanding requests when finished.
@@ -134,7 +721,8 @@ public final class LinkStatistics implements SnmpClient
     {
         long start = System.currentTimeMillis();
 
-        while (outstandingRequests.get() > 0) {
+        PollCycle cycle = currentCycle;
+        while (cycle.getOutstanding() > 0) {
             try {
                 long delay = System.currentTimeMillis() - start;
 
@@ -149,8 +737,12 @@ public final class LinkStatistics implements SnmpClient
             }
         }
 
-        SNMPConnection.close();
-        return outstandingRequests.get();
+        // Responses after this are late, so the samples of this cycle don't
+        // change while they are being used.
+        cycle.close();
+
+        SNMP.getTransport().evictIdle(maxIdleSession);
+        return cycle.getOutstanding();
     }
 
     /**
@@ -176,11 +768,10 @@ public final class LinkStatistics implements SnmpClient
         PrintStream out = new PrintStream(baos);
         for (Router router : topology.getTopology().values()) {
             out.printf("%s (%s):\n", router, router.getIP());
-            Iterator<Long> octets = router.octets.iterator();
-            Iterator<Long> packets = router.octets.iterator();
-            while (octets.hasNext() && packets.hasNext()) {
-                out.printf("\t%dB (%s packets)\n", octets.next(), packets
-                        .next());
+            long[] octets = router.octets.toArray();
+            long[] packets = router.packets.toArray();
+            for (int i = 0; i < octets.length && i < packets.length; i++) {
+                out.printf("\t%dB (%s packets)\n", octets[i], packets[i]);
             }
         }
         return baos.toString();
@@ -201,8 +792,7 @@ public final class LinkStatistics implements SnmpClient
         String firstRouter = args[0];
 
         System.out.println("Discovering the topology...");
-        Topology topo = new Topology(firstRouter);
-        topo.waitUntilFinished();
+        Topology topo = Topology.discover(firstRouter);
 
         System.out.println("Monitoring...");
         LinkStatistics stats = new LinkStatistics(topo);
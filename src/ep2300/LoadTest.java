@@ -0,0 +1,101 @@
+package ep2300;
+
+import java.io.IOException;
+
+/**
+ * Runs the discovery and the polling against a simulated network, and
+ * prints how long they take. This is used to see how the program scales to
+ * large networks without a lab network.
+ */
+public class LoadTest
+{
+    /**
+     * Runs the load test.
+     *
+     * @param args CLI, Should contain, in order, a topology file or the
+     *            number of routers to generate, the number of poll cycles and
+     *            the interval. Optionally also the loss, the maximum latency
+     *            and a trace from ClusteringMonitor to replay.
+     * @throws IOException If the topology or the trace cannot be read
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 3 || args.length > 6) {
+            System.err
+                    .println("usage: java LoadTest <topology file|routers> <cycles> <interval(ms)> [loss] [latency(ms)] [trace]");
+            System.exit(2);
+        }
+
+        int cycles = Integer.parseInt(args[1]);
+        int interval = Integer.parseInt(args[2]);
+
+        // The responses are delivered by as many threads as the shards of
+        // the real network
+        SimulatedNetwork network = new SimulatedNetwork(1, SNMPConnection
+                .getShards());
+        if (args[0].matches("^[0-9]+$")) {
+            network.generate(Integer.parseInt(args[0]), 3);
+        }
+        else {
+            network.addTopology(Topology.fromFile(args[0]));
+        }
+        if (args.length > 3) {
+            network.setLoss(Double.parseDouble(args[3]));
+        }
+        if (args.length > 4) {
+            network.setLatency(1, Integer.parseInt(args[4]));
+        }
+        if (args.length > 5) {
+            network.loadTrace(args[5], interval);
+        }
+        SNMP.setTransport(network);
+
+        System.out.println("Discovering " + network.getRouterCount()
+                + " routers...");
+        long start = System.nanoTime();
+        Topology topo = new Topology(network.getFirstAddress());
+        topo.waitUntilFinished();
+        System.out.printf("Discovered %d of %d routers in %.1f ms\n", topo
+                .getTopology().size(), network.getRouterCount(), (System
+                .nanoTime() - start) / 1e6);
+        System.out.println(network);
+
+        System.out.println("Polling...");
+        LinkStatistics stats = new LinkStatistics(topo);
+        for (int i = 0; i < cycles; i++) {
+            start = System.nanoTime();
+            stats.update(interval * 3 / 4);
+            stats.waitUntilFinished(interval);
+            System.out.printf("%s in %.1f ms\n", stats.getCycle(), (System
+                    .nanoTime() - start) / 1e6);
+        }
+
+        System.out.println(stats.getRetryPolicy());
+        System.out.println(SNMP.window);
+        System.out.println(network);
+
+        // Add a router and remove one, and see that a refresh finds them
+        System.out.println("Refreshing...");
+        String first = network.getFirstAddress();
+        network.connectRouter("Added", first);
+        for (Router router : topo.getTopology().values()) {
+            if (!router.hasIP(first)) {
+                network.removeRouter(router.getIP());
+                break;
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            try {
+                topo.refresh();
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+        }
+        System.out.printf("%d of %d routers after the refreshes\n", topo
+                .getTopology().size(), network.getRouterCount());
+        System.out.println(network);
+        stats.close();
+        SNMP.close();
+    }
+}
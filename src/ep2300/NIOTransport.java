@@ -0,0 +1,909 @@
+package ep2300;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.adventnet.snmp.snmp2.SnmpAPI;
+import com.adventnet.snmp.snmp2.SnmpClient;
+import com.adventnet.snmp.snmp2.SnmpOID;
+import com.adventnet.snmp.snmp2.SnmpPDU;
+import com.adventnet.snmp.snmp2.SnmpVarBind;
+
+/**
+ * An SNMPv3 transport that sends the requests to all routers over a single
+ * non-blocking DatagramChannel, instead of a SnmpSession per router. One
+ * thread runs a selector loop which encodes and sends the requests, decodes
+ * the responses and handles the timeouts, so there are no per-router
+ * threads or buffers.
+ *
+ * The messages are encoded and decoded with BER, directly in two direct
+ * ByteBuffers that are reused for every message. Only authNoPriv with
+ * HMAC-MD5-96 is supported, which is what SNMPConnection uses. The engine
+ * ID, engineBoots and engineTime of each router are discovered the first
+ * time it's used (RFC 3414), and kept in a USMCache.
+ *
+ * The responses are delivered through the SnmpClient callback, from the
+ * selector thread, with a null session.
+ */
+public class NIOTransport implements SNMPTransport
+{
+    private static final int port = 161;
+    private static final int maxMessageSize = 65507;
+    private static final int authParamsLength = 12;
+    private static final int usmSecurityModel = 3;
+
+    // The msgFlags of the messages
+    private static final byte flagAuth = 0x01;
+    private static final byte flagPriv = 0x02;
+    private static final byte flagReportable = 0x04;
+
+    private static final SnmpOID usmStatsUnknownEngineIDs = new SnmpOID(
+            ".1.3.6.1.6.3.15.1.1.4.0");
+
+    // The errstat (genErr) that unauthenticated reports are delivered with,
+    // so that they are never taken for a response
+    private static final int reportError = 5;
+
+    // How many requests in a row may fail before the engine is discovered
+    // again
+    private static final int maxFailures = 3;
+
+    // The discovery messages have IDs above those of the requests, which
+    // are at most 2^30.
+    private static final int firstDiscoveryID = (1 << 30) + 1;
+
+    private final String username;
+    private final String password;
+    private byte[] passwordKey = null;
+
+    private final USMCache usmCache = new USMCache(System
+            .getProperty("ep2300.usmcache"));
+
+    /**
+     * Work for the selector thread. Everything that touches the state below
+     * is done by the selector thread, so it needs no locking.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    private Thread thread = null;
+    private volatile boolean running = false;
+    private Selector selector;
+    private DatagramChannel channel;
+
+    // State of the selector thread
+    private final Map<String, Engine> engines = new HashMap<String, Engine>();
+    private final Map<Integer, Pending> pending = new HashMap<Integer, Pending>();
+    private final PriorityQueue<Pending> deadlines = new PriorityQueue<Pending>(
+            64, new Comparator<Pending>() {
+                @Override
+                public int compare(Pending a, Pending b)
+                {
+                    return a.deadline < b.deadline ? -1
+                            : (a.deadline > b.deadline ? 1 : 0);
+                }
+            });
+    private int nextDiscoveryID = firstDiscoveryID;
+
+    // The buffers of the selector thread
+    private final ByteBuffer sendBuffer = ByteBuffer
+            .allocateDirect(maxMessageSize);
+    private final ByteBuffer receiveBuffer = ByteBuffer
+            .allocateDirect(maxMessageSize);
+    private Mac mac;
+
+    // Statistics
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong discoveries = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * A request that is waiting for a response. Discovery requests have no
+     * client.
+     */
+    private final static class Pending
+    {
+        private final int id;
+        private final Engine engine;
+        private final SnmpClient client;
+        private final SnmpPDU pdu;
+        private final long deadline;
+
+        // Set when the request has been resent after a notInTimeWindow report
+        private boolean resynced = false;
+
+        private Pending(int id, Engine engine, SnmpClient client,
+                SnmpPDU pdu, long deadline)
+        {
+            this.id = id;
+            this.engine = engine;
+            this.client = client;
+            this.pdu = pdu;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * What is known about the SNMP engine of a router
+     */
+    private final static class Engine
+    {
+        private final String address;
+        private final InetSocketAddress socketAddress;
+
+        // Null until discovered
+        private byte[] engineID = null;
+        private byte[] authKey = null;
+        private int engineBoots = 0;
+        private int engineTime = 0;
+        private long timestamp = 0;
+
+        // The ID of the discovery request in progress, or 0
+        private int discovery = 0;
+        private final List<Pending> waiting = new ArrayList<Pending>();
+
+        private int failures = 0;
+        private long lastUsed = System.currentTimeMillis();
+
+        private Engine(String address)
+        {
+            this.address = address;
+            this.socketAddress = new InetSocketAddress(address, port);
+        }
+
+        /**
+         * The current engineTime, estimated from the last known value
+         */
+        private int getEngineTime()
+        {
+            long passed = (System.nanoTime() - timestamp) / 1000000000L;
+            return (int) Math.min(Integer.MAX_VALUE, engineTime + passed);
+        }
+
+        private void setTime(int engineBoots, int engineTime)
+        {
+            this.engineBoots = engineBoots;
+            this.engineTime = engineTime;
+            this.timestamp = System.nanoTime();
+        }
+    }
+
+    /**
+     * A decoded message
+     */
+    private final static class Message
+    {
+        private int msgID;
+        private byte flags;
+        private byte[] engineID;
+        private int engineBoots;
+        private int engineTime;
+        private int authParamsPos;
+        private SnmpPDU pdu;
+    }
+
+    /**
+     * Create a transport that authenticates with the specified user
+     *
+     * @param username The username to authenticate with
+     * @param password The password to authenticate with
+     */
+    public NIOTransport(String username, String password)
+    {
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * Starts the selector thread, if it's not running
+     */
+    private synchronized void start() throws IOException
+    {
+        if (running) {
+            return;
+        }
+
+        try {
+            mac = Mac.getInstance("HmacMD5");
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException("HMAC-MD5 is not available: "
+                    + e.getMessage());
+        }
+
+        selector = Selector.open();
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().bind(null);
+        channel.register(selector, SelectionKey.OP_READ);
+
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                loop();
+            }
+        }, "NIOTransport");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs a task in the selector thread
+     */
+    private void post(Runnable task)
+    {
+        tasks.add(task);
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+    }
+
+    @Override
+    public boolean send(final String address, final SnmpClient client,
+            final SnmpPDU pdu, final int timeout)
+    {
+        try {
+            start();
+        }
+        catch (IOException e) {
+            System.err.println("Could not start the NIO transport: "
+                    + e.getMessage());
+            return false;
+        }
+
+        final long deadline = System.nanoTime() + timeout * 1000000L;
+        post(new Runnable() {
+            @Override
+            public void run()
+            {
+                Engine engine = getEngine(address);
+                Pending request = new Pending(pdu.getRequestID(), engine,
+                        client, pdu, deadline);
+                pending.put(request.id, request);
+                deadlines.add(request);
+
+                if (engine.engineID != null) {
+                    transmit(request);
+                }
+                else {
+                    engine.waiting.add(request);
+                    discover(engine, deadline);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * The selector loop
+     */
+    private void loop()
+    {
+        while (running) {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+
+            long wait = expire();
+            try {
+                selector.select(wait);
+                selector.selectedKeys().clear();
+                receive();
+            }
+            catch (IOException e) {
+                System.err.println("NIO transport: " + e.getMessage());
+            }
+        }
+
+        // Every request gets its callback, also when closing
+        for (Pending request : new ArrayList<Pending>(pending.values())) {
+            if (request.client != null) {
+                finish(request, null);
+            }
+        }
+        pending.clear();
+        deadlines.clear();
+        engines.clear();
+        tasks.clear();
+    }
+
+    /**
+     * Times out the requests whose deadlines have passed.
+     *
+     * @return The time until the next deadline in milliseconds, or 0 if
+     *         there is none
+     */
+    private long expire()
+    {
+        long now = System.nanoTime();
+        while (!deadlines.isEmpty()) {
+            Pending request = deadlines.peek();
+            if (pending.get(request.id) != request) {
+                // Already finished
+                deadlines.poll();
+            }
+            else if (request.deadline <= now) {
+                deadlines.poll();
+                timeouts.incrementAndGet();
+                if (request.client == null) {
+                    // A discovery, the waiting requests time out by
+                    // themselves
+                    pending.remove(request.id);
+                    request.engine.discovery = 0;
+                }
+                else {
+                    finish(request, null);
+                }
+            }
+            else {
+                return Math.max(1, (request.deadline - now) / 1000000L);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Removes a request and makes its callback.
+     */
+    private void finish(Pending request, SnmpPDU response)
+    {
+        pending.remove(request.id);
+        request.engine.waiting.remove(request);
+        try {
+            request.client.callback(null, response, request.id);
+        }
+        catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private Engine getEngine(String address)
+    {
+        Engine engine = engines.get(address);
+        if (engine == null) {
+            engine = new Engine(address);
+            USMCache.Entry cached = usmCache.get(address, username);
+            if (cached != null) {
+                engine.engineID = cached.getEngineID();
+                engine.authKey = cached.getAuthKey();
+                engine.setTime(cached.getEngineBoots(), cached
+                        .getEngineTime());
+            }
+            engines.put(address, engine);
+        }
+        engine.lastUsed = System.currentTimeMillis();
+        return engine;
+    }
+
+    /**
+     * Sends a discovery request to an engine, unless one is in progress.
+     * The response is a report with the engine ID and time.
+     */
+    private void discover(Engine engine, long deadline)
+    {
+        if (engine.discovery != 0) {
+            return;
+        }
+
+        int id = nextDiscoveryID++;
+        if (nextDiscoveryID < firstDiscoveryID) {
+            nextDiscoveryID = firstDiscoveryID;
+        }
+
+        SnmpPDU pdu = new SnmpPDU();
+        pdu.setCommand(SnmpAPI.GET_REQ_MSG);
+        pdu.setRequestID(id);
+
+        Pending request = new Pending(id, engine, null, pdu, deadline);
+        engine.discovery = id;
+        pending.put(id, request);
+        deadlines.add(request);
+        discoveries.incrementAndGet();
+        transmit(request);
+    }
+
+    /**
+     * Encodes a request and sends it.
+     */
+    private void transmit(Pending request)
+    {
+        Engine engine = request.engine;
+        boolean discovery = (request.client == null);
+
+        sendBuffer.clear();
+        BER.Writer w = new BER.Writer(sendBuffer);
+        int message = w.mark();
+
+        // The scoped PDU
+        int scopedPDU = w.mark();
+        writePDU(w, request.pdu);
+        w.writeOctets(new byte[0]); // contextName
+        w.writeOctets(discovery ? new byte[0] : engine.engineID);
+        w.writeHeader(BER.SEQUENCE, scopedPDU);
+
+        // The USM security parameters
+        int securityParameters = w.mark();
+        int usm = w.mark();
+        w.writeOctets(new byte[0]); // msgPrivacyParameters
+        w.writeOctets(new byte[discovery ? 0 : authParamsLength]);
+        int authParamsPos = w.position() + 2;
+        w.writeOctets(discovery ? new byte[0] : username.getBytes());
+        w.writeInteger(discovery ? 0 : engine.getEngineTime());
+        w.writeInteger(discovery ? 0 : engine.engineBoots);
+        w.writeOctets(discovery ? new byte[0] : engine.engineID);
+        w.writeHeader(BER.SEQUENCE, usm);
+        w.writeHeader(BER.OCTET_STRING, securityParameters);
+
+        // The global data
+        int globalData = w.mark();
+        w.writeInteger(usmSecurityModel);
+        byte flags = (byte) (discovery ? flagReportable : flagReportable
+                | flagAuth);
+        w.writeOctets(new byte[] { flags });
+        w.writeInteger(maxMessageSize);
+        w.writeInteger(request.id);
+        w.writeHeader(BER.SEQUENCE, globalData);
+
+        w.writeInteger(SnmpAPI.SNMP_VERSION_3);
+        w.writeHeader(BER.SEQUENCE, message);
+        w.finish();
+
+        if (!discovery) {
+            byte[] digest = digest(engine.authKey, sendBuffer);
+            for (int i = 0; i < authParamsLength; i++) {
+                sendBuffer.put(authParamsPos + i, digest[i]);
+            }
+        }
+
+        try {
+            if (channel.send(sendBuffer, engine.socketAddress) > 0) {
+                sent.incrementAndGet();
+            }
+            else {
+                // The socket buffer is full, so this is like a lost packet
+                dropped.incrementAndGet();
+            }
+        }
+        catch (IOException e) {
+            // The request times out, like a lost packet
+            System.err.println("Could not send to " + engine.address + ": "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Encodes a GET, GETNEXT or GETBULK PDU.
+     */
+    private static void writePDU(BER.Writer w, SnmpPDU pdu)
+    {
+        int start = w.mark();
+
+        int varBinds = w.mark();
+        Vector<?> bindings = pdu.getVariableBindings();
+        for (int i = bindings.size() - 1; i >= 0; i--) {
+            int varBind = w.mark();
+            w.writeNull();
+            w.writeOID(((SnmpVarBind) bindings.get(i)).getObjectID()
+                    .toIntArray());
+            w.writeHeader(BER.SEQUENCE, varBind);
+        }
+        w.writeHeader(BER.SEQUENCE, varBinds);
+
+        if (pdu.getCommand() == SnmpAPI.GETBULK_REQ_MSG) {
+            w.writeInteger(pdu.getMaxRepetitions());
+            w.writeInteger(pdu.getNonRepeaters());
+        }
+        else {
+            w.writeInteger(0); // error-index
+            w.writeInteger(0); // error-status
+        }
+        w.writeInteger(pdu.getRequestID());
+        w.writeHeader(pdu.getCommand(), start);
+    }
+
+    /**
+     * Calculates the HMAC-MD5 of the message between the position and limit
+     * of the buffer. The authentication parameters must be zero.
+     */
+    private byte[] digest(byte[] key, ByteBuffer buffer)
+    {
+        try {
+            mac.init(new SecretKeySpec(key, "HmacMD5"));
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer view = buffer.duplicate();
+        mac.update(view);
+        return mac.doFinal();
+    }
+
+    /**
+     * Receives all datagrams that are waiting.
+     */
+    private void receive() throws IOException
+    {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress from = channel.receive(receiveBuffer);
+            if (from == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            received.incrementAndGet();
+
+            Message message;
+            try {
+                message = decode(receiveBuffer);
+            }
+            catch (IOException e) {
+                System.err.println("Invalid message from " + from + ": "
+                        + e.getMessage());
+                dropped.incrementAndGet();
+                continue;
+            }
+
+            handle(message, from);
+        }
+    }
+
+    /**
+     * Decodes an SNMPv3 message in the buffer
+     */
+    private static Message decode(ByteBuffer buffer) throws IOException
+    {
+        BER.Reader r = new BER.Reader(buffer);
+        Message message = new Message();
+
+        r.readHeader(BER.SEQUENCE);
+        if (r.readInteger() != SnmpAPI.SNMP_VERSION_3) {
+            throw new IOException("Not SNMPv3");
+        }
+
+        r.readHeader(BER.SEQUENCE);
+        message.msgID = (int) r.readInteger();
+        r.readInteger(); // msgMaxSize
+        byte[] flags = r.readOctets();
+        message.flags = (flags.length > 0 ? flags[0] : 0);
+        if (r.readInteger() != usmSecurityModel) {
+            throw new IOException("Not USM");
+        }
+
+        r.readHeader(BER.OCTET_STRING);
+        r.readHeader(BER.SEQUENCE);
+        message.engineID = r.readOctets();
+        message.engineBoots = (int) r.readInteger();
+        message.engineTime = (int) r.readInteger();
+        r.skip(r.readHeader(BER.OCTET_STRING)); // msgUserName
+        int authParamsLength = r.readHeader(BER.OCTET_STRING);
+        message.authParamsPos = r.position();
+        r.skip(authParamsLength);
+        r.skip(r.readHeader(BER.OCTET_STRING)); // msgPrivacyParameters
+
+        if ((message.flags & flagPriv) != 0) {
+            throw new IOException("Encrypted messages are not supported");
+        }
+        else if ((message.flags & flagAuth) != 0
+                && authParamsLength != NIOTransport.authParamsLength) {
+            throw new IOException("Invalid authentication parameters");
+        }
+
+        r.readHeader(BER.SEQUENCE);
+        r.skip(r.readHeader(BER.OCTET_STRING)); // contextEngineID
+        r.skip(r.readHeader(BER.OCTET_STRING)); // contextName
+
+        byte command = r.peekType();
+        r.readHeader(command);
+        SnmpPDU pdu = new SnmpPDU();
+        pdu.setCommand(command);
+        pdu.setRequestID((int) r.readInteger());
+        pdu.setErrstat((int) r.readInteger());
+        pdu.setErrindex((int) r.readInteger());
+
+        int end = r.readHeader(BER.SEQUENCE) + r.position();
+        while (r.hasMore(end)) {
+            r.readHeader(BER.SEQUENCE);
+            SnmpOID oid = new SnmpOID(r.readOID());
+            pdu.addVariableBinding(new SnmpVarBind(oid, r.readVar()));
+        }
+        message.pdu = pdu;
+        return message;
+    }
+
+    /**
+     * Checks the digest of a received message, in the receive buffer
+     */
+    private boolean authenticate(Message message, Engine engine)
+    {
+        byte[] received = new byte[authParamsLength];
+        for (int i = 0; i < authParamsLength; i++) {
+            received[i] = receiveBuffer.get(message.authParamsPos + i);
+            receiveBuffer.put(message.authParamsPos + i, (byte) 0);
+        }
+
+        byte[] digest = digest(engine.authKey, receiveBuffer);
+        for (int i = 0; i < authParamsLength; i++) {
+            receiveBuffer.put(message.authParamsPos + i, received[i]);
+        }
+        return Arrays.equals(received, Arrays.copyOf(digest,
+                authParamsLength));
+    }
+
+    /**
+     * Handles a decoded message
+     */
+    private void handle(Message message, SocketAddress from)
+    {
+        Pending request = pending.get(message.msgID);
+        if (request == null) {
+            // Late, or not for us
+            dropped.incrementAndGet();
+            return;
+        }
+
+        Engine engine = request.engine;
+        if (!engine.socketAddress.equals(from)) {
+            System.err.println("Message " + message.msgID + " for "
+                    + engine.address + " came from " + from);
+            dropped.incrementAndGet();
+            return;
+        }
+
+        if (request.client == null) {
+            handleDiscovery(request, message);
+            return;
+        }
+
+        SnmpPDU pdu = message.pdu;
+        boolean report = (pdu.getCommand() == SnmpAPI.REPORT_MSG);
+        boolean authenticated = (message.flags & flagAuth) != 0;
+        if (authenticated) {
+            if (!authenticate(message, engine)) {
+                System.err.println("Wrong digest in a message from "
+                        + engine.address);
+                dropped.incrementAndGet();
+                return;
+            }
+            engine.setTime(message.engineBoots, message.engineTime);
+        }
+        else if (!report) {
+            // Only reports may be unauthenticated
+            System.err.println("Unauthenticated response from "
+                    + engine.address);
+            dropped.incrementAndGet();
+            return;
+        }
+        else {
+            // Anyone could have sent it, so it can only fail the request
+            if (pdu.getErrstat() == 0) {
+                pdu.setErrstat(reportError);
+            }
+            finish(request, pdu);
+            return;
+        }
+
+        if (report && pdu.getVariableBindings().size() > 0
+                && pdu.getObjectID(0).equals(SNMP.usmStatsNotInTimeWindows)
+                && !request.resynced) {
+            // The time is now synchronized, so send the request again
+            request.resynced = true;
+            transmit(request);
+            return;
+        }
+
+        finish(request, pdu);
+    }
+
+    /**
+     * Handles the report to a discovery request, and sends the requests
+     * that were waiting for it.
+     */
+    private void handleDiscovery(Pending request, Message message)
+    {
+        Engine engine = request.engine;
+        pending.remove(request.id);
+        engine.discovery = 0;
+
+        SnmpPDU pdu = message.pdu;
+        if (message.engineID.length == 0
+                || pdu.getCommand() != SnmpAPI.REPORT_MSG
+                || pdu.getVariableBindings().size() == 0
+                || !pdu.getObjectID(0).equals(usmStatsUnknownEngineIDs)) {
+            System.err.println("Invalid discovery response from "
+                    + engine.address);
+            return;
+        }
+
+        engine.engineID = message.engineID;
+        engine.authKey = localizeKey(message.engineID);
+        engine.setTime(message.engineBoots, message.engineTime);
+        usmCache.put(engine.address, engine.engineID, username,
+                engine.authKey, engine.engineBoots, engine.engineTime);
+
+        for (Pending waiting : engine.waiting) {
+            if (pending.get(waiting.id) == waiting) {
+                transmit(waiting);
+            }
+        }
+        engine.waiting.clear();
+    }
+
+    /**
+     * Localizes the key of the password to an engine, as in RFC 3414 A.2.1.
+     * The key of the password, which takes 1 MB of hashing, is only
+     * calculated once.
+     */
+    private byte[] localizeKey(byte[] engineID)
+    {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            if (passwordKey == null) {
+                byte[] pass = password.getBytes();
+                byte[] block = new byte[64];
+                int index = 0;
+                for (int count = 0; count < 1048576; count += 64) {
+                    for (int i = 0; i < 64; i++) {
+                        block[i] = pass[index++ % pass.length];
+                    }
+                    md5.update(block);
+                }
+                passwordKey = md5.digest();
+            }
+
+            md5.update(passwordKey);
+            md5.update(engineID);
+            md5.update(passwordKey);
+            return md5.digest();
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void reportSuccess(final String address)
+    {
+        post(new Runnable() {
+            @Override
+            public void run()
+            {
+                Engine engine = engines.get(address);
+                if (engine != null) {
+                    engine.failures = 0;
+                }
+            }
+        });
+    }
+
+    @Override
+    public void reportFailure(final String address)
+    {
+        post(new Runnable() {
+            @Override
+            public void run()
+            {
+                Engine engine = engines.get(address);
+                if (engine != null && ++engine.failures >= maxFailures
+                        && engine.discovery == 0) {
+                    // Discover the engine again, in case it has changed
+                    engines.remove(address);
+                    usmCache.invalidate(address);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void reportNotInTimeWindow(final String address)
+    {
+        post(new Runnable() {
+            @Override
+            public void run()
+            {
+                Engine engine = engines.get(address);
+                if (engine != null) {
+                    usmCache.updateTime(address, engine.engineBoots, engine
+                            .getEngineTime());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void evictIdle(final long maxIdle)
+    {
+        post(new Runnable() {
+            @Override
+            public void run()
+            {
+                // The engines are cheap to set up again from the cache
+                long now = System.currentTimeMillis();
+                Iterator<Engine> it = engines.values().iterator();
+                while (it.hasNext()) {
+                    Engine engine = it.next();
+                    if (now - engine.lastUsed > maxIdle
+                            && engine.discovery == 0
+                            && engine.waiting.isEmpty()) {
+                        it.remove();
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close()
+    {
+        Thread stopped;
+        synchronized (this) {
+            stopped = thread;
+            running = false;
+            thread = null;
+        }
+
+        if (stopped != null) {
+            selector.wakeup();
+            try {
+                stopped.join();
+            }
+            catch (InterruptedException e) {
+                // Close anyway
+            }
+            try {
+                channel.close();
+                selector.close();
+            }
+            catch (IOException e) {
+                // Nothing to do
+            }
+        }
+
+        try {
+            usmCache.save();
+        }
+        catch (IOException e) {
+            System.err.println("Could not save the USM cache: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the number of messages sent and received, and the number of
+     * timeouts, discoveries and dropped messages.
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("NIO transport: %d sent, %d received, "
+                + "%d timed out, %d discoveries, %d dropped", sent.get(),
+                received.get(), timeouts.get(), discoveries.get(), dropped
+                        .get());
+    }
+}
@@ -0,0 +1,122 @@
+package ep2300;
+
+import com.adventnet.snmp.snmp2.SnmpOID;
+
+/**
+ * A precompiled OID prefix, such as a table column. OIDs are matched
+ * against it subidentifier by subidentifier, without building strings.
+ *
+ * The subidentifiers are unsigned 32 bit numbers stored in ints, so they
+ * are compared as unsigned.
+ */
+public final class OIDPrefix
+{
+    private final SnmpOID oid;
+    private final int[] subIds;
+
+    /**
+     * Compile a prefix
+     *
+     * @param oid The prefix
+     */
+    public OIDPrefix(SnmpOID oid)
+    {
+        this.oid = oid;
+        subIds = oid.toIntArray();
+    }
+
+    /**
+     * Get the prefix as an OID
+     *
+     * @return The OID
+     */
+    public SnmpOID getOID()
+    {
+        return oid;
+    }
+
+    /**
+     * Check if an OID starts with this prefix. An OID that is equal to the
+     * prefix also matches.
+     *
+     * @param oid The OID to check
+     * @return True if the OID starts with the prefix
+     */
+    public boolean matches(SnmpOID oid)
+    {
+        return startsWith(oid.toIntArray(), subIds);
+    }
+
+    /**
+     * Check if an OID starts with this prefix
+     *
+     * @param oid The subidentifiers of the OID
+     * @return True if the OID starts with the prefix
+     */
+    public boolean matches(int[] oid)
+    {
+        return startsWith(oid, subIds);
+    }
+
+    /**
+     * Check if an OID starts with a prefix
+     *
+     * @param oid The subidentifiers of the OID
+     * @param prefix The subidentifiers of the prefix
+     * @return True if the first subidentifiers of oid are those of prefix
+     */
+    static boolean startsWith(int[] oid, int[] prefix)
+    {
+        if (oid.length < prefix.length) {
+            return false;
+        }
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            // The last subidentifiers are the most likely to differ
+            if (oid[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares two OIDs in lexicographic order, where an OID comes before
+     * the OIDs that it is a prefix of.
+     *
+     * @param a The subidentifiers of the first OID
+     * @param b The subidentifiers of the second OID
+     * @return Less than, equal to or greater than 0 if a comes before, is
+     *         equal to or comes after b
+     */
+    static int compare(int[] a, int[] b)
+    {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            if (a[i] != b[i]) {
+                // Unsigned comparison
+                return (a[i] ^ Integer.MIN_VALUE) < (b[i] ^ Integer.MIN_VALUE) ? -1
+                        : 1;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Get the OID with .1 appended to an OID. It is not necessarily an OID
+     * of an element, but it comes after the OID and before the next
+     * element, so a walk can continue from it.
+     */
+    static SnmpOID firstChild(int[] oid)
+    {
+        int[] child = new int[oid.length + 1];
+        System.arraycopy(oid, 0, child, 0, oid.length);
+        child[oid.length] = 1;
+        return new SnmpOID(child);
+    }
+
+    @Override
+    public String toString()
+    {
+        return oid.toString();
+    }
+}
@@ -1,5 +1,6 @@
 package ep2300;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -222,7 +223,8 @@ public class OnlineAnomalyDetection
         String monitorFilename = null;
 
         if (argv.length == 3 && argv[0].equals("-f")) {
-            // Run on algorithm offline, on saved files
+            // Run on algorithm offline, on saved files. The monitor output
+            // can also be the directory of a TimeSeriesStore.
             String topologyFilename = argv[1];
             monitorFilename = argv[2];
             numStates = 0; // not applicable
@@ -236,8 +238,13 @@ public class OnlineAnomalyDetection
             numStates = Integer.parseInt(argv[1]);
 
             System.out.println("Discovering the topology...");
-            topo = new Topology(firstRouter);
-            topo.waitUntilFinished();
+            topo = Topology.discover(firstRouter);
+
+            // Routers that are added or removed are found by refreshes
+            long refresh = Long.getLong("ep2300.refresh", 60000);
+            if (refresh > 0) {
+                topo.startRefresh(refresh);
+            }
 
             System.out.println("Monitoring...");
         }
@@ -250,18 +257,28 @@ public class OnlineAnomalyDetection
 
         LinkStatistics stats = new LinkStatistics(topo);
 
-        ClusteringMonitor monitor = new ClusteringMonitor(stats, 1, numStates,
-                3);
+        // The interval must leave time for the responses, since responses
+        // that arrive after the end of a cycle are dropped.
+        ClusteringMonitor monitor = new ClusteringMonitor(stats, 1000,
+                numStates, 3);
 
         OnlineAnomalyDetection OAD = new OnlineAnomalyDetection(monitor);
 
         if (offline) {
-            monitor.loadFromFile(monitorFilename);
+            if (new File(monitorFilename).isDirectory()) {
+                monitor.loadFromStore(monitorFilename, 0, Long.MAX_VALUE);
+            }
+            else {
+                monitor.loadFromFile(monitorFilename);
+            }
             OAD.detect();
         }
         else {
+            TimeSeriesStore store = ClusteringMonitor.openStore();
+            stats.setStore(store);
+            monitor.setStore(store);
             OAD.run();
-            SNMPConnection.close();
+            SNMP.close();
         }
 
     }
@@ -0,0 +1,96 @@
+package ep2300;
+
+/**
+ * Compares the callback based polling (LinkStatistics.update()), the
+ * blocking polling with a thread per router
+ * (LinkStatistics.updateBlocking()) and the polling with futures
+ * (LinkStatistics.pollAsync()) on a simulated network. The cycles are
+ * not spread out, so the time of a cycle is how long it takes to poll all
+ * routers.
+ */
+public class PollBenchmark
+{
+    /**
+     * Runs the benchmark.
+     *
+     * @param args CLI, Should contain, in order, the number of routers and
+     *            the number of cycles of each mode. Optionally also the loss
+     *            and the maximum latency.
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 2 || args.length > 4) {
+            System.err
+                    .println("usage: java PollBenchmark <routers> <cycles> [loss] [latency(ms)]");
+            System.exit(2);
+        }
+
+        int numRouters = Integer.parseInt(args[0]);
+        int cycles = Integer.parseInt(args[1]);
+        long timeout = 60000;
+
+        SimulatedNetwork network = new SimulatedNetwork(1, SNMPConnection
+                .getShards());
+        network.generate(numRouters, 3);
+        if (args.length > 2) {
+            network.setLoss(Double.parseDouble(args[2]));
+        }
+        if (args.length > 3) {
+            network.setLatency(1, Integer.parseInt(args[3]));
+        }
+        SNMP.setTransport(network);
+
+        System.out.println("Discovering the topology...");
+        Topology topo = Topology.discoverAsync(network.getFirstAddress())
+                .join();
+
+        LinkStatistics stats = new LinkStatistics(topo);
+
+        // The first cycle walks the tables, the rest use GET
+        stats.update();
+        stats.waitUntilFinished(timeout);
+
+        System.out.println("Callback mode:");
+        double callbackTime = 0;
+        for (int i = 0; i < cycles; i++) {
+            long start = System.nanoTime();
+            stats.update();
+            stats.waitUntilFinished(timeout);
+            double time = (System.nanoTime() - start) / 1e6;
+            callbackTime += time;
+            System.out.printf("%s in %.1f ms\n", stats.getCycle(), time);
+        }
+
+        System.out.println("Blocking mode ("
+                + (BlockingSNMP.hasVirtualThreads() ? "virtual threads"
+                        : "thread pool") + "):");
+        double blockingTime = 0;
+        for (int i = 0; i < cycles; i++) {
+            long start = System.nanoTime();
+            PollCycle cycle = stats.updateBlocking(timeout);
+            double time = (System.nanoTime() - start) / 1e6;
+            blockingTime += time;
+            System.out.printf("%s in %.1f ms\n", cycle, time);
+        }
+
+        System.out.println("Async mode:");
+        double asyncTime = 0;
+        for (int i = 0; i < cycles; i++) {
+            long start = System.nanoTime();
+            Snapshot snapshot = stats.pollAsync(timeout).join();
+            double time = (System.nanoTime() - start) / 1e6;
+            asyncTime += time;
+            System.out.printf("%s in %.1f ms\n", snapshot, time);
+        }
+
+        System.out.printf("callback: %.1f ms/cycle, %.0f routers/s\n",
+                callbackTime / cycles, numRouters * cycles * 1000
+                        / callbackTime);
+        System.out.printf("blocking: %.1f ms/cycle, %.0f routers/s\n",
+                blockingTime / cycles, numRouters * cycles * 1000
+                        / blockingTime);
+        System.out.printf("async:    %.1f ms/cycle, %.0f routers/s\n",
+                asyncTime / cycles, numRouters * cycles * 1000 / asyncTime);
+        System.out.println(network);
+    }
+}
@@ -0,0 +1,159 @@
+package ep2300;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of one poll cycle of LinkStatistics. Every request is tagged
+ * with the cycle it was sent in, so that responses that arrive after the
+ * next cycle has started can be told apart and counted instead of being
+ * mixed into the wrong cycle.
+ */
+public final class PollCycle
+{
+    private final int epoch;
+    private final int routers;
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger late = new AtomicInteger();
+
+    private volatile boolean closed = false;
+
+    /**
+     * Create a new poll cycle
+     *
+     * @param epoch The number of the cycle
+     * @param routers The number of routers that are polled
+     */
+    public PollCycle(int epoch, int routers)
+    {
+        this.epoch = epoch;
+        this.routers = routers;
+    }
+
+    /**
+     * Get the number of this cycle
+     *
+     * @return The epoch
+     */
+    public int getEpoch()
+    {
+        return epoch;
+    }
+
+    /**
+     * Get the number of routers that are polled in this cycle
+     *
+     * @return The number of routers
+     */
+    public int getRouters()
+    {
+        return routers;
+    }
+
+    /**
+     * Get the number of requests that are still waiting for a response
+     *
+     * @return The number of outstanding requests
+     */
+    public int getOutstanding()
+    {
+        return outstanding.get();
+    }
+
+    /**
+     * Get the number of routers that were completely polled in time
+     *
+     * @return The number of complete polls
+     */
+    public int getCompleted()
+    {
+        return completed.get();
+    }
+
+    /**
+     * Get the number of polls that failed, by an error or a timeout
+     *
+     * @return The number of failed polls
+     */
+    public int getFailed()
+    {
+        return failed.get();
+    }
+
+    /**
+     * Get the number of responses that arrived after the cycle had ended,
+     * and therefore were dropped.
+     *
+     * @return The number of late responses
+     */
+    public int getLate()
+    {
+        return late.get();
+    }
+
+    /**
+     * Get the fraction of the routers that were completely polled in time
+     *
+     * @return A value between 0 and 1
+     */
+    public double getCompleteness()
+    {
+        return routers > 0 ? (double) completed.get() / routers : 1;
+    }
+
+    /**
+     * Check if the cycle has ended. Responses that arrive after this are
+     * too late to be used.
+     *
+     * @return True if the cycle has ended
+     */
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    synchronized void close()
+    {
+        closed = true;
+    }
+
+    void requestSent()
+    {
+        outstanding.incrementAndGet();
+    }
+
+    /**
+     * Marks a request as finished
+     *
+     * @return The number of requests that are still outstanding
+     */
+    int requestFinished()
+    {
+        return outstanding.decrementAndGet();
+    }
+
+    void pollCompleted()
+    {
+        completed.incrementAndGet();
+    }
+
+    void pollFailed()
+    {
+        failed.incrementAndGet();
+    }
+
+    void lateResponse()
+    {
+        late.incrementAndGet();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("cycle %d: %d/%d routers complete, %d failed, "
+                + "%d outstanding, %d late", epoch, completed.get(), routers,
+                failed.get(), outstanding.get(), late.get());
+    }
+}
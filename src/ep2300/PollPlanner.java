@@ -0,0 +1,507 @@
+package ep2300;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+
+import com.adventnet.snmp.snmp2.SnmpAPI;
+import com.adventnet.snmp.snmp2.SnmpCounter64;
+import com.adventnet.snmp.snmp2.SnmpInt;
+import com.adventnet.snmp.snmp2.SnmpOID;
+import com.adventnet.snmp.snmp2.SnmpPDU;
+import com.adventnet.snmp.snmp2.SnmpVar;
+import com.adventnet.snmp.snmp2.SnmpVarBind;
+
+/**
+ * Plans the polling of a set of columns in the same table (for instance
+ * ifInOctets and ifInUcastPkts in the ifTable). All columns are fetched
+ * with the same GETBULK request, and the columns that didn't fit are
+ * fetched with continuation requests that start where the previous response
+ * ended. The size of the requests is chosen by a RepetitionSizer.
+ *
+ * The ifIndex values of the rows are remembered for each router after the
+ * first walk. Later polls of that router GET the exact OIDs of the rows
+ * instead, together with ifNumber. If a row has disappeared or ifNumber has
+ * changed, the table is walked again.
+ */
+public final class PollPlanner
+{
+    private final SnmpOID[] columns;
+    private final OIDPrefix[] prefixes;
+    private final RepetitionSizer sizer;
+
+    /**
+     * The known rows of the routers, by address
+     */
+    private final Map<String, Rows> rows = Collections
+            .synchronizedMap(new HashMap<String, Rows>());
+
+    /**
+     * The rows of the table in one router, and the exact OIDs to GET. The
+     * OIDs are ordered by row, and then by column.
+     */
+    private final static class Rows
+    {
+        private final int[] indices;
+        private final SnmpOID[] oids;
+
+        private Rows(int[] indices, SnmpOID[] oids)
+        {
+            this.indices = indices;
+            this.oids = oids;
+        }
+    }
+
+    /**
+     * Create a new planner for the specified columns.
+     *
+     * @param sizer The sizer that chooses how many rows to ask for in each
+     *            request. The rows are counted as a table named by the
+     *            first column.
+     * @param columns The columns to poll
+     */
+    public PollPlanner(RepetitionSizer sizer, SnmpOID... columns)
+    {
+        if (columns.length == 0) {
+            throw new IllegalArgumentException("No columns to poll.");
+        }
+
+        this.columns = columns.clone();
+        prefixes = new OIDPrefix[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            prefixes[i] = new OIDPrefix(columns[i]);
+        }
+        this.sizer = sizer;
+    }
+
+    /**
+     * Get the columns that are polled
+     *
+     * @return The columns
+     */
+    public SnmpOID[] getColumns()
+    {
+        return columns.clone();
+    }
+
+    /**
+     * Get the index of a column
+     *
+     * @param column The column OID
+     * @return The index of the column, or -1 if it is not polled.
+     */
+    public int indexOf(SnmpOID column)
+    {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Start a new poll of all the columns.
+     *
+     * @param address The address of the router to poll
+     * @return A new Poll
+     */
+    public Poll start(String address)
+    {
+        return new Poll(address, rows.get(address));
+    }
+
+    /**
+     * Forget the rows of a router, so that the table is walked the next
+     * time the router is polled.
+     *
+     * @param address The address of the router
+     */
+    public void forget(String address)
+    {
+        rows.remove(address);
+    }
+
+    /**
+     * Remember the rows of a router, and build the OIDs to GET.
+     */
+    private void learn(String address, int[] indices, int numRows)
+    {
+        int[] rowIndices = Arrays.copyOf(indices, numRows);
+        SnmpOID[] oids = new SnmpOID[numRows * columns.length];
+        for (int i = 0; i < rowIndices.length; i++) {
+            for (int c = 0; c < columns.length; c++) {
+                oids[i * columns.length + c] = new SnmpOID(columns[c]
+                        .toString() + "." + rowIndices[i]);
+            }
+        }
+        rows.put(address, new Rows(rowIndices, oids));
+    }
+
+    /**
+     * The polling of the columns of one router. The value of each row of
+     * each column is kept, and the sums of each column are accumulated over
+     * all responses.
+     */
+    public final class Poll
+    {
+        private final String address;
+
+        // The known rows, or null if the table is walked
+        private Rows known;
+
+        // The OID to continue each column from when walking, or null if
+        // it's complete
+        private SnmpOID[] next;
+        private final long[] sums;
+
+        // The values of the known rows, by column and then by row, or of
+        // the walked rows once the walk is complete
+        private long[] values;
+
+        // Which columns have Counter64 values
+        private final boolean[] wide;
+
+        // The rows found when walking, and the values of each column
+        private int[] walked = new int[16];
+        private int numWalked = 0;
+        private long[][] walkedValues;
+        private int[] numWalkedValues;
+
+        // The column that the walker is visiting
+        private int visiting;
+
+        // Keeps the values of a column when walking. The rows are the last
+        // subidentifiers of the OIDs of the first column.
+        private final ArrayResponse.Visitor walker = new ArrayResponse.Visitor() {
+            @Override
+            public void visit(int[] oid, SnmpVar value)
+            {
+                if (visiting == 0) {
+                    if (numWalked == walked.length) {
+                        walked = Arrays.copyOf(walked, numWalked * 2);
+                    }
+                    walked[numWalked++] = oid[oid.length - 1];
+                }
+                add(visiting, value);
+
+                long[] column = walkedValues[visiting];
+                int n = numWalkedValues[visiting];
+                if (n == column.length) {
+                    column = Arrays.copyOf(column, n * 2);
+                    walkedValues[visiting] = column;
+                }
+                column[n] = SNMP.isCounter(value) ? SNMP
+                        .counterValue(value) : 0;
+                numWalkedValues[visiting] = n + 1;
+            }
+        };
+
+        // The columns that are in the last sent GETBULK request, in order
+        private int[] requested = new int[0];
+
+        // The position in known.oids of the last sent GET request, and the
+        // number of OIDs in it
+        private int getOffset = 0;
+        private int getCount = 0;
+
+        private Poll(String address, Rows known)
+        {
+            this.address = address;
+            this.known = known;
+            next = columns.clone();
+            sums = new long[columns.length];
+            wide = new boolean[columns.length];
+            if (known != null) {
+                values = new long[known.oids.length];
+            }
+            else {
+                startWalk();
+            }
+        }
+
+        /**
+         * Clears what has been found by walking, to start a new walk
+         */
+        private void startWalk()
+        {
+            numWalked = 0;
+            walkedValues = new long[columns.length][16];
+            numWalkedValues = new int[columns.length];
+        }
+
+        /**
+         * Adds a value to the sum of a column
+         */
+        private void add(int column, SnmpVar value)
+        {
+            if (SNMP.isCounter(value)) {
+                sums[column] += SNMP.counterValue(value);
+                wide[column] |= value instanceof SnmpCounter64;
+            }
+        }
+
+        /**
+         * Get the address of the polled router
+         *
+         * @return The address
+         */
+        public String getAddress()
+        {
+            return address;
+        }
+
+        /**
+         * Create the next request of this poll. When walking, all columns
+         * that are not yet complete are included in the request. Otherwise
+         * as many of the known OIDs as allowed are included.
+         *
+         * @return The PDU to send, or null if the poll is complete
+         */
+        public SnmpPDU nextPDU()
+        {
+            if (isComplete()) {
+                return null;
+            }
+            else if (known != null) {
+                return nextGetPDU();
+            }
+
+            int pending = 0;
+            for (SnmpOID oid : next) {
+                if (oid != null) {
+                    pending++;
+                }
+            }
+
+            SnmpPDU pdu = new SnmpPDU();
+            pdu.setCommand(SnmpAPI.GETBULK_REQ_MSG);
+            pdu.setMaxRepetitions(sizer.getRepetitions(address, columns[0],
+                    pending));
+
+            requested = new int[pending];
+            int j = 0;
+            for (int i = 0; i < next.length; i++) {
+                if (next[i] != null) {
+                    pdu.addNull(next[i]);
+                    requested[j++] = i;
+                }
+            }
+            return pdu;
+        }
+
+        /**
+         * Create a GET request for the next known OIDs. The first request
+         * also asks for ifNumber.
+         */
+        private SnmpPDU nextGetPDU()
+        {
+            SnmpPDU pdu = new SnmpPDU();
+            pdu.setCommand(SnmpAPI.GET_REQ_MSG);
+
+            int room = sizer.getMaxVarBinds(address, columns[0]);
+            if (getOffset == 0) {
+                pdu.addNull(SNMP.ifNumber);
+                room--;
+            }
+
+            getCount = Math.min(room, known.oids.length - getOffset);
+            for (int i = getOffset; i < getOffset + getCount; i++) {
+                pdu.addNull(known.oids[i]);
+            }
+            return pdu;
+        }
+
+        /**
+         * Parses the response to the last request from nextPDU().
+         *
+         * @param pdu The response
+         * @return True if the poll is complete
+         */
+        public boolean handleResponse(SnmpPDU pdu)
+        {
+            sizer.recordResponse(address, columns[0], pdu);
+            if (known != null) {
+                handleGetResponse(pdu);
+                return isComplete();
+            }
+
+            for (int j = 0; j < requested.length; j++) {
+                visiting = requested[j];
+                next[visiting] = ArrayResponse.visit(pdu, prefixes[visiting],
+                        j, requested.length, walker);
+            }
+
+            requested = new int[0];
+            if (isComplete()) {
+                sizer.recordRows(address, columns[0], numWalked);
+                if (numWalked > 0) {
+                    learn(address, walked, numWalked);
+                }
+                values = collectWalked();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Parses the response to a GET request. If anything indicates that
+         * the rows have changed, the poll is restarted as a walk.
+         */
+        private void handleGetResponse(SnmpPDU pdu)
+        {
+            Vector<?> bindings = pdu.getVariableBindings();
+            int first = 0;
+            if (getOffset == 0) {
+                SnmpVar count = ((SnmpVarBind) bindings.get(0)).getVariable();
+                int numRows = known.indices.length;
+                if (!(count instanceof SnmpInt)
+                        || ((SnmpInt) count).intValue() != numRows) {
+                    rewalk("ifNumber has changed");
+                    return;
+                }
+                first = 1;
+            }
+
+            if (bindings.size() - first != getCount) {
+                rewalk("unexpected number of values");
+                return;
+            }
+
+            int numRows = known.indices.length;
+            for (int i = 0; i < getCount; i++) {
+                SnmpVar value = ((SnmpVarBind) bindings.get(first + i))
+                        .getVariable();
+                if (!SNMP.isCounter(value)) {
+                    // noSuchInstance or similar, so the row has disappeared
+                    rewalk("an interface has disappeared");
+                    return;
+                }
+
+                // The OIDs are by row and then by column
+                int row = (getOffset + i) / columns.length;
+                int column = (getOffset + i) % columns.length;
+                add(column, value);
+                values[column * numRows + row] = SNMP.counterValue(value);
+            }
+
+            getOffset += getCount;
+            getCount = 0;
+        }
+
+        /**
+         * Forget the known rows, and restart the poll as a walk.
+         */
+        private void rewalk(String reason)
+        {
+            System.out.println("Walking the interfaces of " + address
+                    + " again: " + reason);
+            forget(address);
+            known = null;
+            next = columns.clone();
+            values = null;
+            startWalk();
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] = 0;
+                wide[i] = false;
+            }
+        }
+
+        /**
+         * Handles an error response to the last request. The known rows are
+         * forgotten, in case they are what caused the error.
+         */
+        public void handleError()
+        {
+            if (known != null) {
+                forget(address);
+            }
+        }
+
+        /**
+         * Check if all columns have been polled.
+         *
+         * @return True if the poll is complete
+         */
+        public boolean isComplete()
+        {
+            if (known != null) {
+                return getOffset >= known.oids.length;
+            }
+
+            for (SnmpOID oid : next) {
+                if (oid != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Get the sum of all rows of a column
+         *
+         * @param column The index of the column
+         * @return The sum of the column
+         */
+        public long getSum(int column)
+        {
+            return sums[column];
+        }
+
+        /**
+         * Get the rows of the table, once the poll is complete
+         *
+         * @return The ifIndex of each row, which must not be changed
+         */
+        public int[] getRows()
+        {
+            return known != null ? known.indices : Arrays.copyOf(walked,
+                    numWalked);
+        }
+
+        /**
+         * Get the value of each row of each column, once the poll is
+         * complete. A Counter64 is kept as the 64 bits of the long.
+         *
+         * @return The values, by column and then in the order of getRows(),
+         *         or null if the columns of a walk had different numbers of
+         *         rows
+         */
+        public long[] getValues()
+        {
+            return values;
+        }
+
+        /**
+         * Check if a column has Counter64 values
+         *
+         * @param column The index of the column
+         * @return True if the values of the column are 64 bit counters
+         */
+        public boolean isWide(int column)
+        {
+            return wide[column];
+        }
+
+        /**
+         * Puts the values of the walked columns together. The rows of all
+         * columns are taken to be in the same order as those of the first
+         * one, which is the order of the table.
+         */
+        private long[] collectWalked()
+        {
+            long[] all = new long[columns.length * numWalked];
+            for (int c = 0; c < columns.length; c++) {
+                if (numWalkedValues[c] != numWalked) {
+                    // The table changed during the walk
+                    return null;
+                }
+                System.arraycopy(walkedValues[c], 0, all, c * numWalked,
+                        numWalked);
+            }
+            return all;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package ep2300;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Estimates the round-trip time to each router, and chooses the timeout of
+ * the requests from it. The estimation is the same as the retransmission
+ * timer of TCP (RFC 6298): a smoothed RTT and its variation, and the timeout
+ * is the smoothed RTT plus four times the variation.
+ */
+public class RTTEstimator
+{
+    /**
+     * The timeout to use before anything is known about a router
+     */
+    public static final int initialTimeout = 750;
+
+    private static final double alpha = 1.0 / 8;
+    private static final double beta = 1.0 / 4;
+
+    private final int minTimeout;
+    private final int maxTimeout;
+
+    private final Map<String, Estimate> estimates = new HashMap<String, Estimate>();
+
+    /**
+     * The estimated round-trip time of one router, in milliseconds
+     */
+    private final static class Estimate
+    {
+        private double srtt;
+        private double rttvar;
+        private int timeout = initialTimeout;
+    }
+
+    /**
+     * Create a new estimator
+     *
+     * @param minTimeout The smallest timeout to use, in milliseconds
+     * @param maxTimeout The largest timeout to use, in milliseconds
+     */
+    public RTTEstimator(int minTimeout, int maxTimeout)
+    {
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+    }
+
+    /**
+     * Get the timeout to use for the next request to a router
+     *
+     * @param address The address of the router
+     * @return The timeout, in milliseconds
+     */
+    public synchronized int getTimeout(String address)
+    {
+        Estimate estimate = estimates.get(address);
+        return estimate != null ? estimate.timeout : initialTimeout;
+    }
+
+    /**
+     * Updates the estimate with the round-trip time of a request
+     *
+     * @param address The address of the router
+     * @param rtt The round-trip time, in milliseconds
+     */
+    public synchronized void sample(String address, double rtt)
+    {
+        Estimate estimate = estimates.get(address);
+        if (estimate == null) {
+            estimate = new Estimate();
+            estimate.srtt = rtt;
+            estimate.rttvar = rtt / 2;
+            estimates.put(address, estimate);
+        }
+        else {
+            estimate.rttvar = (1 - beta) * estimate.rttvar + beta
+                    * Math.abs(estimate.srtt - rtt);
+            estimate.srtt = (1 - alpha) * estimate.srtt + alpha * rtt;
+        }
+        estimate.timeout = clamp(estimate.srtt + 4 * estimate.rttvar);
+    }
+
+    /**
+     * Backs off the timeout of a router after a request has timed out, by
+     * doubling it.
+     *
+     * @param address The address of the router
+     */
+    public synchronized void timedOut(String address)
+    {
+        Estimate estimate = estimates.get(address);
+        if (estimate == null) {
+            estimate = new Estimate();
+            estimate.srtt = initialTimeout;
+            estimate.rttvar = initialTimeout / 2;
+            estimates.put(address, estimate);
+        }
+        estimate.timeout = clamp(2.0 * estimate.timeout);
+    }
+
+    /**
+     * Get the smoothed round-trip time of a router
+     *
+     * @param address The address of the router
+     * @return The smoothed RTT in milliseconds, or -1 if unknown
+     */
+    public synchronized double getSmoothedRTT(String address)
+    {
+        Estimate estimate = estimates.get(address);
+        return estimate != null ? estimate.srtt : -1;
+    }
+
+    private int clamp(double timeout)
+    {
+        return (int) Math.max(minTimeout, Math.min(maxTimeout, Math
+                .ceil(timeout)));
+    }
+}
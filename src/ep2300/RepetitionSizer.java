@@ -0,0 +1,242 @@
+package ep2300;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import com.adventnet.snmp.snmp2.SnmpIpAddress;
+import com.adventnet.snmp.snmp2.SnmpOID;
+import com.adventnet.snmp.snmp2.SnmpPDU;
+import com.adventnet.snmp.snmp2.SnmpString;
+import com.adventnet.snmp.snmp2.SnmpUnsignedInt;
+import com.adventnet.snmp.snmp2.SnmpVar;
+import com.adventnet.snmp.snmp2.SnmpVarBind;
+
+/**
+ * Chooses the max-repetitions of GETBULK requests for each router and table.
+ * It learns the number of rows in the table and the size of the variable
+ * bindings from previous responses. The whole table is asked for at once,
+ * as long as the response fits in the PDU size budget, so that it doesn't
+ * get fragmented.
+ */
+public class RepetitionSizer
+{
+    /**
+     * The default PDU size budget, in bytes. This is an Ethernet MTU minus
+     * the IP and UDP headers and the SNMPv3 message header.
+     */
+    public static final int defaultPDUSize = 1500 - 28 - 120;
+
+    // The size of a variable binding before anything is known about it
+    private static final int defaultVarBindSize = 20;
+
+    private final int maxPDUSize;
+
+    private final Map<String, Table> tables = new HashMap<String, Table>();
+
+    /**
+     * What is known about one table in one router
+     */
+    private final static class Table
+    {
+        private final String address;
+        private final SnmpOID prefix;
+
+        // The number of rows found by the last complete walk, or -1
+        private int rows = -1;
+
+        // The average encoded size of a variable binding
+        private double varBindSize = defaultVarBindSize;
+
+        // The last chosen number of repetitions
+        private int repetitions = SNMP.numPerResponse;
+
+        private Table(String address, SnmpOID prefix)
+        {
+            this.address = address;
+            this.prefix = prefix;
+        }
+    }
+
+    /**
+     * Create a new sizer with the default PDU size budget
+     */
+    public RepetitionSizer()
+    {
+        this(defaultPDUSize);
+    }
+
+    /**
+     * Create a new sizer
+     *
+     * @param maxPDUSize The maximum size of a response PDU, in bytes
+     */
+    public RepetitionSizer(int maxPDUSize)
+    {
+        this.maxPDUSize = maxPDUSize;
+    }
+
+    private Table getTable(String address, SnmpOID prefix)
+    {
+        String key = address + " " + prefix;
+        Table table = tables.get(key);
+        if (table == null) {
+            table = new Table(address, prefix);
+            tables.put(key, table);
+        }
+        return table;
+    }
+
+    /**
+     * Get the max-repetitions to use in the next GETBULK request.
+     *
+     * @param address The address of the router
+     * @param prefix The table, or the first column of the table
+     * @param numColumns The number of repeated columns in the request
+     * @return The number of repetitions
+     */
+    public int getRepetitions(String address, SnmpOID prefix,
+            int numColumns)
+    {
+        return getRepetitions(address, prefix, 0, numColumns);
+    }
+
+    /**
+     * Get the max-repetitions to use in the next GETBULK request that also
+     * has non-repeaters.
+     *
+     * @param address The address of the router
+     * @param prefix The table, or the first column of the table
+     * @param nonRepeaters The number of non-repeaters in the request
+     * @param numColumns The number of repeated columns in the request
+     * @return The number of repetitions
+     */
+    public synchronized int getRepetitions(String address, SnmpOID prefix,
+            int nonRepeaters, int numColumns)
+    {
+        Table table = getTable(address, prefix);
+
+        int fitting = (getMaxVarBinds(table) - nonRepeaters)
+                / Math.max(1, numColumns);
+        int wanted = SNMP.numPerResponse;
+        if (table.rows >= 0) {
+            // One more than the rows, so the end is seen in the same response
+            wanted = table.rows + 1;
+        }
+
+        table.repetitions = Math.max(1, Math.min(wanted, fitting));
+        return table.repetitions;
+    }
+
+    /**
+     * Get the number of variable bindings that fit in a response
+     *
+     * @param address The address of the router
+     * @param prefix The table, or the first column of the table
+     * @return The maximum number of variable bindings
+     */
+    public synchronized int getMaxVarBinds(String address, SnmpOID prefix)
+    {
+        return getMaxVarBinds(getTable(address, prefix));
+    }
+
+    private int getMaxVarBinds(Table table)
+    {
+        return Math.max(1, (int) (maxPDUSize / table.varBindSize));
+    }
+
+    /**
+     * Learn the size of the variable bindings from a response.
+     *
+     * @param address The address of the router
+     * @param prefix The table, or the first column of the table
+     * @param pdu The response
+     */
+    public synchronized void recordResponse(String address, SnmpOID prefix,
+            SnmpPDU pdu)
+    {
+        Vector<?> bindings = pdu.getVariableBindings();
+        if (bindings.isEmpty()) {
+            return;
+        }
+
+        int size = 0;
+        for (Object elem : bindings) {
+            size += encodedSize((SnmpVarBind) elem);
+        }
+
+        Table table = getTable(address, prefix);
+        double average = (double) size / bindings.size();
+        // Keep the largest of the new and the smoothed size, so that the
+        // budget is never overshot because of a few small responses.
+        table.varBindSize = Math.max(average,
+                0.75 * table.varBindSize + 0.25 * average);
+    }
+
+    /**
+     * Learn the number of rows of a table from a complete walk.
+     *
+     * @param address The address of the router
+     * @param prefix The table, or the first column of the table
+     * @param rows The number of rows in the table
+     */
+    public synchronized void recordRows(String address, SnmpOID prefix,
+            int rows)
+    {
+        getTable(address, prefix).rows = rows;
+    }
+
+    /**
+     * Estimates the BER encoded size of a variable binding.
+     */
+    private static int encodedSize(SnmpVarBind vb)
+    {
+        // Sequence header, OID header and value header
+        int size = 2 + 2 + 2;
+
+        for (int subId : vb.getObjectID().toIntArray()) {
+            size += (subId < 128 ? 1 : (subId < 16384 ? 2 : 5));
+        }
+
+        SnmpVar var = vb.getVariable();
+        if (var instanceof SnmpIpAddress) {
+            size += 4;
+        }
+        else if (var instanceof SnmpString) {
+            size += var.toString().length();
+        }
+        else if (var instanceof SnmpUnsignedInt) {
+            size += 5;
+        }
+        else {
+            size += 9;
+        }
+        return size;
+    }
+
+    /**
+     * Returns a report of the chosen max-repetitions of all routers and
+     * tables.
+     */
+    @Override
+    public synchronized String toString()
+    {
+        List<String> keys = new ArrayList<String>(tables.keySet());
+        Collections.sort(keys);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(baos);
+        for (String key : keys) {
+            Table table = tables.get(key);
+            out.printf("%s %s: max-repetitions=%d rows=%d varbind=%.1fB\n",
+                    table.address, table.prefix, table.repetitions,
+                    table.rows, table.varBindSize);
+        }
+        return baos.toString();
+    }
+}
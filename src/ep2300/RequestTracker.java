@@ -0,0 +1,198 @@
+package ep2300;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.adventnet.snmp.snmp2.SnmpClient;
+import com.adventnet.snmp.snmp2.SnmpPDU;
+import com.adventnet.snmp.snmp2.SnmpSession;
+
+/**
+ * Keeps track of the requests sent by SNMP.send() on behalf of a client,
+ * and passes the responses on to the client. This is where the round-trip
+ * times are measured, where the requests leave the send window, and where
+ * the transport is told about the health of the routers.
+ */
+final class RequestTracker implements SnmpClient
+{
+    private final SnmpClient client;
+
+    private final Map<Integer, Request> requests = new HashMap<Integer, Request>();
+
+    // Whether the client has been unregistered since its last request
+    private boolean unregistered = false;
+
+    /**
+     * A request that is waiting for a response
+     */
+    private final static class Request
+    {
+        private final String address;
+
+        // When the request was sent, or 0 if it's still in the send queue
+        private long sentAt = 0;
+
+        private Request(String address)
+        {
+            this.address = address;
+        }
+    }
+
+    /**
+     * Create a new tracker
+     *
+     * @param client The client to pass responses on to
+     */
+    RequestTracker(SnmpClient client)
+    {
+        this.client = client;
+    }
+
+    /**
+     * Registers a request, before it is sent.
+     *
+     * @param requestID The ID of the request
+     * @param address The address the request is sent to
+     */
+    synchronized void submitted(int requestID, String address)
+    {
+        unregistered = false;
+        requests.put(requestID, new Request(address));
+    }
+
+    /**
+     * Marks the client as unregistered, so the tracker can be dropped when
+     * it has no requests left.
+     *
+     * @return True if the tracker has no requests left
+     */
+    synchronized boolean unregister()
+    {
+        unregistered = true;
+        return requests.isEmpty();
+    }
+
+    /**
+     * Checks if the client has been unregistered and the tracker has no
+     * requests left
+     *
+     * @return True if the tracker can be dropped
+     */
+    synchronized boolean isDone()
+    {
+        return unregistered && requests.isEmpty();
+    }
+
+    /**
+     * Marks a request as sent, which is when its round-trip time starts.
+     *
+     * @param requestID The ID of the request
+     */
+    synchronized void sent(int requestID)
+    {
+        Request request = requests.get(requestID);
+        if (request != null) {
+            request.sentAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Reports that a request could not be sent. The client gets a callback
+     * as if the request had timed out.
+     *
+     * @param requestID The ID of the request
+     */
+    void failed(int requestID)
+    {
+        callback(null, null, requestID);
+    }
+
+    /**
+     * Gives up on the requests to an address that were sent before a time,
+     * because the session they were sent through has been closed, and they
+     * will get no callback. They leave the send window, and the client gets
+     * a callback as if they had timed out. A response that still comes is
+     * dropped.
+     *
+     * @param address The address, or null for all addresses
+     * @param sentBefore When the session was closed, from System.nanoTime()
+     */
+    void abandon(String address, long sentBefore)
+    {
+        List<Integer> abandoned = new ArrayList<Integer>();
+        boolean last;
+        synchronized (this) {
+            Iterator<Map.Entry<Integer, Request>> it = requests.entrySet()
+                    .iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Request> entry = it.next();
+                Request request = entry.getValue();
+                if (request.sentAt != 0 && request.sentAt - sentBefore <= 0
+                        && (address == null || address
+                                .equals(request.address))) {
+                    abandoned.add(entry.getKey());
+                    it.remove();
+                }
+            }
+            last = (unregistered && requests.isEmpty());
+        }
+        if (last) {
+            SNMP.finished(this, client);
+        }
+
+        for (int requestID : abandoned) {
+            SNMP.window.release();
+            client.callback(null, null, requestID);
+        }
+    }
+
+    @Override
+    public boolean authenticate(SnmpPDU pdu, String community)
+    {
+        return client.authenticate(pdu, community);
+    }
+
+    @Override
+    public boolean callback(SnmpSession session, SnmpPDU pdu, int requestID)
+    {
+        Request request;
+        boolean last;
+        synchronized (this) {
+            request = requests.remove(requestID);
+            last = (unregistered && requests.isEmpty());
+        }
+        if (last) {
+            SNMP.finished(this, client);
+        }
+
+        if (request == null) {
+            // Abandoned, so the client has had its callback
+            return false;
+        }
+
+        SNMP.window.release();
+        if (request.sentAt == 0) {
+            // Never sent
+        }
+        else if (pdu != null) {
+            double rtt = (System.nanoTime() - request.sentAt) / 1e6;
+            SNMP.rtt.sample(request.address, rtt);
+            SNMP.getTransport().reportSuccess(request.address);
+        }
+        else {
+            SNMP.rtt.timedOut(request.address);
+            SNMP.getTransport().reportFailure(request.address);
+        }
+
+        return client.callback(session, pdu, requestID);
+    }
+
+    @Override
+    public void debugPrint(String debugOutput)
+    {
+        client.debugPrint(debugOutput);
+    }
+}
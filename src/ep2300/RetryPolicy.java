@@ -0,0 +1,115 @@
+package ep2300;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides if and when failed requests are retried. Retries are delayed
+ * with a capped exponential backoff, each request is retried a limited
+ * number of times, and there is a budget of retries per cycle that all
+ * requests share. This way a router that keeps failing can't cause a storm
+ * of retries.
+ */
+public class RetryPolicy
+{
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+
+    private final AtomicInteger budget = new AtomicInteger();
+    private final AtomicInteger retries = new AtomicInteger();
+    private final AtomicInteger giveUps = new AtomicInteger();
+
+    /**
+     * Create a new retry policy
+     *
+     * @param maxAttempts The number of times each request may be retried
+     * @param baseDelay The delay before the first retry, in milliseconds
+     * @param maxDelay The maximum delay before a retry, in milliseconds
+     * @param budget The number of retries in the first cycle
+     */
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay,
+            int budget)
+    {
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.budget.set(budget);
+    }
+
+    /**
+     * Starts a new cycle, with a new budget of retries
+     *
+     * @param budget The number of retries in the cycle
+     */
+    public void newCycle(int budget)
+    {
+        this.budget.set(budget);
+    }
+
+    /**
+     * Schedules a retry of a request, unless the request has been retried
+     * too many times already or the budget is used up.
+     *
+     * @param attempt The number of times the request has been retried
+     * @param retry What to do to retry the request
+     * @return True if the retry was scheduled, false if we gave up
+     */
+    public boolean retry(int attempt, Runnable retry)
+    {
+        long delay = nextDelay(attempt);
+        if (delay < 0) {
+            return false;
+        }
+
+        // The retry sends a request, which may block
+        Timers.later(retry, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Decides if a request is retried, for callers that wait for the retry
+     * themselves instead of scheduling it. The retry counts against the
+     * budget.
+     *
+     * @param attempt The number of times the request has been retried
+     * @return The time to wait before retrying in milliseconds, or -1 if
+     *         we gave up
+     */
+    public long nextDelay(int attempt)
+    {
+        if (attempt >= maxAttempts || budget.decrementAndGet() < 0) {
+            giveUps.incrementAndGet();
+            return -1;
+        }
+
+        retries.incrementAndGet();
+        return Math.min(maxDelay, baseDelay << Math.min(attempt, 30));
+    }
+
+    /**
+     * Get the number of retries that have been scheduled
+     *
+     * @return The number of retries
+     */
+    public int getRetries()
+    {
+        return retries.get();
+    }
+
+    /**
+     * Get the number of requests that were given up on
+     *
+     * @return The number of requests given up on
+     */
+    public int getGiveUps()
+    {
+        return giveUps.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return retries.get() + " retries, " + giveUps.get() + " given up";
+    }
+}
@@ -1,9 +1,12 @@
 package ep2300;
 
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+
+import com.adventnet.snmp.snmp2.SnmpOID;
 
 /**
  * A simple router description
@@ -14,24 +17,52 @@ public class Router implements Comparable<Router>
     private String description;
 
     /**
-     * The interfaces connected to this router
+     * The IPv4 addresses of the next hops (neighbors) of this router, as
+     * ints. This and addresses are replaced instead of changed, so they can
+     * be read without locking while the discovery adds to them.
+     */
+    private volatile int[] nextHops = new int[0];
+
+    /**
+     * The inbound octets over time, of all interfaces together
+     */
+    public final Series octets = new Series();
+
+    /**
+     * The inbound packets over time, of all interfaces together
+     */
+    public final Series packets = new Series();
+
+    /**
+     * The IPv4 addresses of the interfaces of this router, as ints
      */
-    public Set<String> nextHops;
+    private volatile int[] addresses = new int[0];
+
+    // The id of the router in its Topology, see TopologyIndex
+    private int id = -1;
 
     /**
-     * A list of inbound octets over time
+     * The values over time of all polled counters, by column OID. The
+     * octets and packets series are also in here, as both the ifTable and
+     * the 64 bit ifXTable columns, so only one of those should be polled.
+     *
+     * The values are totals of all interfaces that only grow. They start at
+     * the sum of the counters of the first sample, and then the changes of
+     * the counters of each interface are added (see CounterDeltas), so they
+     * don't jump when the counter of an interface wraps or is reset.
      */
-    public List<Long> octets = new LinkedList<Long>();
+    private Map<String, Series> counters = new HashMap<String, Series>();
 
     /**
-     * A list of inbound packets over time
+     * The last values of the counters of each interface, by column OID
      */
-    public List<Long> packets = new LinkedList<Long>();
+    private Map<String, CounterDeltas> deltas = new HashMap<String, CounterDeltas>();
 
     /**
-     * Containing all the IPs to this router.
+     * The poll cycle (epoch) of each sample in the counters, and when it
+     * was taken, from System.nanoTime()
      */
-    public Set<String> ips = new HashSet<String>();
+    private final Series epochs = new Series();
 
     /**
      * Create a new router
@@ -40,8 +71,106 @@ public class Router implements Comparable<Router>
      */
     public Router(String sysName)
     {
-        nextHops = new HashSet<String>();
         this.sysName = sysName;
+        counters.put(SNMP.inOctetsOID.toString(), octets);
+        counters.put(SNMP.inPacketsOID.toString(), packets);
+        counters.put(SNMP.hcInOctetsOID.toString(), octets);
+        counters.put(SNMP.hcInPacketsOID.toString(), packets);
+    }
+
+    /**
+     * Get the values over time of a polled counter
+     * 
+     * @param column The OID of the counter column
+     * @return The values over time, with the times from System.nanoTime()
+     */
+    public synchronized Series getCounter(SnmpOID column)
+    {
+        Series values = counters.get(column.toString());
+        if (values == null) {
+            values = new Series();
+            counters.put(column.toString(), values);
+        }
+        return values;
+    }
+
+    /**
+     * Add a sample of the values of some polled counters
+     * 
+     * @param epoch The poll cycle the sample was taken in
+     * @param time When the sample was taken, from System.nanoTime()
+     * @param columns The OIDs of the counter columns
+     * @param rows The ifIndex of each interface. It must not be changed
+     *            afterwards.
+     * @param values The values of the counters, by column and then by
+     *            interface. They must not be changed afterwards either.
+     * @param wide Which columns are Counter64s
+     */
+    public synchronized void addSample(int epoch, long time,
+            SnmpOID[] columns, int[] rows, long[] values, boolean[] wide)
+    {
+        epochs.add(time, epoch);
+        for (int c = 0; c < columns.length; c++) {
+            CounterDeltas column = deltas.get(columns[c].toString());
+            if (column == null) {
+                column = new CounterDeltas();
+                deltas.put(columns[c].toString(), column);
+            }
+            boolean first = !column.hasSample();
+            int start = c * rows.length;
+            long change = column.update(rows, values, start, wide[c]);
+
+            Series counter = getCounter(columns[c]);
+            long total;
+            if (!first && counter.size() > 0) {
+                total = counter.getLast() + change;
+            }
+            else {
+                total = 0;
+                for (int r = 0; r < rows.length; r++) {
+                    total += values[start + r];
+                }
+            }
+            counter.add(time, total);
+        }
+    }
+
+    /**
+     * Check if the last two samples are from the specified poll cycle and
+     * the one before it, so the difference between them is the change
+     * during that cycle.
+     * 
+     * @param epoch The poll cycle
+     * @return True if there are samples from both cycles
+     */
+    public synchronized boolean hasSamplesUntil(int epoch)
+    {
+        int size = epochs.size();
+        return size >= 2 && epochs.getLast() == epoch
+                && epochs.getLastDelta() == 1;
+    }
+
+    /**
+     * Get the time between the last two samples
+     * 
+     * @return The time in milliseconds, or 0 if there are less than two
+     *         samples
+     */
+    public synchronized double getLastSampleInterval()
+    {
+        return epochs.getLastInterval() / 1e6;
+    }
+
+    /**
+     * Clear the values of all polled counters
+     */
+    public synchronized void clearCounters()
+    {
+        for (Series values : counters.values()) {
+            values.clear();
+        }
+        epochs.clear();
+        deltas.clear();
     }
 
     /**
@@ -81,17 +210,167 @@ public class Router implements Comparable<Router>
      */
     public String getIP()
     {
-        return ips.iterator().next();
+        return IPv4.toString(addresses[0]);
     }
 
     /**
      * Add an IP to this router
      * 
      * @param ip The IP to add
+     * @throws IllegalArgumentException If it's not an IPv4 address
      */
     public void addIP(String ip)
     {
-        ips.add(ip);
+        addIP(IPv4.parse(ip));
+    }
+
+    /**
+     * Add an IPv4 address to this router
+     * 
+     * @param ip The address as an int
+     */
+    public synchronized void addIP(int ip)
+    {
+        if (!contains(addresses, ip)) {
+            int[] added = Arrays.copyOf(addresses, addresses.length + 1);
+            added[addresses.length] = ip;
+            addresses = added;
+        }
+    }
+
+    /**
+     * Check if an address belongs to this router
+     * 
+     * @param ip The address as an int
+     * @return True if it's an address of this router
+     */
+    public boolean hasIP(int ip)
+    {
+        return contains(addresses, ip);
+    }
+
+    /**
+     * Check if an address belongs to this router
+     * 
+     * @param ip The address
+     * @return True if it's an address of this router
+     */
+    public boolean hasIP(String ip)
+    {
+        try {
+            return hasIP(IPv4.parse(ip));
+        }
+        catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the addresses of this router
+     * 
+     * @return The addresses as ints, in the order they were added. The
+     *         array must not be changed.
+     */
+    public int[] getAddresses()
+    {
+        return addresses;
+    }
+
+    /**
+     * Get the addresses of this router
+     * 
+     * @return A new list of the addresses in dotted notation
+     */
+    public List<String> getIPs()
+    {
+        return toStrings(addresses);
+    }
+
+    /**
+     * Get the addresses of the next hops (neighbors) of this router
+     * 
+     * @return The addresses as ints. The array must not be changed.
+     */
+    public int[] getNextHopAddresses()
+    {
+        return nextHops;
+    }
+
+    /**
+     * Get the addresses of the next hops (neighbors) of this router
+     * 
+     * @return A new list of the addresses in dotted notation
+     */
+    public List<String> getNextHops()
+    {
+        return toStrings(nextHops);
+    }
+
+    /**
+     * Add a next hop to this router
+     * 
+     * @param ip The address of the next hop
+     * @throws IllegalArgumentException If it's not an IPv4 address
+     */
+    public synchronized void addNextHop(String ip)
+    {
+        int hop = IPv4.parse(ip);
+        if (!contains(nextHops, hop)) {
+            int[] added = Arrays.copyOf(nextHops, nextHops.length + 1);
+            added[nextHops.length] = hop;
+            nextHops = added;
+        }
+    }
+
+    /**
+     * Replace the next hops of this router, after a walk of its routing
+     * table
+     * 
+     * @param hops The addresses of the next hops, without duplicates. The
+     *            array must not be changed afterwards.
+     */
+    public synchronized void setNextHops(int[] hops)
+    {
+        nextHops = hops;
+    }
+
+    /**
+     * Get the id of the router in its topology
+     * 
+     * @return The id, or -1 if it's not in a topology
+     */
+    int getId()
+    {
+        return id;
+    }
+
+    /**
+     * Set the id of the router in its topology
+     * 
+     * @param id The id
+     */
+    void setId(int id)
+    {
+        this.id = id;
+    }
+
+    private static boolean contains(int[] array, int value)
+    {
+        for (int element : array) {
+            if (element == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> toStrings(int[] ips)
+    {
+        List<String> strings = new ArrayList<String>(ips.length);
+        for (int ip : ips) {
+            strings.add(IPv4.toString(ip));
+        }
+        return strings;
     }
 
     @Override
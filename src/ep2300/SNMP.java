@@ -1,11 +1,20 @@
 package ep2300;
 
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import com.adventnet.snmp.snmp2.SnmpAPI;
 import com.adventnet.snmp.snmp2.SnmpClient;
-import com.adventnet.snmp.snmp2.SnmpException;
+import com.adventnet.snmp.snmp2.SnmpCounter64;
 import com.adventnet.snmp.snmp2.SnmpOID;
 import com.adventnet.snmp.snmp2.SnmpPDU;
 import com.adventnet.snmp.snmp2.SnmpSession;
+import com.adventnet.snmp.snmp2.SnmpUnsignedInt;
+import com.adventnet.snmp.snmp2.SnmpVar;
 
 /**
  * A simple class containing constants and general functions regarding SNMP.
@@ -21,11 +30,45 @@ public class SNMP
      */
     public static final SnmpOID ipRouteNextHop = new SnmpOID(
             ".1.3.6.1.2.1.4.21.1.7");
+    /**
+     * OID for the addresses of the interfaces of a router (ipAdEntAddr)
+     */
+    public static final SnmpOID ipAdEntAddr = new SnmpOID(
+            ".1.3.6.1.2.1.4.20.1.1");
+    /**
+     * OID for the number of routes of a router (ipCidrRouteNumber), which
+     * is used to see if the routing table has changed
+     */
+    public static final SnmpOID ipCidrRouteNumber = new SnmpOID(
+            ".1.3.6.1.2.1.4.24.3");
     /**
      * A description of the system
      */
     public static final SnmpOID sysDescr = new SnmpOID(".1.3.6.1.2.1.1.1");
 
+    /**
+     * The interfaces group, which contains ifNumber and the ifTable
+     */
+    public static final SnmpOID interfaces = new SnmpOID(".1.3.6.1.2.1.2");
+
+    /**
+     * The IF-MIB, which contains the ifXTable
+     */
+    public static final SnmpOID ifMIB = new SnmpOID(".1.3.6.1.2.1.31");
+
+    // The prefixes that responses are checked against, compiled once so
+    // that only the OIDs of the responses are converted
+    static final OIDPrefix sysNamePrefix = new OIDPrefix(sysName);
+    static final OIDPrefix ipCidrRouteNumberPrefix = new OIDPrefix(
+            ipCidrRouteNumber);
+    static final OIDPrefix interfacesPrefix = new OIDPrefix(interfaces);
+    static final OIDPrefix ifMIBPrefix = new OIDPrefix(ifMIB);
+
+    /**
+     * The number of interfaces (rows in the ifTable)
+     */
+    public static final SnmpOID ifNumber = new SnmpOID(".1.3.6.1.2.1.2.1.0");
+
     /**
      * The total amount of octets inbound
      */
@@ -38,6 +81,44 @@ public class SNMP
     public static final SnmpOID inPacketsOID = new SnmpOID(
             ".1.3.6.1.2.1.2.2.1.11");
 
+    /**
+     * The total amount of octets inbound, as a 64 bit counter
+     * (ifHCInOctets in the ifXTable)
+     */
+    public static final SnmpOID hcInOctetsOID = new SnmpOID(
+            ".1.3.6.1.2.1.31.1.1.1.6");
+
+    /**
+     * The total amount of packets inbound, as a 64 bit counter
+     * (ifHCInUcastPkts in the ifXTable)
+     */
+    public static final SnmpOID hcInPacketsOID = new SnmpOID(
+            ".1.3.6.1.2.1.31.1.1.1.7");
+
+    /**
+     * The number of inbound packets that were discarded
+     */
+    public static final SnmpOID inDiscardsOID = new SnmpOID(
+            ".1.3.6.1.2.1.2.2.1.13");
+
+    /**
+     * The number of inbound packets that contained errors
+     */
+    public static final SnmpOID inErrorsOID = new SnmpOID(
+            ".1.3.6.1.2.1.2.2.1.14");
+
+    /**
+     * The total amount of octets outbound
+     */
+    public static final SnmpOID outOctetsOID = new SnmpOID(
+            ".1.3.6.1.2.1.2.2.1.16");
+
+    /**
+     * The total amount of packets outbound
+     */
+    public static final SnmpOID outPacketsOID = new SnmpOID(
+            ".1.3.6.1.2.1.2.2.1.17");
+
     /**
      * Error OID
      */
@@ -45,10 +126,47 @@ public class SNMP
             ".1.3.6.1.6.3.15.1.1.2.0");
 
     /**
-     * The number of responses in each query.
+     * The number of responses in each query, when nothing is known about the
+     * size of the table.
      */
     public static final int numPerResponse = 30;
 
+    /**
+     * Chooses the number of responses in each query, for each router and
+     * table.
+     */
+    public static final RepetitionSizer repetitions = new RepetitionSizer();
+
+    /**
+     * Estimates the round-trip times to the routers, which decide the
+     * timeouts of the requests.
+     */
+    public static final RTTEstimator rtt = new RTTEstimator(100, 5000);
+
+    /**
+     * Limits the number of requests in flight over all sessions. The size
+     * can be set with the system property ep2300.window.
+     */
+    public static final SendWindow window = new SendWindow(Integer.getInteger(
+            "ep2300.window", 100));
+
+    private static final AtomicInteger requestIDs = new AtomicInteger();
+
+    /**
+     * The transport that sends the requests. The NIO transport is used if
+     * the system property ep2300.transport is "nio".
+     */
+    private static volatile SNMPTransport transport = ("nio".equals(System
+            .getProperty("ep2300.transport")) ? new NIOTransport(
+            SNMPConnection.username, SNMPConnection.password)
+            : new AdventNetTransport());
+
+    /**
+     * The trackers of the clients, which are registered with the sessions
+     * instead of the clients themselves.
+     */
+    private static final Map<SnmpClient, RequestTracker> trackers = new IdentityHashMap<SnmpClient, RequestTracker>();
+
     /**
      * Send a list of OIDs to a router and register the defined client with that
      * SnmpSession
@@ -56,57 +174,236 @@ public class SNMP
      * @param ip The IP of the SNMP target
      * @param client The client to receive the callback
      * @param oids The OIDs to send
-     * @return The number of tries before success
+     * @return The request ID
      */
     public static int sendOID(String ip, SnmpClient client, SnmpOID... oids)
     {
-        int requests = 0;
-        SnmpSession session = null;
-        int id = -1;
-        try {
-            SNMPConnection.Result res = SNMPConnection.createSession(ip, client); // Begin
-            // here
-            session = res.getSession();
-            id = res.getClientId();
-        }
-        catch (SnmpException e) {
-            System.err.println("Could not start session to ip " + ip + ": "
-                    + e.getMessage());
-            // e.printStackTrace();
+        return sendOID(ip, client, numPerResponse, oids);
+    }
+
+    /**
+     * Send a list of OIDs to a router in a GETBULK request with the specified
+     * max-repetitions, and register the defined client with that SnmpSession
+     * 
+     * @param ip The IP of the SNMP target
+     * @param client The client to receive the callback
+     * @param maxRepetitions The number of responses to ask for
+     * @param oids The OIDs to send
+     * @return The request ID
+     */
+    public static int sendOID(String ip, SnmpClient client,
+            int maxRepetitions, SnmpOID... oids)
+    {
+        SnmpPDU pdu = new SnmpPDU();
+        pdu.setCommand(SnmpAPI.GETBULK_REQ_MSG);
+        pdu.setMaxRepetitions(maxRepetitions);
+
+        for (SnmpOID oid : oids) {
+            pdu.addNull(oid);
         }
-        if (session != null) { // Should always happen
-            // int id = session.addSnmpClientWithID(client);
-            SnmpPDU pdu = new SnmpPDU();
-            pdu.setCommand(SnmpAPI.GETBULK_REQ_MSG);
-            pdu.setClientID(id);
 
-            pdu.setMaxRepetitions(numPerResponse);
+        return send(ip, client, pdu);
+    }
 
-            for (SnmpOID oid : oids) {
-                pdu.addNull(oid);
+    /**
+     * Returns a new request ID. Clients that need to know the ID of a request
+     * before its response arrives can set it in the PDU with
+     * SnmpPDU.setRequestID() before sending.
+     * 
+     * @return A unique request ID
+     */
+    public static int newRequestID()
+    {
+        return (requestIDs.incrementAndGet() & 0x3fffffff) + 1;
+    }
+
+    /**
+     * Send a PDU to a router and register the defined client with that
+     * SnmpSession. The timeout of the request is chosen from the estimated
+     * round-trip time to the router. The request is not retried if it times
+     * out, instead the client gets a callback with a null PDU.
+     * 
+     * The request is sent when the send window allows it, which might be
+     * after this method has returned. The client gets exactly one callback
+     * for every request. If the request couldn't be sent, that is a callback
+     * with a null PDU and a null session, as for a timeout.
+     * 
+     * @param ip The IP of the SNMP target
+     * @param client The client to receive the callback
+     * @param pdu The PDU to send. If it has no request ID, a new one is set.
+     * @return The request ID of the PDU
+     */
+    public static int send(final String ip, SnmpClient client,
+            final SnmpPDU pdu)
+    {
+        if (pdu.getRequestID() == 0) {
+            pdu.setRequestID(newRequestID());
+        }
+        final int requestID = pdu.getRequestID();
+
+        final RequestTracker tracker;
+        synchronized (trackers) {
+            tracker = getTracker(client);
+            tracker.submitted(requestID, ip);
+        }
+        window.submit(new Runnable() {
+            @Override
+            public void run()
+            {
+                if (!dispatch(ip, tracker, pdu)) {
+                    tracker.failed(requestID);
+                }
             }
-            try {
-                requests++;
-                session.send(pdu);
+        });
+        return requestID;
+    }
+
+    /**
+     * Actually sends a PDU
+     * 
+     * @return True if the PDU was sent
+     */
+    private static boolean dispatch(String ip, RequestTracker tracker,
+            SnmpPDU pdu)
+    {
+        tracker.sent(pdu.getRequestID());
+        return transport.send(ip, tracker, pdu, rtt.getTimeout(ip));
+    }
+
+    /**
+     * Stop passing responses from a session to a client. The tracker of the
+     * client is dropped once it has no requests left, unless the client
+     * sends again before that.
+     * 
+     * @param session The session, or null if the transport doesn't use
+     *            sessions
+     * @param client The client
+     */
+    public static void unregister(SnmpSession session, SnmpClient client)
+    {
+        RequestTracker tracker;
+        synchronized (trackers) {
+            tracker = trackers.get(client);
+            if (tracker != null && tracker.unregister()) {
+                trackers.remove(client);
             }
-            catch (SnmpException e) {
-                e.printStackTrace();
+        }
+        if (session != null && tracker != null) {
+            session.removeSnmpClient(tracker);
+        }
+    }
+
+    /**
+     * Drops a tracker whose client has been unregistered, when its last
+     * request has finished
+     * 
+     * @param tracker The tracker
+     * @param client The client of the tracker
+     */
+    static void finished(RequestTracker tracker, SnmpClient client)
+    {
+        synchronized (trackers) {
+            if (trackers.get(client) == tracker && tracker.isDone()) {
+                trackers.remove(client);
             }
         }
-        return requests;
     }
 
     /**
-     * Checks whether oid starts with prefix. For example:
+     * Reports that the router at the address did not accept a request,
+     * because it was not in the time window.
      * 
-     * samePrefix("1.2.1", "1.2") == true
-     * samePrefix("1.3", "1.2") == false
-     * samePrefix("1.2", "1.2") == true
+     * @param ip The IP of the router
      */
-    static boolean samePrefix(SnmpOID oid, SnmpOID prefix)
+    public static void reportNotInTimeWindow(String ip)
     {
-        String os = oid.toString() + ".";
-        String ps = prefix.toString() + ".";
-        return os.startsWith(ps);
+        transport.reportNotInTimeWindow(ip);
+    }
+
+    /**
+     * Get the transport that sends the requests
+     * 
+     * @return The transport
+     */
+    public static SNMPTransport getTransport()
+    {
+        return transport;
+    }
+
+    /**
+     * Set the transport that sends the requests. This should be done before
+     * anything is sent.
+     * 
+     * @param transport The new transport
+     */
+    public static void setTransport(SNMPTransport transport)
+    {
+        SNMP.transport = transport;
+    }
+
+    /**
+     * Close the transport, for instance all sessions and the API.
+     */
+    public static void close()
+    {
+        long closed = System.nanoTime();
+        transport.close();
+        abandon(null, closed);
+    }
+
+    /**
+     * Gives up on the requests to an address that were sent before a time,
+     * through a session that has been closed since. The clients get
+     * callbacks as if they had timed out, and the send window is released.
+     *
+     * @param address The address, or null for all addresses
+     * @param sentBefore When the session was closed, from System.nanoTime()
+     */
+    static void abandon(String address, long sentBefore)
+    {
+        List<RequestTracker> all;
+        synchronized (trackers) {
+            all = new ArrayList<RequestTracker>(trackers.values());
+        }
+        for (RequestTracker tracker : all) {
+            tracker.abandon(address, sentBefore);
+        }
+    }
+
+    /**
+     * Get the tracker of a client, and create it if it doesn't exist
+     */
+    private static RequestTracker getTracker(SnmpClient client)
+    {
+        synchronized (trackers) {
+            RequestTracker tracker = trackers.get(client);
+            if (tracker == null) {
+                tracker = new RequestTracker(client);
+                trackers.put(client, tracker);
+            }
+            return tracker;
+        }
+    }
+
+    /**
+     * Checks whether a value is a counter (or another unsigned integer)
+     * that counterValue() can read.
+     */
+    static boolean isCounter(SnmpVar var)
+    {
+        return var instanceof SnmpUnsignedInt || var instanceof SnmpCounter64;
+    }
+
+    /**
+     * Get the value of a counter. A Counter64 is returned as the 64 bits of
+     * the long, so values of 2^63 and up are negative, but the difference
+     * between two values is still right.
+     */
+    static long counterValue(SnmpVar var)
+    {
+        if (var instanceof SnmpCounter64) {
+            return ((BigInteger) var.toValue()).longValue();
+        }
+        return ((SnmpUnsignedInt) var).longValue();
     }
 }
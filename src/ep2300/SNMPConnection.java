@@ -1,22 +1,43 @@
 package ep2300;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import com.adventnet.snmp.snmp2.ProtocolOptions;
 import com.adventnet.snmp.snmp2.SnmpAPI;
 import com.adventnet.snmp.snmp2.SnmpClient;
+import com.adventnet.snmp.snmp2.SnmpEngineEntry;
 import com.adventnet.snmp.snmp2.SnmpException;
 import com.adventnet.snmp.snmp2.SnmpSession;
 import com.adventnet.snmp.snmp2.UDPProtocolOptions;
 import com.adventnet.snmp.snmp2.usm.USMUserEntry;
+import com.adventnet.snmp.snmp2.usm.USMUserTable;
 import com.adventnet.snmp.snmp2.usm.USMUtils;
 
 /**
  * Handles the SnmpAPI and the connections to SNMP servers
  * It keeps track of all connections.
+ * 
+ * Sessions are pooled and kept open between poll cycles, so that the USM
+ * discovery in tryCreateSession is only done once per router. Sessions that
+ * repeatedly fail, or that have not been used for a while, are evicted from
+ * the pool and re-created the next time they are needed. close() tears
+ * down the whole pool, after which the API is re-created on demand.
+ * 
+ * The USM parameters of the routers are kept in a USMCache, so that new
+ * sessions (also after a restart, if the system property ep2300.usmcache
+ * names a cache file) can skip the engine discovery and key localization.
+ * 
+ * The routers are spread over several SnmpAPI instances (shards), so that
+ * the callbacks are not all made by the threads of a single API. The
+ * number of shards is set with the system property ep2300.shards, and is
+ * the number of processors by default. Each router is assigned to a shard
+ * by consistent hashing of its address.
  */
 public class SNMPConnection
 {
@@ -56,20 +77,60 @@ public class SNMPConnection
         }
     }
 
-    private static SnmpAPI api = new SnmpAPI();
+    /**
+     * A session in the pool, with the information needed for the health
+     * checks and the idle eviction.
+     */
+    private final static class PooledSession
+    {
+        private final SnmpSession session;
+        private volatile long lastUsed = System.currentTimeMillis();
+        private final AtomicInteger failures = new AtomicInteger();
+
+        private PooledSession(SnmpSession session)
+        {
+            this.session = session;
+        }
+    }
+
+    private static final int numShards = Math.max(1, Integer.getInteger(
+            "ep2300.shards", Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The API of each shard, or null if it has not been created
+     */
+    private static final SnmpAPI[] apis = new SnmpAPI[numShards];
+
+    private static final ConsistentHash<Integer> shards = new ConsistentHash<Integer>(
+            100);
+    static {
+        for (int i = 0; i < numShards; i++) {
+            shards.add(i);
+        }
+    }
 
-    private static Map<String, SnmpSession> sessions = new HashMap<String, SnmpSession>();
+    private static Map<String, PooledSession> sessions = new HashMap<String, PooledSession>();
 
     // Perhaps not the best place for them
-    private static final String username = "2G1332_student";
-    private static final String password = "netmanagement";
+    static final String username = "2G1332_student";
+    static final String password = "netmanagement";
 
     // How many times we should try to connect again
     private static final int numRetries = 2;
 
+    // The USM security model, for looking up the USM user table
+    private static final int usmSecurityModel = 3;
+
+    private static final USMCache usmCache = new USMCache(System
+            .getProperty("ep2300.usmcache"));
+
+    // How many requests in a row may fail before the session is evicted
+    private static final int maxFailures = 3;
+
     // Statistics
     private static AtomicInteger successfulConnections = new AtomicInteger();
     private static AtomicInteger attemptedConnections = new AtomicInteger();
+    private static AtomicInteger evictedSessions = new AtomicInteger();
 
     /**
      * Wrapper around createSession(String, SnmpClient, String, String) with the
@@ -167,9 +228,14 @@ public class SNMPConnection
             if (sessions.containsKey(address)) {
                 // Wait for it to be established
                 while (true) {
-                    SnmpSession existing = sessions.get(address);
+                    PooledSession existing = sessions.get(address);
                     if (existing != null) {
-                        return existing;
+                        existing.lastUsed = System.currentTimeMillis();
+                        return existing.session;
+                    }
+                    else if (!sessions.containsKey(address)) {
+                        // The attempt to connect failed, so try ourselves
+                        break;
                     }
 
                     try {
@@ -179,12 +245,10 @@ public class SNMPConnection
                         // We ignore the error and try again later.
                     }
                 }
-                // not reached
-            }
-            else {
-                // Otherwise, continue and mark this address as "in progress"
-                sessions.put(address, null);
             }
+
+            // Otherwise, continue and mark this address as "in progress"
+            sessions.put(address, null);
         }
 
         int attempt = 0;
@@ -197,7 +261,7 @@ public class SNMPConnection
                 // Success
                 successfulConnections.incrementAndGet();
                 synchronized (sessions) {
-                    sessions.put(address, session);
+                    sessions.put(address, new PooledSession(session));
                     sessions.notifyAll();
                 }
                 return session;
@@ -217,6 +281,40 @@ public class SNMPConnection
         }
     }
 
+    /**
+     * Returns the SnmpAPI of the shard of an address, and creates it if it
+     * has been closed (or has not been created yet).
+     */
+    private static synchronized SnmpAPI getAPI(String address)
+    {
+        int shard = getShard(address);
+        if (apis[shard] == null) {
+            apis[shard] = new SnmpAPI();
+        }
+        return apis[shard];
+    }
+
+    /**
+     * Get the shard that an address is assigned to
+     * 
+     * @param address The address of a router
+     * @return The number of the shard
+     */
+    public static int getShard(String address)
+    {
+        return shards.get(address);
+    }
+
+    /**
+     * Get the number of shards
+     * 
+     * @return The number of shards
+     */
+    public static int getShards()
+    {
+        return numShards;
+    }
+
     /**
      * Tries once to create an SNMPv3 session.
      */
@@ -224,19 +322,30 @@ public class SNMPConnection
             String username, String password) throws SnmpException
     {
 
-        ProtocolOptions protocolOptions = new UDPProtocolOptions(address);
+        UDPProtocolOptions protocolOptions = new UDPProtocolOptions(address);
 
+        SnmpAPI api = getAPI(address);
         SnmpSession session = new SnmpSession(api);
         session.setVersion(SnmpAPI.SNMP_VERSION_3);
         session.setProtocolOptions(protocolOptions);
         session.setUserName(username.getBytes());
-        session.setTimeout(750);
+        session.setTimeout(RTTEstimator.initialTimeout);
+        session.setRetries(0);
         session.open();
 
         boolean success = false;
         try {
-            USMUtils.init_v3_parameters(username, null, USMUserEntry.MD5_AUTH,
-                    password, null, protocolOptions, session, true);
+            USMCache.Entry cached = usmCache.get(address, username);
+            if (cached != null) {
+                // Skip the discovery and the key localization
+                installUSMParameters(api, cached, protocolOptions);
+            }
+            else {
+                USMUtils.init_v3_parameters(username, null,
+                        USMUserEntry.MD5_AUTH, password, null,
+                        protocolOptions, session, true);
+                cacheUSMParameters(api, address, username, protocolOptions);
+            }
 
             success = true;
         }
@@ -250,15 +359,219 @@ public class SNMPConnection
     }
 
     /**
-     * Close all sessions and the API.
+     * Adds the cached engine and user to the tables of the API, as if they
+     * had been discovered by USMUtils.init_v3_parameters().
+     */
+    private static void installUSMParameters(SnmpAPI api,
+            USMCache.Entry cached, UDPProtocolOptions protocolOptions)
+    {
+        SnmpEngineEntry engine = new SnmpEngineEntry(protocolOptions
+                .getRemoteHost(), protocolOptions.getRemotePort());
+        engine.setEngineID(cached.getEngineID());
+        engine.setEngineBoots(cached.getEngineBoots());
+        engine.setEngineTime(cached.getEngineTime());
+        api.getSnmpEngine().addEntry(engine);
+
+        USMUserEntry user = new USMUserEntry(cached.getUsername().getBytes(),
+                cached.getEngineID());
+        user.setAuthProtocol(USMUserEntry.MD5_AUTH);
+        user.setAuthKey(cached.getAuthKey());
+        user.setSecurityLevel(USMUserEntry.AUTH_NO_PRIV);
+        user.setEngineEntry(engine);
+        getUserTable(api).addEntry(user);
+    }
+
+    /**
+     * Stores the engine and user discovered by USMUtils.init_v3_parameters()
+     * in the cache.
+     */
+    private static void cacheUSMParameters(SnmpAPI api, String address,
+            String username, UDPProtocolOptions protocolOptions)
+    {
+        SnmpEngineEntry engine = api.getSnmpEngine().getEntry(
+                protocolOptions.getRemoteHost(),
+                protocolOptions.getRemotePort());
+        if (engine == null || engine.getEngineID() == null) {
+            return;
+        }
+
+        USMUserEntry user = getUserTable(api).getEntry(username.getBytes(),
+                engine.getEngineID());
+        if (user == null || user.getAuthKey() == null) {
+            return;
+        }
+
+        usmCache.put(address, engine.getEngineID(), username, user
+                .getAuthKey(), engine.getEngineBoots(), engine
+                .getEngineTime());
+    }
+
+    private static USMUserTable getUserTable(SnmpAPI api)
+    {
+        return (USMUserTable) api.getSecurityProvider().getTable(
+                usmSecurityModel);
+    }
+
+    /**
+     * Reports that the router at the address did not accept a request,
+     * because it was not in the time window. The API has then learned the
+     * current engineBoots and engineTime of the router from the report,
+     * and these are stored in the cache.
+     * 
+     * @param address The address of the router
+     */
+    public static void reportNotInTimeWindow(String address)
+    {
+        UDPProtocolOptions protocolOptions = new UDPProtocolOptions(address);
+        SnmpEngineEntry engine = getAPI(address).getSnmpEngine().getEntry(
+                protocolOptions.getRemoteHost(),
+                protocolOptions.getRemotePort());
+        if (engine != null) {
+            usmCache.updateTime(address, engine.getEngineBoots(), engine
+                    .getEngineTime());
+        }
+    }
+
+    /**
+     * Reports that a request to the address got a response. This marks the
+     * session as healthy again.
+     * 
+     * @param address The address of the router
+     */
+    public static void reportSuccess(String address)
+    {
+        PooledSession pooled;
+        synchronized (sessions) {
+            pooled = sessions.get(address);
+        }
+        if (pooled != null) {
+            pooled.failures.set(0);
+        }
+    }
+
+    /**
+     * Reports that a request to the address failed, for instance because it
+     * timed out. If too many requests fail in a row, the session is closed
+     * and a new one will be created (and the USM parameters discovered
+     * again) the next time the address is used.
+     * 
+     * @param address The address of the router
+     */
+    public static void reportFailure(String address)
+    {
+        PooledSession pooled;
+        synchronized (sessions) {
+            pooled = sessions.get(address);
+            if (pooled == null
+                    || pooled.failures.incrementAndGet() < maxFailures) {
+                return;
+            }
+            sessions.remove(address);
+        }
+        System.err.println("Evicting unhealthy session to " + address);
+        evictedSessions.incrementAndGet();
+        // The cached key might be what is wrong
+        usmCache.invalidate(address);
+        long closed = System.nanoTime();
+        pooled.session.close();
+        SNMP.abandon(address, closed);
+    }
+
+    /**
+     * Close the sessions that have not been used for maxIdle milliseconds.
+     * 
+     * @param maxIdle The maximum idle time, in milliseconds
+     * @return The number of sessions that were closed
+     */
+    public static int evictIdle(long maxIdle)
+    {
+        long now = System.currentTimeMillis();
+        Map<String, PooledSession> idle = new HashMap<String, PooledSession>();
+        synchronized (sessions) {
+            Iterator<Map.Entry<String, PooledSession>> it = sessions
+                    .entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, PooledSession> entry = it.next();
+                PooledSession pooled = entry.getValue();
+                if (pooled != null && now - pooled.lastUsed > maxIdle) {
+                    idle.put(entry.getKey(), pooled);
+                    it.remove();
+                }
+            }
+        }
+
+        for (Map.Entry<String, PooledSession> entry : idle.entrySet()) {
+            long closed = System.nanoTime();
+            entry.getValue().session.close();
+            // Requests that were still waiting get no callback now
+            SNMP.abandon(entry.getKey(), closed);
+        }
+        evictedSessions.addAndGet(idle.size());
+        return idle.size();
+    }
+
+    /**
+     * Close all sessions and the APIs. The APIs are re-created if new
+     * sessions are created after this. The USM cache is saved, if it has a
+     * file.
      */
     public static void close()
     {
-        for (SnmpSession session : sessions.values()) {
-            session.close();
+        try {
+            usmCache.save();
+        }
+        catch (IOException e) {
+            System.err.println("Could not save the USM cache: "
+                    + e.getMessage());
+        }
+
+        synchronized (sessions) {
+            for (PooledSession pooled : sessions.values()) {
+                if (pooled != null) {
+                    pooled.session.close();
+                }
+            }
+            sessions.clear();
+            sessions.notifyAll();
+        }
+
+        synchronized (SNMPConnection.class) {
+            for (int i = 0; i < apis.length; i++) {
+                if (apis[i] != null) {
+                    apis[i].close();
+                    apis[i] = null;
+                }
+            }
         }
-        sessions.clear();
-        api.close();
+    }
+
+    /**
+     * Get the number of sessions in the pool
+     * 
+     * @return The number of open sessions
+     */
+    public static int getOpenSessions()
+    {
+        int open = 0;
+        synchronized (sessions) {
+            for (PooledSession pooled : sessions.values()) {
+                if (pooled != null) {
+                    open++;
+                }
+            }
+        }
+        return open;
+    }
+
+    /**
+     * Get the number of sessions that have been evicted from the pool,
+     * because they were idle or unhealthy.
+     * 
+     * @return The number of evicted sessions
+     */
+    public static int getEvictedSessions()
+    {
+        return evictedSessions.get();
     }
 
     /**
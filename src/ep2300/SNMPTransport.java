@@ -0,0 +1,66 @@
+package ep2300;
+
+import com.adventnet.snmp.snmp2.SnmpClient;
+import com.adventnet.snmp.snmp2.SnmpPDU;
+
+/**
+ * Sends SNMP requests and delivers the responses. SNMP.send() uses a
+ * transport for the actual I/O, so that it can be replaced, for instance by
+ * a simulated network.
+ * 
+ * The responses are delivered through the SnmpClient callback. The session
+ * passed to the callback may be null if the transport doesn't use
+ * SnmpSessions, so the clients must not depend on it.
+ */
+public interface SNMPTransport
+{
+    /**
+     * Sends a request. If this returns true, the client gets exactly one
+     * callback with the request ID of the PDU: with the response, or with
+     * a null PDU if the request timed out.
+     * 
+     * @param address The address of the router
+     * @param client The client to receive the callback
+     * @param pdu The request, with the request ID set
+     * @param timeout The timeout of the request, in milliseconds
+     * @return True if the request was sent, false if there will be no
+     *         callback
+     */
+    boolean send(String address, SnmpClient client, SnmpPDU pdu, int timeout);
+
+    /**
+     * Reports that a request to the address got a response.
+     * 
+     * @param address The address of the router
+     */
+    void reportSuccess(String address);
+
+    /**
+     * Reports that a request to the address timed out.
+     * 
+     * @param address The address of the router
+     */
+    void reportFailure(String address);
+
+    /**
+     * Reports that the router at the address did not accept a request,
+     * because it was not in the time window.
+     * 
+     * @param address The address of the router
+     */
+    void reportNotInTimeWindow(String address);
+
+    /**
+     * Frees the resources used for routers that have not been used for
+     * some time.
+     * 
+     * @param maxIdle The maximum idle time, in milliseconds
+     */
+    void evictIdle(long maxIdle);
+
+    /**
+     * Frees all resources. The transport can still be used after this, but
+     * the resources have to be set up again.
+     */
+    void close();
+}
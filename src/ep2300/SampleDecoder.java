@@ -0,0 +1,169 @@
+package ep2300;
+
+/**
+ * Reads the samples written by a SampleEncoder, one at a time and without
+ * allocating anything.
+ */
+final class SampleDecoder
+{
+    private final boolean doubles;
+    private byte[] buf;
+    private int position;
+    private int end;
+    private int left;
+
+    private long time = 0;
+    private long timeDelta = 0;
+    private long value = 0;
+    private long valueDelta = 0;
+    private boolean first = true;
+
+    /**
+     * Create a decoder of some encoded samples
+     *
+     * @param buf The encoded samples
+     * @param offset Where they start in buf
+     * @param length The number of bytes
+     * @param count The number of samples
+     * @param doubles True if the values are the bits of doubles
+     */
+    SampleDecoder(byte[] buf, int offset, int length, int count,
+            boolean doubles)
+    {
+        this.doubles = doubles;
+        reset(buf, offset, length, count);
+    }
+
+    /**
+     * Create a decoder of the samples of an encoder
+     *
+     * @param encoder The encoder. Samples that are added to it later are
+     *            not decoded.
+     */
+    SampleDecoder(SampleEncoder encoder)
+    {
+        this(encoder.getBuffer(), 0, encoder.length(), encoder.size(),
+                encoder.hasDoubles());
+    }
+
+    /**
+     * Start decoding other samples, of the same kind
+     *
+     * @param buf The encoded samples
+     * @param offset Where they start in buf
+     * @param length The number of bytes
+     * @param count The number of samples
+     */
+    void reset(byte[] buf, int offset, int length, int count)
+    {
+        this.buf = buf;
+        position = offset;
+        end = offset + length;
+        left = count;
+        time = 0;
+        timeDelta = 0;
+        value = 0;
+        valueDelta = 0;
+        first = true;
+    }
+
+    /**
+     * Decode the next sample
+     *
+     * @return True if there was a sample, false at the end
+     * @throws IllegalStateException If the samples are corrupt
+     */
+    boolean next()
+    {
+        if (left == 0) {
+            return false;
+        }
+
+        long delta = timeDelta + readSigned();
+        time += delta;
+        if (doubles) {
+            value ^= readXOR();
+        }
+        else {
+            long change = valueDelta + readSigned();
+            value += change;
+            valueDelta = (first ? 0 : change);
+        }
+        timeDelta = (first ? 0 : delta);
+        first = false;
+        left--;
+        return true;
+    }
+
+    /**
+     * Get the time of the current sample
+     *
+     * @return The time
+     */
+    long getTime()
+    {
+        return time;
+    }
+
+    /**
+     * Get the value of the current sample
+     *
+     * @return The value
+     */
+    long getValue()
+    {
+        return value;
+    }
+
+    /**
+     * Get the value of the current sample as a double
+     *
+     * @return The value
+     */
+    double getDouble()
+    {
+        return Double.longBitsToDouble(value);
+    }
+
+    private long readSigned()
+    {
+        long zigzag = readUnsigned();
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private long readUnsigned()
+    {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = read();
+            result |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IllegalStateException("Corrupt samples: too long varint");
+    }
+
+    private long readXOR()
+    {
+        int control = read() & 0xff;
+        if (control == 0) {
+            return 0;
+        }
+        int leading = (control - 1) / 8;
+        int trailing = (control - 1) % 8;
+        long xor = 0;
+        for (int i = 7 - leading; i >= trailing; i--) {
+            xor |= (long) (read() & 0xff) << (i * 8);
+        }
+        return xor;
+    }
+
+    private byte read()
+    {
+        if (position >= end) {
+            throw new IllegalStateException("Corrupt samples: truncated");
+        }
+        return buf[position++];
+    }
+}
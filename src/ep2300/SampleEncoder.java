@@ -0,0 +1,180 @@
+package ep2300;
+
+import java.util.Arrays;
+
+/**
+ * Compresses a series of (time, value) samples into bytes, in the way of
+ * Facebook's Gorilla, but aligned to bytes. SampleDecoder reads them back.
+ *
+ * The times are stored as the change of the time between samples (the
+ * delta of the delta), which is 0 for samples at a fixed interval. Counter
+ * values are stored in the same way, so a counter that grows at a steady
+ * rate also takes little space. Both are zigzag encoded varints, so small
+ * negative numbers are short too.
+ *
+ * Doubles (as Double.doubleToRawLongBits()) are instead stored as the XOR
+ * with the previous value: a zero byte if it's the same, or otherwise a
+ * byte with the number of leading and trailing zero bytes of the XOR,
+ * followed by the bytes in between.
+ *
+ * The first sample is stored as it is, with the same encodings.
+ */
+final class SampleEncoder
+{
+    private final boolean doubles;
+
+    private byte[] buf;
+    private int length = 0;
+    private int count = 0;
+
+    private long lastTime = 0;
+    private long lastTimeDelta = 0;
+    private long lastValue = 0;
+    private long lastValueDelta = 0;
+
+    /**
+     * Create an empty encoder
+     *
+     * @param doubles True if the values are the bits of doubles, false if
+     *            they are counters or other integers
+     */
+    SampleEncoder(boolean doubles)
+    {
+        this.doubles = doubles;
+        buf = new byte[16];
+    }
+
+    /**
+     * Add a sample
+     *
+     * @param time The time of the sample
+     * @param value The value of the sample
+     */
+    void add(long time, long value)
+    {
+        long timeDelta = time - lastTime;
+        writeSigned(timeDelta - lastTimeDelta);
+
+        if (doubles) {
+            writeXOR(value ^ lastValue);
+        }
+        else {
+            long valueDelta = value - lastValue;
+            writeSigned(valueDelta - lastValueDelta);
+            lastValueDelta = valueDelta;
+        }
+
+        // There is no delta before the first sample
+        lastTimeDelta = (count > 0 ? timeDelta : 0);
+        if (count == 0) {
+            lastValueDelta = 0;
+        }
+        lastTime = time;
+        lastValue = value;
+        count++;
+    }
+
+    /**
+     * Get the number of samples
+     *
+     * @return The number of samples
+     */
+    int size()
+    {
+        return count;
+    }
+
+    /**
+     * Get the number of bytes of the encoded samples
+     *
+     * @return The number of bytes
+     */
+    int length()
+    {
+        return length;
+    }
+
+    /**
+     * Check if the values are doubles
+     *
+     * @return True if the values are the bits of doubles
+     */
+    boolean hasDoubles()
+    {
+        return doubles;
+    }
+
+    /**
+     * Get the encoded samples
+     *
+     * @return The buffer, of which the first length() bytes are used. It's
+     *         replaced when the buffer grows, so it's only valid until the
+     *         next add().
+     */
+    byte[] getBuffer()
+    {
+        return buf;
+    }
+
+    /**
+     * Get a copy of the encoded samples
+     *
+     * @return A new array of length() bytes
+     */
+    byte[] toByteArray()
+    {
+        return Arrays.copyOf(buf, length);
+    }
+
+    /**
+     * Remove all samples. The buffer is kept.
+     */
+    void clear()
+    {
+        length = 0;
+        count = 0;
+        lastTime = 0;
+        lastTimeDelta = 0;
+        lastValue = 0;
+        lastValueDelta = 0;
+    }
+
+    private void writeSigned(long value)
+    {
+        // Zigzag, so that the sign is in the lowest bit
+        writeUnsigned((value << 1) ^ (value >> 63));
+    }
+
+    private void writeUnsigned(long value)
+    {
+        ensure(10);
+        while ((value & ~0x7fL) != 0) {
+            buf[length++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buf[length++] = (byte) value;
+    }
+
+    private void writeXOR(long xor)
+    {
+        ensure(9);
+        if (xor == 0) {
+            buf[length++] = 0;
+            return;
+        }
+
+        int leading = Long.numberOfLeadingZeros(xor) / 8;
+        int trailing = Long.numberOfTrailingZeros(xor) / 8;
+        buf[length++] = (byte) (1 + leading * 8 + trailing);
+        for (int i = 7 - leading; i >= trailing; i--) {
+            buf[length++] = (byte) (xor >>> (i * 8));
+        }
+    }
+
+    private void ensure(int room)
+    {
+        if (length + room > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + room));
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package ep2300;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A memory mapped file of a fixed number of records, stored by column: all
+ * values of the first column, then all values of the second, and so on.
+ * Each column has ints or longs. Records are only appended, by a single
+ * writer, and become visible to readers when they are committed.
+ *
+ * The file is big endian, and looks like this:
+ *
+ * <pre>
+ * int magic ("EPSG"), int version, long start, int capacity,
+ * int numColumns, long committed, numColumns x byte width, padding
+ *                                                   (headerSize bytes)
+ * capacity x value of width bytes                   for each column
+ * </pre>
+ *
+ * where start is the time of the first record, and committed is the number
+ * of records that have been committed. The records after committed may be
+ * half written, and are ignored. Committing writes the new count after the
+ * records, so if the process crashes, the committed records are whole: the
+ * OS still writes the mapped pages back. Only force() makes sure that they
+ * are on the disk, so a crash of the machine can lose what was committed
+ * after the last force().
+ *
+ * Readers map the file themselves, and read the count again to see new
+ * records.
+ */
+final class Segment
+{
+    private static final int magic = 0x45505347;
+    private static final int version = 1;
+
+    private static final int committedOffset = 4 + 4 + 8 + 4 + 4;
+    private static final int widthsOffset = committedOffset + 8;
+    private static final int headerSize = 64;
+
+    /**
+     * The maximum number of columns of a segment
+     */
+    static final int maxColumns = headerSize - widthsOffset;
+
+    private final File file;
+    private final MappedByteBuffer buf;
+    private final long start;
+    private final int capacity;
+    private final int[] widths;
+    private final int[] offsets;
+
+    private Segment(File file, MappedByteBuffer buf) throws IOException
+    {
+        this.file = file;
+        this.buf = buf;
+        if (buf.capacity() < headerSize || buf.getInt(0) != magic) {
+            throw new IOException(file + " is not a segment file");
+        }
+        if (buf.getInt(4) != version) {
+            throw new IOException(file + " has version " + buf.getInt(4)
+                    + ", not " + version);
+        }
+        start = buf.getLong(8);
+        capacity = buf.getInt(16);
+        int numColumns = buf.getInt(20);
+        if (capacity < 0 || numColumns < 0 || numColumns > maxColumns) {
+            throw new IOException(file + " has an invalid header");
+        }
+
+        widths = new int[numColumns];
+        offsets = new int[numColumns];
+        long offset = headerSize;
+        for (int c = 0; c < numColumns; c++) {
+            widths[c] = buf.get(widthsOffset + c);
+            if (widths[c] != 4 && widths[c] != 8) {
+                throw new IOException(file + " has an invalid column width");
+            }
+            offsets[c] = (int) offset;
+            offset += (long) widths[c] * capacity;
+        }
+        if (offset > buf.capacity()) {
+            throw new IOException(file + " is truncated");
+        }
+    }
+
+    /**
+     * Create a new, empty segment
+     *
+     * @param file The file to create. It must not exist.
+     * @param start The time of the first record
+     * @param capacity The number of records
+     * @param widths The width of each column in bytes, 4 or 8
+     * @return The segment, mapped for writing
+     * @throws IOException If the file cannot be created
+     */
+    static Segment create(File file, long start, int capacity, int[] widths)
+            throws IOException
+    {
+        long size = headerSize;
+        for (int width : widths) {
+            size += (long) width * capacity;
+        }
+        if (size > Integer.MAX_VALUE || widths.length > maxColumns) {
+            throw new IllegalArgumentException("Too big segment: "
+                    + capacity + " records of " + widths.length + " columns");
+        }
+
+        if (file.exists()) {
+            throw new IOException(file + " already exists");
+        }
+        // The header is written under another name, so that readers never
+        // see the file without it
+        File temporary = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+        MappedByteBuffer buf;
+        try {
+            // The columns are filled in as records are appended, so the
+            // file is sparse until then
+            raf.setLength(size);
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    size);
+            buf.putInt(0, magic);
+            buf.putInt(4, version);
+            buf.putLong(8, start);
+            buf.putInt(16, capacity);
+            buf.putInt(20, widths.length);
+            buf.putLong(committedOffset, 0);
+            for (int c = 0; c < widths.length; c++) {
+                buf.put(widthsOffset + c, (byte) widths[c]);
+            }
+            buf.force();
+        }
+        finally {
+            raf.close();
+        }
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Cannot rename " + temporary + " to "
+                    + file);
+        }
+        return new Segment(file, buf);
+    }
+
+    /**
+     * Map an existing segment
+     *
+     * @param file The file of the segment
+     * @param writable True to append to it, false to only read it
+     * @return The segment
+     * @throws IOException If the file cannot be read or is not a segment
+     */
+    static Segment open(File file, boolean writable) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw"
+                : "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return new Segment(file, channel.map(
+                    writable ? FileChannel.MapMode.READ_WRITE
+                            : FileChannel.MapMode.READ_ONLY, 0, channel
+                            .size()));
+        }
+        finally {
+            // The mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Get the file of the segment
+     *
+     * @return The file
+     */
+    File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Get the time of the first record
+     *
+     * @return The start time
+     */
+    long getStart()
+    {
+        return start;
+    }
+
+    /**
+     * Get the number of records that fit in the segment
+     *
+     * @return The capacity
+     */
+    int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Get the number of columns
+     *
+     * @return The number of columns
+     */
+    int getColumns()
+    {
+        return widths.length;
+    }
+
+    /**
+     * Get the number of committed records. It's read from the file every
+     * time, so it includes the records committed by another mapping.
+     *
+     * @return The number of records that can be read
+     */
+    int getCommitted()
+    {
+        return (int) Math.min(buf.getLong(committedOffset), capacity);
+    }
+
+    /**
+     * Set the number of committed records. The records must have been
+     * written before.
+     *
+     * @param count The new number of committed records
+     */
+    void commit(int count)
+    {
+        buf.putLong(committedOffset, count);
+    }
+
+    /**
+     * Write the changes of the mapping to the disk, so that they survive a
+     * crash of the machine and not only of the process.
+     */
+    void force()
+    {
+        buf.force();
+    }
+
+    /**
+     * Get a value of an int column
+     *
+     * @param column The column
+     * @param record The record
+     * @return The value
+     */
+    int getInt(int column, int record)
+    {
+        return buf.getInt(offsets[column] + record * 4);
+    }
+
+    /**
+     * Get a value of a long column
+     *
+     * @param column The column
+     * @param record The record
+     * @return The value
+     */
+    long getLong(int column, int record)
+    {
+        return buf.getLong(offsets[column] + record * 8);
+    }
+
+    /**
+     * Write a value of an int column
+     *
+     * @param column The column
+     * @param record The record
+     * @param value The value
+     */
+    void putInt(int column, int record, int value)
+    {
+        buf.putInt(offsets[column] + record * 4, value);
+    }
+
+    /**
+     * Write a value of a long column
+     *
+     * @param column The column
+     * @param record The record
+     * @param value The value
+     */
+    void putLong(int column, int record, long value)
+    {
+        buf.putLong(offsets[column] + record * 8, value);
+    }
+}
@@ -0,0 +1,192 @@
+package ep2300;
+
+import java.util.LinkedList;
+import java.util.Queue;
+
+/**
+ * Limits the number of requests that are in flight at the same time, over
+ * all sessions. Requests that are sent when the window is full are queued,
+ * and sent as responses to earlier requests come in (or they time out).
+ * Sending is never blocking, so requests can be sent from callbacks.
+ */
+public class SendWindow
+{
+    private final int maxInFlight;
+    private int inFlight = 0;
+
+    private final Queue<Queued> queue = new LinkedList<Queued>();
+
+    // Whether the current thread is in sendAll()
+    private final ThreadLocal<Boolean> sending = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue()
+        {
+            return Boolean.FALSE;
+        }
+    };
+
+    // Statistics
+    private int maxQueueDepth = 0;
+    private long queued = 0;
+    private long totalWait = 0;
+    private long maxWait = 0;
+
+    /**
+     * A request that is waiting to be sent
+     */
+    private final static class Queued
+    {
+        private final Runnable send;
+        private final long queuedAt = System.nanoTime();
+
+        private Queued(Runnable send)
+        {
+            this.send = send;
+        }
+    }
+
+    /**
+     * Create a new window
+     *
+     * @param maxInFlight The maximum number of requests in flight
+     */
+    public SendWindow(int maxInFlight)
+    {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException(
+                    "The window must allow at least one request.");
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Sends a request now if the window allows it, otherwise it's queued
+     * and sent later. When the request is finished, release() must be
+     * called.
+     *
+     * @param send Sends the request
+     */
+    public void submit(Runnable send)
+    {
+        synchronized (this) {
+            // While this thread sends, the loop in sendAll() further up the
+            // stack sends this too
+            if (inFlight >= maxInFlight || sending.get()) {
+                queue.add(new Queued(send));
+                queued++;
+                maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+                return;
+            }
+            inFlight++;
+        }
+        sendAll(send);
+    }
+
+    /**
+     * Marks a request as finished, and sends the next queued request.
+     */
+    public void release()
+    {
+        synchronized (this) {
+            inFlight = Math.max(0, inFlight - 1);
+        }
+        if (!sending.get()) {
+            sendAll(null);
+        }
+    }
+
+    /**
+     * Sends a request that has its place in the window, and then the queued
+     * requests as long as the window allows. A send that fails at once
+     * releases its place from its callback, on this thread, so the queue is
+     * sent in a loop here rather than by release(). Otherwise the stack
+     * would grow with every queued request that fails.
+     *
+     * @param send The request to send first, or null
+     */
+    private void sendAll(Runnable send)
+    {
+        sending.set(Boolean.TRUE);
+        try {
+            while (true) {
+                if (send != null) {
+                    send.run();
+                }
+                synchronized (this) {
+                    if (inFlight >= maxInFlight || queue.isEmpty()) {
+                        return;
+                    }
+                    Queued next = queue.poll();
+                    inFlight++;
+                    long wait = System.nanoTime() - next.queuedAt;
+                    totalWait += wait;
+                    maxWait = Math.max(maxWait, wait);
+                    send = next.send;
+                }
+            }
+        }
+        finally {
+            sending.set(Boolean.FALSE);
+        }
+    }
+
+    /**
+     * Get the number of requests in flight
+     *
+     * @return The number of requests in flight
+     */
+    public synchronized int getInFlight()
+    {
+        return inFlight;
+    }
+
+    /**
+     * Get the number of requests waiting to be sent
+     *
+     * @return The queue depth
+     */
+    public synchronized int getQueueDepth()
+    {
+        return queue.size();
+    }
+
+    /**
+     * Get the largest number of requests that have been waiting at once
+     *
+     * @return The maximum queue depth
+     */
+    public synchronized int getMaxQueueDepth()
+    {
+        return maxQueueDepth;
+    }
+
+    /**
+     * Get the average time that the queued requests waited, of the ones
+     * that have been sent
+     *
+     * @return The average wait, in milliseconds
+     */
+    public synchronized double getAverageWait()
+    {
+        long sent = queued - queue.size();
+        return sent > 0 ? totalWait / 1e6 / sent : 0;
+    }
+
+    /**
+     * Get the longest time that a request waited before being sent
+     *
+     * @return The maximum wait, in milliseconds
+     */
+    public synchronized double getMaxWait()
+    {
+        return maxWait / 1e6;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("%d/%d in flight, %d queued (max %d), "
+                + "wait avg %.1fms max %.1fms", inFlight, maxInFlight, queue
+                .size(), maxQueueDepth, getAverageWait(), getMaxWait());
+    }
+}
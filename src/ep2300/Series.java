@@ -0,0 +1,299 @@
+package ep2300;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A time series that keeps about a fixed number of samples. The samples are
+ * compressed by a SampleEncoder in blocks of blockSize samples, and when
+ * there are more than the capacity, the oldest block is dropped, so the
+ * memory use stays the same however long it's added to. The last two
+ * samples are also kept as they are, so the newest values and the change
+ * between them are read without decoding anything.
+ *
+ * The samples are numbered from 0 (the oldest kept) to size() - 1 (the
+ * newest). Reading an older sample decodes its block, so use forEach() or
+ * toArray() to read many of them.
+ */
+public final class Series
+{
+    /**
+     * The number of samples that are kept by default
+     */
+    public static final int defaultCapacity = Integer.getInteger(
+            "ep2300.history", 1440);
+
+    /**
+     * The number of samples in each compressed block
+     */
+    static final int blockSize = 64;
+
+    /**
+     * Receives the samples of a series, see forEach()
+     */
+    public interface Visitor
+    {
+        /**
+         * Called for each sample, from the oldest to the newest
+         *
+         * @param time The time of the sample
+         * @param value The value of the sample
+         */
+        void visit(long time, long value);
+    }
+
+    private final int capacity;
+
+    // The full blocks, from the oldest, and the samples after them
+    private final List<byte[]> blocks = new ArrayList<byte[]>();
+    private final SampleEncoder head = new SampleEncoder(false);
+    private int size = 0;
+
+    private long lastTime = 0;
+    private long lastValue = 0;
+    private long previousTime = 0;
+    private long previousValue = 0;
+
+    /**
+     * Create an empty series that keeps defaultCapacity samples
+     */
+    public Series()
+    {
+        this(defaultCapacity);
+    }
+
+    /**
+     * Create an empty series
+     *
+     * @param capacity The number of samples to keep. Since whole blocks are
+     *            dropped, up to blockSize - 1 more samples are kept.
+     */
+    public Series(int capacity)
+    {
+        if (capacity < 2) {
+            throw new IllegalArgumentException(
+                    "A series must keep at least 2 samples.");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Add a sample. If the series is full, the oldest block of samples is
+     * dropped.
+     *
+     * @param time When the sample was taken
+     * @param value The value of the sample
+     */
+    public synchronized void add(long time, long value)
+    {
+        if (head.size() == blockSize) {
+            blocks.add(head.toByteArray());
+            head.clear();
+        }
+        head.add(time, value);
+        size++;
+        while (size - blockSize >= capacity && !blocks.isEmpty()) {
+            blocks.remove(0);
+            size -= blockSize;
+        }
+
+        previousTime = lastTime;
+        previousValue = lastValue;
+        lastTime = time;
+        lastValue = value;
+    }
+
+    /**
+     * Get the number of samples
+     *
+     * @return The number of samples
+     */
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    /**
+     * Get the number of samples that are kept
+     *
+     * @return The capacity
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Get the value of a sample
+     *
+     * @param i The number of the sample, from 0 (the oldest) to size() - 1
+     * @return The value
+     */
+    public synchronized long get(int i)
+    {
+        return decode(i).getValue();
+    }
+
+    /**
+     * Get the time of a sample
+     *
+     * @param i The number of the sample, from 0 (the oldest) to size() - 1
+     * @return The time
+     */
+    public synchronized long getTime(int i)
+    {
+        return decode(i).getTime();
+    }
+
+    /**
+     * Get the value of the newest sample
+     *
+     * @return The value
+     * @throws IndexOutOfBoundsException If the series is empty
+     */
+    public synchronized long getLast()
+    {
+        check(size - 1);
+        return lastValue;
+    }
+
+    /**
+     * Get the difference between the values of the two newest samples
+     *
+     * @return The difference, or 0 if there are less than two samples
+     */
+    public synchronized long getLastDelta()
+    {
+        return size < 2 ? 0 : lastValue - previousValue;
+    }
+
+    /**
+     * Get the time between the two newest samples
+     *
+     * @return The difference of the times, or 0 if there are less than two
+     *         samples
+     */
+    public synchronized long getLastInterval()
+    {
+        return size < 2 ? 0 : lastTime - previousTime;
+    }
+
+    /**
+     * Remove all samples
+     */
+    public synchronized void clear()
+    {
+        blocks.clear();
+        head.clear();
+        size = 0;
+        lastTime = 0;
+        lastValue = 0;
+        previousTime = 0;
+        previousValue = 0;
+    }
+
+    /**
+     * Decode all samples, from the oldest to the newest. The series is
+     * locked meanwhile, so the visitor should not take long.
+     *
+     * @param visitor Receives the samples
+     */
+    public synchronized void forEach(Visitor visitor)
+    {
+        SampleDecoder decoder = null;
+        for (byte[] block : blocks) {
+            if (decoder == null) {
+                decoder = new SampleDecoder(block, 0, block.length,
+                        blockSize, false);
+            }
+            else {
+                decoder.reset(block, 0, block.length, blockSize);
+            }
+            while (decoder.next()) {
+                visitor.visit(decoder.getTime(), decoder.getValue());
+            }
+        }
+
+        decoder = new SampleDecoder(head);
+        while (decoder.next()) {
+            visitor.visit(decoder.getTime(), decoder.getValue());
+        }
+    }
+
+    /**
+     * Get the values of all samples, from the oldest to the newest
+     *
+     * @return A new array of size() values
+     */
+    public synchronized long[] toArray()
+    {
+        final long[] values = new long[size];
+        forEach(new Visitor() {
+            private int i = 0;
+
+            @Override
+            public void visit(long time, long value)
+            {
+                values[i++] = value;
+            }
+        });
+        return values;
+    }
+
+    /**
+     * Get the number of bytes that the compressed samples take up
+     *
+     * @return The number of bytes of the encoded blocks
+     */
+    public synchronized int getEncodedSize()
+    {
+        int bytes = head.length();
+        for (byte[] block : blocks) {
+            bytes += block.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Decodes the block of a sample up to the sample
+     */
+    private SampleDecoder decode(int i)
+    {
+        check(i);
+        int b = i / blockSize;
+        SampleDecoder decoder;
+        if (b < blocks.size()) {
+            byte[] block = blocks.get(b);
+            decoder = new SampleDecoder(block, 0, block.length, blockSize,
+                    false);
+        }
+        else {
+            decoder = new SampleDecoder(head);
+        }
+        for (int n = i % blockSize; n >= 0; n--) {
+            decoder.next();
+        }
+        return decoder;
+    }
+
+    private void check(int i)
+    {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Sample " + i + " of "
+                    + size);
+        }
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder sb = new StringBuilder("[");
+        for (long value : toArray()) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(value);
+        }
+        return sb.append("]").toString();
+    }
+}
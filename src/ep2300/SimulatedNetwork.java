@@ -0,0 +1,761 @@
+package ep2300;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.Vector;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.adventnet.snmp.snmp2.SnmpAPI;
+import com.adventnet.snmp.snmp2.SnmpClient;
+import com.adventnet.snmp.snmp2.SnmpCounter;
+import com.adventnet.snmp.snmp2.SnmpCounter64;
+import com.adventnet.snmp.snmp2.SnmpGauge;
+import com.adventnet.snmp.snmp2.SnmpInt;
+import com.adventnet.snmp.snmp2.SnmpIpAddress;
+import com.adventnet.snmp.snmp2.SnmpNull;
+import com.adventnet.snmp.snmp2.SnmpOID;
+import com.adventnet.snmp.snmp2.SnmpPDU;
+import com.adventnet.snmp.snmp2.SnmpString;
+import com.adventnet.snmp.snmp2.SnmpVar;
+import com.adventnet.snmp.snmp2.SnmpVarBind;
+
+/**
+ * A network of simulated SNMP agents that runs inside the JVM. It's used as
+ * the transport instead of the real network, so that the discovery and the
+ * polling can be tested and load tested without a lab network.
+ *
+ * Each router has the system group, the ifTable with one interface per
+ * address, the 64 bit counters of the ifXTable, the ipAddrTable, a routing
+ * table with a route to each neighbor, the number of routes
+ * (ipCidrRouteNumber) and snmpEngineBoots. Routers can be added and removed
+ * while the network is running, to test re-discovery. The counters of the
+ * interfaces replay a trace from the output of ClusteringMonitor, or a
+ * constant rate if no trace is loaded. The responses are delivered after a
+ * random latency, by one of several delivery threads that the routers are
+ * assigned to by consistent hashing, like the shards of SNMPConnection.
+ * Requests can also be lost, in which case the client gets a timeout.
+ */
+public class SimulatedNetwork implements SNMPTransport
+{
+    private static final String ifEntry = ".1.3.6.1.2.1.2.2.1";
+    private static final String ifXEntry = ".1.3.6.1.2.1.31.1.1.1";
+    private static final String ipAdEntAddr = SNMP.ipAdEntAddr.toString();
+    private static final String ipRouteNextHop = ".1.3.6.1.2.1.4.21.1.7";
+    private static final String ipCidrRouteNumber = SNMP.ipCidrRouteNumber
+            + ".0";
+
+    /**
+     * The counter columns of the ifTable, and whether they count octets
+     * (true) or packets (false)
+     */
+    private static final int[] counterColumns = { 10, 11, 13, 14, 16, 17 };
+    private static final boolean[] countsOctets = { true, false, false,
+            false, true, false };
+
+    /**
+     * The 64 bit counter columns of the ifXTable (ifHCInOctets and
+     * ifHCInUcastPkts), which count the same traffic as ifInOctets and
+     * ifInUcastPkts
+     */
+    private static final int[] hcCounterColumns = { 6, 7 };
+    private static final boolean[] hcCountsOctets = { true, false };
+
+    /**
+     * Orders OIDs lexicographically, as in a MIB.
+     */
+    private static final Comparator<int[]> oidOrder = new Comparator<int[]>() {
+        @Override
+        public int compare(int[] a, int[] b)
+        {
+            for (int i = 0; i < a.length && i < b.length; i++) {
+                if (a[i] != b[i]) {
+                    // Subidentifiers are unsigned 32 bit numbers
+                    return (a[i] & 0xffffffffL) < (b[i] & 0xffffffffL) ? -1
+                            : 1;
+                }
+            }
+            return a.length - b.length;
+        }
+    };
+
+    private final Map<String, Agent> agents = new LinkedHashMap<String, Agent>();
+    private int numRouters = 0;
+
+    // The number of links that have been given a subnet
+    private int numLinks = 0;
+    private final Random random;
+    private final long startTime = System.nanoTime();
+
+    // The traffic of an interface, per step of the trace
+    private volatile long[] tracePackets = { 100 };
+    private volatile long[] traceOctets = { 100 * 500 };
+    private volatile long stepMillis = 1000;
+
+    private int minLatency = 1;
+    private int maxLatency = 5;
+    private double loss = 0;
+    private int maxVarBinds = 100;
+
+    // Statistics
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong responses = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+
+    private final ScheduledExecutorService[] delivery;
+    private final ConsistentHash<Integer> shards = new ConsistentHash<Integer>(
+            100);
+
+    /**
+     * A value in the MIB of an agent, which is computed when it's read.
+     */
+    private interface Value
+    {
+        SnmpVar get(long now);
+    }
+
+    /**
+     * A value that never changes
+     */
+    private final static class Constant implements Value
+    {
+        private final SnmpVar var;
+
+        private Constant(SnmpVar var)
+        {
+            this.var = var;
+        }
+
+        @Override
+        public SnmpVar get(long now)
+        {
+            return var;
+        }
+    }
+
+    /**
+     * A Counter32 or Counter64 that follows the trace, scaled by a factor
+     * and starting at a random value.
+     */
+    private final class Counter implements Value
+    {
+        private final boolean octets;
+        private final double scale;
+        private final long offset;
+        private final boolean wide;
+
+        private Counter(boolean octets, double scale, long offset,
+                boolean wide)
+        {
+            this.octets = octets;
+            this.scale = scale;
+            this.offset = offset;
+            this.wide = wide;
+        }
+
+        @Override
+        public SnmpVar get(long now)
+        {
+            long total = (long) (scale * traffic(octets, now));
+            if (wide) {
+                return new SnmpCounter64(BigInteger.valueOf(offset + total));
+            }
+            return new SnmpCounter((offset + total) & 0xffffffffL);
+        }
+    }
+
+    /**
+     * A simulated router. The MIB is guarded by the lock of the agent, since
+     * routes can be changed while requests are answered.
+     */
+    private final static class Agent
+    {
+        private final SortedMap<int[], Value> mib = new TreeMap<int[], Value>(
+                oidOrder);
+        private final List<String> ips = new ArrayList<String>();
+        private int routes = 0;
+
+        private synchronized void put(String oid, Value value)
+        {
+            mib.put(parse(oid), value);
+        }
+
+        private synchronized void put(String oid, SnmpVar var)
+        {
+            put(oid, new Constant(var));
+        }
+
+        /**
+         * Adds or removes a route to a neighbor
+         */
+        private synchronized void setRoute(String hop, boolean exists)
+        {
+            int[] oid = parse(ipRouteNextHop + "." + hop);
+            if (exists && !mib.containsKey(oid)) {
+                mib.put(oid, new Constant(new SnmpIpAddress(hop)));
+                routes++;
+            }
+            else if (!exists && mib.remove(oid) != null) {
+                routes--;
+            }
+            put(ipCidrRouteNumber, new SnmpGauge(routes));
+        }
+    }
+
+    /**
+     * Create an empty network with a single delivery thread
+     *
+     * @param seed The seed of the random numbers, so that runs can be
+     *            repeated
+     */
+    public SimulatedNetwork(long seed)
+    {
+        this(seed, 1);
+    }
+
+    /**
+     * Create an empty network
+     *
+     * @param seed The seed of the random numbers, so that runs can be
+     *            repeated
+     * @param threads The number of threads that deliver the responses
+     */
+    public SimulatedNetwork(long seed, int threads)
+    {
+        random = new Random(seed);
+        delivery = new ScheduledExecutorService[threads];
+        for (int i = 0; i < threads; i++) {
+            final String name = "SimulatedNetwork-" + i;
+            delivery[i] = Executors
+                    .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread thread = new Thread(r, name);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            shards.add(i);
+        }
+    }
+
+    /**
+     * Add a router to the network
+     *
+     * @param sysName The name of the router
+     * @param ips The addresses of the interfaces of the router
+     * @param nextHops The addresses of the neighbors of the router
+     */
+    public synchronized void addRouter(String sysName, Collection<String> ips,
+            Collection<String> nextHops)
+    {
+        Agent agent = new Agent();
+        agent.put(".1.3.6.1.2.1.1.1.0", new SnmpString("Simulated router "
+                + sysName));
+        agent.put(".1.3.6.1.2.1.1.5.0", new SnmpString(sysName));
+        agent.put(".1.3.6.1.2.1.2.1.0", new SnmpInt(ips.size()));
+
+        // The interfaces of a router have different amounts of traffic
+        int ifIndex = 1;
+        for (String ip : ips) {
+            double scale = 0.5 + random.nextDouble() / ips.size();
+            for (int c = 0; c < counterColumns.length; c++) {
+                double columnScale = scale;
+                if (counterColumns[c] == 13 || counterColumns[c] == 14) {
+                    // Discards and errors are rare
+                    columnScale *= 0.001;
+                }
+                long offset = random.nextLong() & 0xffffffffL;
+                agent.put(ifEntry + "." + counterColumns[c] + "." + ifIndex,
+                        new Counter(countsOctets[c], columnScale, offset,
+                                false));
+            }
+            for (int c = 0; c < hcCounterColumns.length; c++) {
+                long offset = random.nextLong() & 0xffffffffffffL;
+                agent.put(ifXEntry + "." + hcCounterColumns[c] + "."
+                        + ifIndex, new Counter(hcCountsOctets[c], scale,
+                        offset, true));
+            }
+            agent.put(ipAdEntAddr + "." + ip, new SnmpIpAddress(ip));
+            ifIndex++;
+        }
+
+        agent.ips.addAll(ips);
+        agent.put(ipCidrRouteNumber, new SnmpGauge(0));
+        for (String hop : nextHops) {
+            agent.setRoute(hop, true);
+        }
+
+        // snmpEngineBoots, so that the tables above are not at the end of
+        // the MIB
+        agent.put(".1.3.6.1.6.3.10.2.1.2.0", new SnmpInt(1));
+
+        for (String ip : ips) {
+            agents.put(ip, agent);
+        }
+        numRouters++;
+    }
+
+    /**
+     * Add the routers of a topology, for instance one that is loaded with
+     * Topology.fromFile().
+     *
+     * @param topology The topology to simulate
+     */
+    public synchronized void addTopology(Topology topology)
+    {
+        for (Router router : topology.getTopology().values()) {
+            addRouter(router.getSysName(), router.getIPs(), router
+                    .getNextHops());
+        }
+    }
+
+    /**
+     * Generate a random connected network. The routers are connected in a
+     * random tree, and then random links are added until the routers have
+     * the requested average number of neighbors. Each link has its own /30
+     * subnet in 10.0.0.0/8, where one end gets the first address and the
+     * other the second.
+     *
+     * @param numRouters The number of routers
+     * @param degree The average number of neighbors of the routers
+     */
+    public synchronized void generate(int numRouters, int degree)
+    {
+        List<List<String>> ips = new ArrayList<List<String>>();
+        List<List<String>> hops = new ArrayList<List<String>>();
+        for (int i = 0; i < numRouters; i++) {
+            ips.add(new ArrayList<String>());
+            hops.add(new ArrayList<String>());
+        }
+
+        int links = Math.max(numRouters - 1, numRouters * degree / 2);
+        for (int link = 0; link < links; link++) {
+            int a, b;
+            if (link < numRouters - 1) {
+                // A tree, so that all routers can be discovered
+                a = link + 1;
+                b = random.nextInt(link + 1);
+            }
+            else {
+                a = random.nextInt(numRouters);
+                b = random.nextInt(numRouters);
+                if (a == b) {
+                    continue;
+                }
+            }
+
+            String[] ends = nextLink();
+            String ipA = ends[0], ipB = ends[1];
+            ips.get(a).add(ipA);
+            ips.get(b).add(ipB);
+            hops.get(a).add(ipB);
+            hops.get(b).add(ipA);
+        }
+
+        for (int i = 0; i < numRouters; i++) {
+            addRouter("R" + i, ips.get(i), hops.get(i));
+        }
+    }
+
+    /**
+     * Gives a link the next free /30 subnet in 10.0.0.0/8
+     *
+     * @return The addresses of the two ends of the link
+     */
+    private String[] nextLink()
+    {
+        int link = numLinks++;
+        if (link >= 1 << 22) {
+            throw new IllegalArgumentException("Too many links.");
+        }
+        int subnet = (10 << 24) | (link << 2);
+        return new String[] { IPv4.toString(subnet + 1),
+                IPv4.toString(subnet + 2) };
+    }
+
+    /**
+     * Add a new router with a single link to an existing router. The
+     * existing router gets a route to the new router.
+     *
+     * @param sysName The name of the new router
+     * @param neighbor An address of the existing router
+     * @return The address of the new router
+     */
+    public synchronized String connectRouter(String sysName, String neighbor)
+    {
+        Agent existing = agents.get(neighbor);
+        if (existing == null) {
+            throw new IllegalArgumentException("No router at " + neighbor);
+        }
+
+        String[] ends = nextLink();
+        String ip = ends[0], hop = ends[1];
+        addRouter(sysName, Arrays.asList(ip), Arrays.asList(hop));
+
+        existing.ips.add(hop);
+        existing.put(ipAdEntAddr + "." + hop, new SnmpIpAddress(hop));
+        existing.setRoute(ip, true);
+        agents.put(hop, existing);
+        return ip;
+    }
+
+    /**
+     * Remove a router from the network. Its neighbors lose their routes to
+     * it.
+     *
+     * @param address An address of the router
+     */
+    public synchronized void removeRouter(String address)
+    {
+        Agent removed = agents.get(address);
+        if (removed == null) {
+            return;
+        }
+
+        for (String ip : removed.ips) {
+            agents.remove(ip);
+        }
+        for (Agent agent : new HashSet<Agent>(agents.values())) {
+            for (String ip : removed.ips) {
+                agent.setRoute(ip, false);
+            }
+        }
+        numRouters--;
+    }
+
+    /**
+     * Load a trace to replay from the output of ClusteringMonitor. The
+     * lines of the trace look like "step: packetSize packets", where
+     * packets is the average number of packets per router during a step.
+     *
+     * @param filename The file with the trace
+     * @param stepMillis The length of a step of the trace, in milliseconds
+     * @throws IOException If the file cannot be read
+     */
+    public synchronized void loadTrace(String filename, long stepMillis)
+            throws IOException
+    {
+        List<Long> packets = new ArrayList<Long>();
+        List<Long> octets = new ArrayList<Long>();
+        boolean first = true;
+        for (List<String> words : PatternReader.getLines(filename)) {
+            if (words.size() != 3 || !words.get(0).matches("^[0-9]+:$")) {
+                continue;
+            }
+            else if (first) {
+                // The first sample is the total since the routers booted
+                first = false;
+                continue;
+            }
+
+            try {
+                long size = Long.parseLong(words.get(1));
+                long count = Long.parseLong(words.get(2));
+                packets.add(count);
+                octets.add(count * size);
+            }
+            catch (NumberFormatException e) {
+                // Not a sample
+            }
+        }
+
+        if (packets.isEmpty()) {
+            throw new IOException("No samples in the trace " + filename);
+        }
+
+        tracePackets = new long[packets.size()];
+        traceOctets = new long[octets.size()];
+        for (int i = 0; i < tracePackets.length; i++) {
+            tracePackets[i] = packets.get(i);
+            traceOctets[i] = octets.get(i);
+        }
+        this.stepMillis = stepMillis;
+    }
+
+    /**
+     * Set the latency of the responses. The latency of each response is
+     * uniformly distributed between the minimum and the maximum.
+     *
+     * @param minLatency The minimum latency, in milliseconds
+     * @param maxLatency The maximum latency, in milliseconds
+     */
+    public synchronized void setLatency(int minLatency, int maxLatency)
+    {
+        this.minLatency = minLatency;
+        this.maxLatency = Math.max(minLatency, maxLatency);
+    }
+
+    /**
+     * Set the probability that a request or its response is lost
+     *
+     * @param loss A value between 0 and 1
+     */
+    public synchronized void setLoss(double loss)
+    {
+        this.loss = loss;
+    }
+
+    /**
+     * Set the maximum number of variable bindings in a response. Larger
+     * GETBULK responses are truncated, like an agent does when the response
+     * doesn't fit in a message.
+     *
+     * @param maxVarBinds The maximum number of variable bindings
+     */
+    public synchronized void setMaxVarBinds(int maxVarBinds)
+    {
+        this.maxVarBinds = maxVarBinds;
+    }
+
+    /**
+     * Get an address to start the discovery from
+     *
+     * @return The first address of the first router, or null if the
+     *         network is empty
+     */
+    public synchronized String getFirstAddress()
+    {
+        return agents.isEmpty() ? null : agents.keySet().iterator().next();
+    }
+
+    /**
+     * Get the number of routers in the network
+     *
+     * @return The number of routers
+     */
+    public synchronized int getRouterCount()
+    {
+        return numRouters;
+    }
+
+    /**
+     * The total traffic of an interface with a scale of 1, from the start
+     * of the simulation until now. The trace is repeated when it ends.
+     */
+    private long traffic(boolean octets, long now)
+    {
+        long[] trace = octets ? traceOctets : tracePackets;
+        double steps = (now - startTime) / 1e6 / stepMillis;
+        long whole = (long) steps;
+
+        long perRound = 0;
+        for (long value : trace) {
+            perRound += value;
+        }
+
+        long total = (whole / trace.length) * perRound;
+        int step = (int) (whole % trace.length);
+        for (int i = 0; i < step; i++) {
+            total += trace[i];
+        }
+        return total + (long) ((steps - whole) * trace[step]);
+    }
+
+    @Override
+    public boolean send(String address, final SnmpClient client,
+            final SnmpPDU pdu, int timeout)
+    {
+        requests.incrementAndGet();
+        final Agent agent;
+        final int latency;
+        final boolean isLost;
+        synchronized (this) {
+            agent = agents.get(address);
+            latency = minLatency + random.nextInt(maxLatency - minLatency + 1);
+            isLost = random.nextDouble() < loss;
+        }
+
+        ScheduledExecutorService delivery = this.delivery[shards.get(address)];
+        if (agent == null || isLost || latency >= timeout) {
+            lost.incrementAndGet();
+            deliver(delivery, client, null, pdu, timeout);
+        }
+        else {
+            deliver(delivery, client, agent, pdu, latency);
+        }
+        return true;
+    }
+
+    /**
+     * Makes the callback of a request after a delay. If there is no agent,
+     * the request times out.
+     */
+    private void deliver(ScheduledExecutorService delivery,
+            final SnmpClient client, final Agent agent, final SnmpPDU pdu,
+            int delay)
+    {
+        delivery.schedule(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    SnmpPDU response = null;
+                    if (agent != null) {
+                        responses.incrementAndGet();
+                        response = respond(agent, pdu);
+                    }
+                    client.callback(null, response, pdu.getRequestID());
+                }
+                catch (RuntimeException e) {
+                    // The executor would hide it otherwise
+                    e.printStackTrace();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create the response of an agent to a GET or GETBULK request
+     */
+    private SnmpPDU respond(Agent agent, SnmpPDU request)
+    {
+        long now = System.nanoTime();
+        SnmpPDU response = new SnmpPDU();
+        response.setCommand(SnmpAPI.GET_RSP_MSG);
+        response.setRequestID(request.getRequestID());
+
+        synchronized (agent) {
+            return respond(agent, request, response, now);
+        }
+    }
+
+    /**
+     * Adds the variable bindings of the response. Must be called with the
+     * lock of the agent held.
+     */
+    private SnmpPDU respond(Agent agent, SnmpPDU request,
+            SnmpPDU response, long now)
+    {
+        Vector<?> bindings = request.getVariableBindings();
+        if (request.getCommand() != SnmpAPI.GETBULK_REQ_MSG) {
+            for (Object elem : bindings) {
+                SnmpOID oid = ((SnmpVarBind) elem).getObjectID();
+                Value value = agent.mib.get(oid.toIntArray());
+                response.addVariableBinding(new SnmpVarBind(oid,
+                        value != null ? value.get(now) : new SnmpNull()));
+            }
+            return response;
+        }
+
+        int nonRepeaters = Math.min(request.getNonRepeaters(), bindings
+                .size());
+        int count = 0;
+        for (int i = 0; i < nonRepeaters && count < maxVarBinds; i++) {
+            int[] oid = ((SnmpVarBind) bindings.get(i)).getObjectID()
+                    .toIntArray();
+            addNext(response, agent, oid, now);
+            count++;
+        }
+
+        int repeaters = bindings.size() - nonRepeaters;
+        int[][] last = new int[repeaters][];
+        for (int j = 0; j < repeaters; j++) {
+            last[j] = ((SnmpVarBind) bindings.get(nonRepeaters + j))
+                    .getObjectID().toIntArray();
+        }
+        for (int r = 0; r < request.getMaxRepetitions(); r++) {
+            for (int j = 0; j < repeaters; j++) {
+                if (count++ >= maxVarBinds) {
+                    return response;
+                }
+                last[j] = addNext(response, agent, last[j], now);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Adds the variable that follows an OID to the response, like a
+     * GETNEXT. At the end of the MIB the OID is returned with a null value.
+     *
+     * @return The OID that was added
+     */
+    private static int[] addNext(SnmpPDU response, Agent agent, int[] oid,
+            long now)
+    {
+        // The first possible OID after oid is oid.0
+        int[] after = Arrays.copyOf(oid, oid.length + 1);
+        SortedMap<int[], Value> tail = agent.mib.tailMap(after);
+        if (tail.isEmpty()) {
+            response.addVariableBinding(new SnmpVarBind(new SnmpOID(oid),
+                    new SnmpNull()));
+            return oid;
+        }
+
+        int[] next = tail.firstKey();
+        response.addVariableBinding(new SnmpVarBind(new SnmpOID(next), tail
+                .get(next).get(now)));
+        return next;
+    }
+
+    /**
+     * Parses an OID in dotted notation
+     */
+    private static int[] parse(String oid)
+    {
+        String[] parts = (oid.startsWith(".") ? oid.substring(1) : oid)
+                .split("\\.");
+        int[] subIds = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            subIds[i] = (int) Long.parseLong(parts[i]);
+        }
+        return subIds;
+    }
+
+    @Override
+    public void reportSuccess(String address)
+    {
+        // Nothing is kept per router
+    }
+
+    @Override
+    public void reportFailure(String address)
+    {
+        // Nothing is kept per router
+    }
+
+    @Override
+    public void reportNotInTimeWindow(String address)
+    {
+        // The simulated routers don't check the time window
+    }
+
+    @Override
+    public void evictIdle(long maxIdle)
+    {
+        // Nothing is kept per router
+    }
+
+    @Override
+    public void close()
+    {
+        // The delivery thread is a daemon, and the network can be reused
+    }
+
+    /**
+     * Returns the number of requests, responses and lost requests.
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("simulated network: %d routers, %d requests, "
+                + "%d responses, %d lost", getRouterCount(), requests.get(),
+                responses.get(), lost.get());
+    }
+}
@@ -0,0 +1,155 @@
+package ep2300;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.adventnet.snmp.snmp2.SnmpOID;
+
+/**
+ * The result of one poll cycle of LinkStatistics.pollAsync(): the polled
+ * values of each router, or why there are none. A router either was polled
+ * completely, failed (an error, or the retries were given up on), or timed
+ * out because the cycle ended first.
+ */
+public final class Snapshot
+{
+    private final PollCycle cycle;
+    private final SnmpOID[] columns;
+    private final List<String> routers;
+
+    private final Map<String, long[]> values = new ConcurrentHashMap<String, long[]>();
+    private final Set<String> failed = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // Set when the future of the snapshot is completed, after which the
+    // results don't change
+    private boolean frozen = false;
+
+    /**
+     * Create an empty snapshot
+     *
+     * @param cycle The poll cycle
+     * @param columns The polled columns
+     * @param routers The names of the polled routers
+     */
+    Snapshot(PollCycle cycle, SnmpOID[] columns, Collection<String> routers)
+    {
+        this.cycle = cycle;
+        this.columns = columns.clone();
+        this.routers = Collections.unmodifiableList(new ArrayList<String>(
+                routers));
+    }
+
+    synchronized void complete(String router, long[] sums)
+    {
+        if (!frozen) {
+            values.put(router, sums);
+        }
+    }
+
+    synchronized void fail(String router)
+    {
+        if (!frozen) {
+            failed.add(router);
+        }
+    }
+
+    /**
+     * Ignore the results that arrive after this, so that the snapshot
+     * doesn't change once it has been handed out
+     */
+    synchronized void freeze()
+    {
+        frozen = true;
+    }
+
+    /**
+     * Get the poll cycle of the snapshot, which has statistics of the
+     * requests
+     *
+     * @return The cycle
+     */
+    public PollCycle getCycle()
+    {
+        return cycle;
+    }
+
+    /**
+     * Get the polled columns, in the order of the values
+     *
+     * @return The column OIDs
+     */
+    public SnmpOID[] getColumns()
+    {
+        return columns.clone();
+    }
+
+    /**
+     * Get the names of all routers that were polled
+     *
+     * @return The router names
+     */
+    public List<String> getRouters()
+    {
+        return routers;
+    }
+
+    /**
+     * Get the polled values of a router, which are the sums of each column
+     * over all interfaces
+     *
+     * @param router The name of the router
+     * @return The values in the order of getColumns(), or null if the
+     *         router was not polled completely
+     */
+    public long[] getValues(String router)
+    {
+        long[] sums = values.get(router);
+        return sums != null ? sums.clone() : null;
+    }
+
+    /**
+     * Check if the poll of a router failed
+     *
+     * @param router The name of the router
+     * @return True if there was an error or the retries were given up on
+     */
+    public boolean hasFailed(String router)
+    {
+        return failed.contains(router);
+    }
+
+    /**
+     * Check if the cycle ended before the poll of a router was done
+     *
+     * @param router The name of the router
+     * @return True if the router neither completed nor failed in time
+     */
+    public boolean isTimedOut(String router)
+    {
+        return !values.containsKey(router) && !failed.contains(router);
+    }
+
+    /**
+     * Get the number of routers that were polled completely
+     *
+     * @return The number of routers with values
+     */
+    public int getCompleted()
+    {
+        return values.size();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("snapshot of cycle %d: %d complete, %d failed, "
+                + "%d timed out", cycle.getEpoch(), values.size(), failed
+                .size(), routers.size() - values.size() - failed.size());
+    }
+}
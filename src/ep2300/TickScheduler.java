@@ -0,0 +1,129 @@
+package ep2300;
+
+/**
+ * Schedules work at a fixed rate. The ticks are at fixed offsets from the
+ * start, measured with System.nanoTime(), so they don't drift when the work
+ * takes a varying amount of time, and changes of the wall clock don't
+ * affect them. If the work overruns so that ticks are missed, they are
+ * skipped and counted, instead of being run in a burst to catch up.
+ */
+public class TickScheduler
+{
+    private final long period;
+    private long start = -1;
+
+    // The number of the next tick
+    private long next = 0;
+
+    // Statistics
+    private long ticks = 0;
+    private long missed = 0;
+    private long totalLateness = 0;
+    private long maxLateness = 0;
+
+    /**
+     * Create a new scheduler. The first tick is when awaitNextTick() is
+     * first called.
+     *
+     * @param period The time between the ticks, in milliseconds
+     */
+    public TickScheduler(long period)
+    {
+        if (period <= 0) {
+            throw new IllegalArgumentException("The period must be positive.");
+        }
+        this.period = period * 1000000;
+    }
+
+    /**
+     * Waits until the next tick.
+     *
+     * @return The number of the tick, counted from the first one
+     */
+    public synchronized long awaitNextTick()
+    {
+        long now = System.nanoTime();
+        if (start == -1) {
+            start = now;
+        }
+
+        long deadline = start + next * period;
+        while (now < deadline) {
+            long delay = deadline - now;
+            try {
+                wait(delay / 1000000, (int) (delay % 1000000));
+            }
+            catch (InterruptedException e) {
+                // If we are interrupted, just continue
+            }
+            now = System.nanoTime();
+        }
+
+        // Skip the ticks that have already passed
+        long current = (now - start) / period;
+        if (current > next) {
+            missed += current - next;
+            next = current;
+        }
+
+        long lateness = now - (start + next * period);
+        totalLateness += lateness;
+        maxLateness = Math.max(maxLateness, lateness);
+        ticks++;
+
+        return next++;
+    }
+
+    /**
+     * Get the time left until the next tick, so that work done after a tick
+     * can be bounded by it and doesn't make the next one late
+     *
+     * @return The time in nanoseconds, 0 if the tick is due or the first
+     *         tick has not been
+     */
+    public synchronized long nanosUntilNextTick()
+    {
+        if (start == -1) {
+            return 0;
+        }
+        return Math.max(0, start + next * period - System.nanoTime());
+    }
+
+    /**
+     * Get the number of ticks that were skipped because the work overran
+     *
+     * @return The number of missed ticks
+     */
+    public synchronized long getMissedTicks()
+    {
+        return missed;
+    }
+
+    /**
+     * Get the average time from the ticks until awaitNextTick() returned
+     *
+     * @return The average lateness, in milliseconds
+     */
+    public synchronized double getAverageLateness()
+    {
+        return ticks > 0 ? totalLateness / 1e6 / ticks : 0;
+    }
+
+    /**
+     * Get the longest time from a tick until awaitNextTick() returned
+     *
+     * @return The maximum lateness, in milliseconds
+     */
+    public synchronized double getMaxLateness()
+    {
+        return maxLateness / 1e6;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("%d ticks, %d missed, lateness avg %.2fms "
+                + "max %.2fms", ticks, missed, getAverageLateness(),
+                getMaxLateness());
+    }
+}
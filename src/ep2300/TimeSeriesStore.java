@@ -0,0 +1,782 @@
+package ep2300;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import com.adventnet.snmp.snmp2.SnmpOID;
+
+/**
+ * An append-only store of the polled counters of each interface of each
+ * router, and of the TimeSteps derived from them, in a directory. It keeps
+ * months of history on disk instead of in the heap, and lets it be read
+ * again later, for instance by ClusteringMonitor.loadFromStore().
+ *
+ * Each kind of record is appended to its own series of segment files (see
+ * Segment), named by the time of their first record, and a new segment is
+ * started when the time range of one has passed or it's full. Router names
+ * and column OIDs are kept once in the names file, and are referred to by
+ * their line number. Only one process may write to a directory, but any
+ * number of readers may read it while it's written.
+ *
+ * The counter records have the columns time, router, ifIndex, column and
+ * value, and the TimeStep records time, step, octets and packets. The times
+ * are from System.currentTimeMillis().
+ *
+ * When a counter segment is finished, it's replaced in the background by a
+ * compressed segment (a .segz file), in which the records of each interface
+ * and column are encoded together by a SampleEncoder. Polled counters at a
+ * steady interval take a few bytes a record instead of 28. The compressed
+ * file is written next to the segment and renamed into place before the
+ * segment is deleted, so a crash leaves one or the other, and readers prefer
+ * it.
+ */
+public final class TimeSeriesStore
+{
+    /**
+     * The time range of each segment, in milliseconds
+     */
+    public static final long segmentLength = Long.getLong(
+            "ep2300.segmentlength", 24 * 3600 * 1000L);
+
+    /**
+     * The number of records of each segment. A new segment is started
+     * early when a segment is full.
+     */
+    private static final int segmentCapacity = Integer.getInteger(
+            "ep2300.segmentsize", 1 << 20);
+
+    private static final String counterKind = "counters";
+    private static final int[] counterWidths = { 8, 4, 4, 4, 8 };
+    private static final int counterTime = 0;
+    private static final int counterRouter = 1;
+    private static final int counterIfIndex = 2;
+    private static final int counterColumn = 3;
+    private static final int counterValue = 4;
+
+    private static final String timeStepKind = "timesteps";
+    private static final int[] timeStepWidths = { 8, 4, 8, 8 };
+    private static final int timeStepTime = 0;
+    private static final int timeStepStep = 1;
+    private static final int timeStepOctets = 2;
+    private static final int timeStepPackets = 3;
+
+    private static final String rawSuffix = ".seg";
+    private static final String compressedSuffix = ".segz";
+    private static final int compressedMagic = 0x4550535a;
+    private static final int compressedVersion = 1;
+    private static final int compressedHeaderSize = 4 + 4 + 8 + 4;
+
+    private static final String namesFile = "names";
+    private static final Charset utf8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives the counter records that are read from a store
+     */
+    public interface CounterVisitor
+    {
+        /**
+         * Called for each record. The records of each interface and column
+         * are in the order they were added, but those of a compressed
+         * segment are grouped by interface and column.
+         *
+         * @param time When the value was polled
+         * @param router The name of the router
+         * @param column The OID of the counter column
+         * @param ifIndex The interface
+         * @param value The value of the counter
+         */
+        void visit(long time, String router, String column, int ifIndex,
+                long value);
+    }
+
+    private final File directory;
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final FileOutputStream names;
+
+    private final Appender counters;
+    private final Appender timeSteps;
+
+    // Compresses the finished counter segments, so that appending never
+    // waits for it
+    private final ExecutorService compressor = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "TimeSeriesStore");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Appends to the segments of one kind of record
+     */
+    private final class Appender
+    {
+        private final String kind;
+        private final int[] widths;
+        private final boolean compress;
+        private Segment segment = null;
+        private int count = 0;
+
+        private Appender(String kind, int[] widths, boolean compress)
+                throws IOException
+        {
+            this.kind = kind;
+            this.widths = widths;
+            this.compress = compress;
+            File[] files = listSegments(directory, kind);
+            if (compress) {
+                // Finish what a crash interrupted
+                for (int i = 0; i < files.length; i++) {
+                    if (isCompressed(files[i])) {
+                        String path = files[i].getPath();
+                        new File(path.substring(0, path.length() - 1))
+                                .delete();
+                    }
+                    else if (i < files.length - 1) {
+                        compressLater(files[i]);
+                    }
+                }
+            }
+            if (files.length > 0 && !isCompressed(files[files.length - 1])) {
+                // Continue where the last segment was committed. Anything
+                // after that was not completely written.
+                segment = Segment.open(files[files.length - 1], true);
+                count = segment.getCommitted();
+            }
+        }
+
+        /**
+         * Get the segment to append a record at a time to, starting a new
+         * one if needed
+         */
+        private Segment next(long time) throws IOException
+        {
+            if (segment == null || count == segment.getCapacity()
+                    || time >= segment.getStart() + segmentLength) {
+                Segment finished = segment;
+                if (finished != null) {
+                    finished.force();
+                }
+                long start = time;
+                File file = segmentFile(start);
+                while (file.exists() || compressedFile(file).exists()) {
+                    file = segmentFile(++start);
+                }
+                segment = Segment.create(file, time, segmentCapacity, widths);
+                count = 0;
+                if (finished != null && compress) {
+                    compressLater(finished.getFile());
+                }
+            }
+            return segment;
+        }
+
+        private File segmentFile(long start)
+        {
+            return new File(directory, String.format("%s-%013d%s", kind,
+                    start, rawSuffix));
+        }
+    }
+
+    /**
+     * Open a store for writing, creating the directory if needed. New
+     * records are added after the ones already in it.
+     *
+     * @param directory The directory of the store
+     * @throws IOException If the store cannot be opened, or another process
+     *             is writing to it
+     */
+    public TimeSeriesStore(String directory) throws IOException
+    {
+        this.directory = new File(directory);
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+
+        lockFile = new RandomAccessFile(new File(directory, "lock"), "rw");
+        FileLock locked;
+        try {
+            locked = lockFile.getChannel().tryLock();
+        }
+        catch (OverlappingFileLockException e) {
+            // Already opened for writing in this JVM
+            locked = null;
+        }
+        lock = locked;
+        if (lock == null) {
+            lockFile.close();
+            throw new IOException(directory + " is being written by another "
+                    + "process");
+        }
+
+        List<String> known = readNames(this.directory, true);
+        for (int i = 0; i < known.size(); i++) {
+            ids.put(known.get(i), i);
+        }
+        names = new FileOutputStream(new File(directory, namesFile), true);
+
+        counters = new Appender(counterKind, counterWidths, true);
+        timeSteps = new Appender(timeStepKind, timeStepWidths, false);
+    }
+
+    /**
+     * Add the counters of the interfaces of a router. They are committed
+     * together, so either all or none of them are read after a crash,
+     * unless they are split over two segments.
+     *
+     * @param time When the counters were polled
+     * @param router The name of the router
+     * @param columns The OIDs of the counter columns
+     * @param rows The ifIndex of each interface
+     * @param values The values, by column and then by interface
+     * @throws IOException If the records cannot be written
+     */
+    public synchronized void addCounters(long time, String router,
+            SnmpOID[] columns, int[] rows, long[] values) throws IOException
+    {
+        int routerId = getId(router);
+        int[] columnIds = new int[columns.length];
+        for (int c = 0; c < columns.length; c++) {
+            columnIds[c] = getId(columns[c].toString());
+        }
+
+        for (int c = 0; c < columns.length; c++) {
+            for (int r = 0; r < rows.length; r++) {
+                Segment segment = counters.next(time);
+                int i = counters.count++;
+                segment.putLong(counterTime, i, time);
+                segment.putInt(counterRouter, i, routerId);
+                segment.putInt(counterIfIndex, i, rows[r]);
+                segment.putInt(counterColumn, i, columnIds[c]);
+                segment.putLong(counterValue, i, values[c * rows.length + r]);
+                if (counters.count == segment.getCapacity()) {
+                    // The rest goes in the next segment
+                    segment.commit(counters.count);
+                }
+            }
+        }
+        if (counters.segment != null) {
+            counters.segment.commit(counters.count);
+        }
+    }
+
+    /**
+     * Add a TimeStep
+     *
+     * @param time When the TimeStep ended
+     * @param step The TimeStep
+     * @throws IOException If the record cannot be written
+     */
+    public synchronized void addTimeStep(long time, TimeStep step)
+            throws IOException
+    {
+        Segment segment = timeSteps.next(time);
+        int i = timeSteps.count++;
+        segment.putLong(timeStepTime, i, time);
+        segment.putInt(timeStepStep, i, step.step);
+        segment.putLong(timeStepOctets, i, Double
+                .doubleToRawLongBits(step.octets));
+        segment.putLong(timeStepPackets, i, Double
+                .doubleToRawLongBits(step.packets));
+        segment.commit(timeSteps.count);
+    }
+
+    /**
+     * Write everything that has been added to the disk, so that it also
+     * survives a crash of the machine
+     *
+     * @throws IOException If the names cannot be written
+     */
+    public synchronized void sync() throws IOException
+    {
+        names.getFD().sync();
+        if (counters.segment != null) {
+            counters.segment.force();
+        }
+        if (timeSteps.segment != null) {
+            timeSteps.segment.force();
+        }
+    }
+
+    /**
+     * Sync and close the store
+     *
+     * @throws IOException If the store cannot be synced
+     */
+    public synchronized void close() throws IOException
+    {
+        try {
+            sync();
+        }
+        finally {
+            // Let the compressions finish, so that no other writer starts
+            // one of the same segment
+            compressor.shutdown();
+            try {
+                compressor.awaitTermination(Long.MAX_VALUE,
+                        TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            names.close();
+            lock.release();
+            lockFile.close();
+        }
+    }
+
+    /**
+     * Compress a finished counter segment on the compressor thread. If it
+     * fails, the segment is kept and tried again when the store is opened.
+     */
+    private void compressLater(final File file)
+    {
+        compressor.execute(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    compressSegment(file);
+                }
+                catch (IOException e) {
+                    System.err.println("Cannot compress " + file + ": "
+                            + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the id of a name, adding it to the names file if it's new. The
+     * name is written before any record that refers to it is committed.
+     */
+    private int getId(String name) throws IOException
+    {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = ids.size();
+            names.write((name + "\n").getBytes(utf8));
+            ids.put(name, id);
+        }
+        return id;
+    }
+
+    /**
+     * Read the counter records of a time range
+     *
+     * @param directory The directory of the store
+     * @param from The earliest time to read
+     * @param to The time to read until, exclusive
+     * @param visitor Receives the records
+     * @throws IOException If the store cannot be read
+     */
+    public static void readCounters(String directory, long from, long to,
+            CounterVisitor visitor) throws IOException
+    {
+        File dir = new File(directory);
+        List<File> files = selectSegments(dir, counterKind, from, to);
+
+        // The commit counts are taken before the names are read, so all
+        // names of the records that are read are in the file
+        Segment[] segments = new Segment[files.size()];
+        int[] committed = new int[files.size()];
+        for (int s = 0; s < segments.length; s++) {
+            File file = files.get(s);
+            if (isCompressed(file)) {
+                continue;
+            }
+            try {
+                segments[s] = Segment.open(file, false);
+                committed[s] = segments[s].getCommitted();
+            }
+            catch (FileNotFoundException e) {
+                // It was compressed meanwhile
+                files.set(s, compressedFile(file));
+            }
+        }
+        List<String> known = readNames(dir, false);
+
+        for (int s = 0; s < segments.length; s++) {
+            Segment segment = segments[s];
+            if (segment == null) {
+                readCompressed(files.get(s), from, to, known, visitor);
+                continue;
+            }
+
+            for (int i = 0; i < committed[s]; i++) {
+                long time = segment.getLong(counterTime, i);
+                if (time < from) {
+                    continue;
+                }
+                else if (time >= to) {
+                    break;
+                }
+                visitor.visit(time, known.get(segment.getInt(counterRouter,
+                        i)), known.get(segment.getInt(counterColumn, i)),
+                        segment.getInt(counterIfIndex, i), segment.getLong(
+                                counterValue, i));
+            }
+        }
+    }
+
+    /**
+     * Read the counter records of a time range from a compressed segment
+     */
+    private static void readCompressed(File file, long from, long to,
+            List<String> known, CounterVisitor visitor) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.wrap(readCompressedFile(file));
+        buf.position(compressedHeaderSize - 4);
+        int groups = buf.getInt();
+        SampleDecoder decoder = null;
+        for (int g = 0; g < groups; g++) {
+            String router = known.get(buf.getInt());
+            int ifIndex = buf.getInt();
+            String column = known.get(buf.getInt());
+            int count = buf.getInt();
+            int length = buf.getInt();
+            int offset = buf.position();
+            buf.position(offset + length);
+            if (decoder == null) {
+                decoder = new SampleDecoder(buf.array(), offset, length,
+                        count, false);
+            }
+            else {
+                decoder.reset(buf.array(), offset, length, count);
+            }
+
+            while (decoder.next()) {
+                long time = decoder.getTime();
+                if (time < from) {
+                    continue;
+                }
+                else if (time >= to) {
+                    break;
+                }
+                visitor.visit(time, router, column, ifIndex, decoder
+                        .getValue());
+            }
+        }
+    }
+
+    /**
+     * Read the TimeSteps of a time range
+     *
+     * @param directory The directory of the store
+     * @param from The earliest time to read
+     * @param to The time to read until, exclusive
+     * @return The TimeSteps in the order they were added
+     * @throws IOException If the store cannot be read
+     */
+    public static List<TimeStep> readTimeSteps(String directory, long from,
+            long to) throws IOException
+    {
+        List<TimeStep> steps = new ArrayList<TimeStep>();
+        for (File file : selectSegments(new File(directory), timeStepKind,
+                from, to)) {
+            Segment segment = Segment.open(file, false);
+            int committed = segment.getCommitted();
+            for (int i = 0; i < committed; i++) {
+                long time = segment.getLong(timeStepTime, i);
+                if (time < from) {
+                    continue;
+                }
+                else if (time >= to) {
+                    break;
+                }
+                steps.add(new TimeStep(segment.getInt(timeStepStep, i),
+                        Double.longBitsToDouble(segment.getLong(
+                                timeStepOctets, i)), Double
+                                .longBitsToDouble(segment.getLong(
+                                        timeStepPackets, i))));
+            }
+        }
+        return steps;
+    }
+
+    /**
+     * Get the segment files of a kind, in the order of their start times. A
+     * segment that has been compressed, but not yet deleted, is left out.
+     */
+    private static File[] listSegments(File directory, String kind)
+    {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        List<File> segments = new ArrayList<File>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(kind + "-")
+                    && (name.endsWith(rawSuffix) || name
+                            .endsWith(compressedSuffix))) {
+                segments.add(file);
+            }
+        }
+        // The start times have the same number of digits, so the names sort
+        // in the order of time, with a compressed segment right after the
+        // segment it replaces
+        File[] sorted = segments.toArray(new File[segments.size()]);
+        Arrays.sort(sorted);
+        List<File> listed = new ArrayList<File>();
+        for (int i = 0; i < sorted.length; i++) {
+            if (i + 1 < sorted.length
+                    && sorted[i + 1].equals(compressedFile(sorted[i]))) {
+                continue;
+            }
+            listed.add(sorted[i]);
+        }
+        return listed.toArray(new File[listed.size()]);
+    }
+
+    /**
+     * Get the segment files of a kind that may have records in a time range
+     */
+    private static List<File> selectSegments(File directory, String kind,
+            long from, long to) throws IOException
+    {
+        List<File> segments = new ArrayList<File>();
+        for (File file : listSegments(directory, kind)) {
+            long start = getStart(file);
+            if (start >= to) {
+                break;
+            }
+            // A segment ends where the next one starts
+            if (!segments.isEmpty() && start <= from) {
+                segments.clear();
+            }
+            segments.add(file);
+        }
+        return segments;
+    }
+
+    /**
+     * Get the time of the first record of a segment, compressed or not
+     */
+    private static long getStart(File file) throws IOException
+    {
+        if (!isCompressed(file)) {
+            try {
+                return Segment.open(file, false).getStart();
+            }
+            catch (FileNotFoundException e) {
+                // It was compressed meanwhile
+                file = compressedFile(file);
+            }
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(8);
+            return raf.readLong();
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private static boolean isCompressed(File file)
+    {
+        return file.getName().endsWith(compressedSuffix);
+    }
+
+    private static File compressedFile(File file)
+    {
+        return new File(file.getPath() + "z");
+    }
+
+    /**
+     * Replace a counter segment by a compressed segment. The records are
+     * grouped by router, interface and column, and each group is encoded by
+     * a SampleEncoder. The file starts with the magic number, the version,
+     * the start time and the number of groups, and each group with the
+     * router, ifIndex, column, number of records and number of bytes. A
+     * CRC32 of everything before it ends the file.
+     */
+    private static void compressSegment(File file) throws IOException
+    {
+        File compressed = compressedFile(file);
+        if (!compressed.exists()) {
+            Segment segment = Segment.open(file, false);
+            int committed = segment.getCommitted();
+
+            // Number the groups in the order they first appear: by the
+            // router and column packed in a long, and then by the ifIndex.
+            // The records of a router and column are added together, so
+            // the last ones are looked up again first.
+            Map<Long, IntIntMap> numbers = new HashMap<Long, IntIntMap>();
+            long lastKey = -1;
+            IntIntMap lastNumbers = null;
+            int[] groups = new int[3 * 64];
+            int numGroups = 0;
+
+            // The group and record number of each record, so that sorting
+            // them puts the records of a group together, in time order
+            long[] order = new long[committed];
+            for (int i = 0; i < committed; i++) {
+                int router = segment.getInt(counterRouter, i);
+                int ifIndex = segment.getInt(counterIfIndex, i);
+                int column = segment.getInt(counterColumn, i);
+                long key = ((long) router << 32) | (column & 0xffffffffL);
+                if (key != lastKey) {
+                    lastNumbers = numbers.get(key);
+                    if (lastNumbers == null) {
+                        lastNumbers = new IntIntMap(16, -1);
+                        numbers.put(key, lastNumbers);
+                    }
+                    lastKey = key;
+                }
+                int group = lastNumbers.get(ifIndex);
+                if (group < 0) {
+                    group = numGroups++;
+                    lastNumbers.put(ifIndex, group);
+                    if (3 * numGroups > groups.length) {
+                        groups = Arrays.copyOf(groups, groups.length * 2);
+                    }
+                    groups[3 * group] = router;
+                    groups[3 * group + 1] = ifIndex;
+                    groups[3 * group + 2] = column;
+                }
+                order[i] = ((long) group << 32) | i;
+            }
+            Arrays.sort(order);
+
+            File temporary = new File(compressed.getPath() + ".tmp");
+            FileOutputStream output = new FileOutputStream(temporary);
+            try {
+                CheckedOutputStream checked = new CheckedOutputStream(
+                        new BufferedOutputStream(output), new CRC32());
+                DataOutputStream out = new DataOutputStream(checked);
+                out.writeInt(compressedMagic);
+                out.writeInt(compressedVersion);
+                out.writeLong(segment.getStart());
+                out.writeInt(numGroups);
+
+                // One group at a time, so only one is kept encoded
+                SampleEncoder samples = new SampleEncoder(false);
+                for (int n = 0; n < committed; n++) {
+                    int group = (int) (order[n] >>> 32);
+                    int i = (int) order[n];
+                    samples.add(segment.getLong(counterTime, i), segment
+                            .getLong(counterValue, i));
+                    if (n + 1 == committed
+                            || (int) (order[n + 1] >>> 32) != group) {
+                        out.writeInt(groups[3 * group]);
+                        out.writeInt(groups[3 * group + 1]);
+                        out.writeInt(groups[3 * group + 2]);
+                        out.writeInt(samples.size());
+                        out.writeInt(samples.length());
+                        out.write(samples.getBuffer(), 0, samples.length());
+                        samples.clear();
+                    }
+                }
+                out.writeLong(checked.getChecksum().getValue());
+                out.flush();
+                output.getFD().sync();
+            }
+            finally {
+                output.close();
+            }
+            if (!temporary.renameTo(compressed)) {
+                throw new IOException("Cannot rename " + temporary + " to "
+                        + compressed);
+            }
+        }
+        // If it cannot be deleted (while it's mapped, on some systems), the
+        // compressed segment is still read instead, and it's tried again
+        // when the store is opened
+        file.delete();
+    }
+
+    /**
+     * Read a whole compressed segment and check it
+     */
+    private static byte[] readCompressedFile(File file) throws IOException
+    {
+        byte[] bytes;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+        }
+        finally {
+            raf.close();
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        if (bytes.length < compressedHeaderSize + 8
+                || buf.getInt(0) != compressedMagic) {
+            throw new IOException(file + " is not a compressed segment");
+        }
+        if (buf.getInt(4) != compressedVersion) {
+            throw new IOException(file + " has unknown version "
+                    + buf.getInt(4));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 8);
+        if (crc.getValue() != buf.getLong(bytes.length - 8)) {
+            throw new IOException(file + " is corrupt");
+        }
+        return bytes;
+    }
+
+    /**
+     * Read the names file. A name without a newline at the end was not
+     * completely written, and is left out (and removed, if repair is true).
+     */
+    private static List<String> readNames(File directory, boolean repair)
+            throws IOException
+    {
+        List<String> known = new ArrayList<String>();
+        File file = new File(directory, namesFile);
+        if (!file.exists()) {
+            return known;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, repair ? "rw"
+                : "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            int start = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] == '\n') {
+                    known.add(new String(bytes, start, i - start, utf8));
+                    start = i + 1;
+                }
+            }
+            if (repair && start < bytes.length) {
+                raf.setLength(start);
+            }
+        }
+        finally {
+            raf.close();
+        }
+        return known;
+    }
+}
@@ -0,0 +1,118 @@
+package ep2300;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A compressed list of TimeSteps. The octets and the packets are kept as
+ * two SampleEncoders of doubles, with the step numbers as the times, so a
+ * TimeStep takes a few bytes instead of an object. The TimeSteps are
+ * decoded one at a time by forEach(), for instance straight into the input
+ * of the clustering.
+ */
+final class TimeStepHistory
+{
+    /**
+     * Receives the TimeSteps of the history, see forEach()
+     */
+    interface Visitor
+    {
+        /**
+         * Called for each TimeStep, in the order they were added
+         *
+         * @param step The step number
+         * @param octets The octets of the step
+         * @param packets The packets of the step
+         */
+        void visit(int step, double octets, double packets);
+    }
+
+    private final SampleEncoder octets = new SampleEncoder(true);
+    private final SampleEncoder packets = new SampleEncoder(true);
+
+    /**
+     * Add a TimeStep
+     *
+     * @param step The TimeStep
+     */
+    void add(TimeStep step)
+    {
+        octets.add(step.step, Double.doubleToRawLongBits(step.octets));
+        packets.add(step.step, Double.doubleToRawLongBits(step.packets));
+    }
+
+    /**
+     * Add several TimeSteps
+     *
+     * @param steps The TimeSteps, in order
+     */
+    void addAll(Collection<TimeStep> steps)
+    {
+        for (TimeStep step : steps) {
+            add(step);
+        }
+    }
+
+    /**
+     * Get the number of TimeSteps
+     *
+     * @return The number of TimeSteps
+     */
+    int size()
+    {
+        return octets.size();
+    }
+
+    /**
+     * Remove all TimeSteps
+     */
+    void clear()
+    {
+        octets.clear();
+        packets.clear();
+    }
+
+    /**
+     * Decode all TimeSteps, in the order they were added
+     *
+     * @param visitor Receives the TimeSteps
+     */
+    void forEach(Visitor visitor)
+    {
+        SampleDecoder octetDecoder = new SampleDecoder(octets);
+        SampleDecoder packetDecoder = new SampleDecoder(packets);
+        while (octetDecoder.next() && packetDecoder.next()) {
+            visitor.visit((int) octetDecoder.getTime(), octetDecoder
+                    .getDouble(), packetDecoder.getDouble());
+        }
+    }
+
+    /**
+     * Decode all TimeSteps into a list
+     *
+     * @return A new list of the TimeSteps, in the order they were added
+     */
+    List<TimeStep> toList()
+    {
+        final List<TimeStep> steps = new ArrayList<TimeStep>(size());
+        forEach(new Visitor() {
+            @Override
+            public void visit(int step, double octets, double packets)
+            {
+                steps.add(new TimeStep(step, octets, packets));
+            }
+        });
+        return steps;
+    }
+
+    /**
+     * Get the number of bytes that the compressed TimeSteps take up
+     *
+     * @return The number of encoded bytes
+     */
+    int getEncodedSize()
+    {
+        return octets.length() + packets.length();
+    }
+}
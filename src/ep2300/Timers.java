@@ -0,0 +1,75 @@
+package ep2300;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A timer thread shared by everything that needs to do something later,
+ * such as retries and spread out polls. The thread is a daemon, so it
+ * doesn't keep the program running. The tasks should be short, since they
+ * all run in the same thread. Tasks that may block, such as sending a
+ * request, which can create a session, are scheduled with later() instead,
+ * and run on a small pool of worker threads.
+ */
+public final class Timers
+{
+    private static final ScheduledExecutorService timer = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "Timers");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static final ExecutorService workers = Executors
+            .newFixedThreadPool(Math.max(2, Runtime.getRuntime()
+                    .availableProcessors()), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "Timers-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private Timers()
+    {
+        // Not instantiable
+    }
+
+    /**
+     * Get the shared timer
+     *
+     * @return The timer
+     */
+    public static ScheduledExecutorService get()
+    {
+        return timer;
+    }
+
+    /**
+     * Run a task on a worker thread after a delay. The timer thread only
+     * hands it over, so the task may block.
+     *
+     * @param task The task
+     * @param delay The delay
+     * @param unit The unit of the delay
+     */
+    public static void later(final Runnable task, long delay, TimeUnit unit)
+    {
+        timer.schedule(new Runnable() {
+            @Override
+            public void run()
+            {
+                workers.execute(task);
+            }
+        }, delay, unit);
+    }
+}
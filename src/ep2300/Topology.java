@@ -1,24 +1,32 @@
 package ep2300;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import com.adventnet.snmp.snmp2.SnmpAPI;
 import com.adventnet.snmp.snmp2.SnmpClient;
 import com.adventnet.snmp.snmp2.SnmpIpAddress;
 import com.adventnet.snmp.snmp2.SnmpOID;
 import com.adventnet.snmp.snmp2.SnmpPDU;
 import com.adventnet.snmp.snmp2.SnmpSession;
-import com.adventnet.snmp.snmp2.SnmpString;
-import com.adventnet.snmp.snmp2.UDPProtocolOptions;
+import com.adventnet.snmp.snmp2.SnmpUnsignedInt;
 
 /**
  * Creates a Topology over the given network.
@@ -26,26 +34,174 @@ import com.adventnet.snmp.snmp2.UDPProtocolOptions;
  * It does this by probing all routers and its neighbors (basically performing a
  * tree traversal). It needs to have the sysName included in the response and if
  * it is not it probes again.
+ * 
+ * The traversal is a level-synchronous breadth-first search: all addresses
+ * at one distance from the first router are walked before the next level is
+ * started. At most a limited number of walks (set with the system property
+ * ep2300.parallelism, 64 by default) are in progress at the same time. The
+ * callbacks can come from several threads, so the maps are concurrent.
+ * 
+ * The walk of an address also walks the addresses of all interfaces of the
+ * router (the ipAddrTable) next to the routes, until both columns end. The
+ * addresses are marked as probed, so each router is only walked once,
+ * through the first of its addresses that answers.
+ * 
+ * The routers of the responses are looked up through a TopologyIndex, by
+ * their addresses as ints. Its adjacency arrays are built again when a
+ * traversal has finished.
+ * 
+ * The topology can be refreshed while it's used for polling, with refresh()
+ * or periodically with startRefresh(). The number of routes of each router
+ * (ipCidrRouteNumber) and its first few routes are compared to the ones of
+ * the last walk, and only the routers where they have changed are walked
+ * again. New neighbors of these are
+ * discovered as usual, and routers that stop answering are removed.
  */
 public class Topology implements SnmpClient
 {
     /**
      * A mapping between router names and routers, preferably unique
      */
-    private Map<String, Router> routers = new HashMap<String, Router>();
+    private ConcurrentMap<String, Router> routers = new ConcurrentHashMap<String, Router>();
+
+    /**
+     * The dense ids of the routers, and a mapping from the IPv4 addresses
+     * to them. Each router can have several addresses.
+     */
+    private final TopologyIndex index = new TopologyIndex();
+
+    /**
+     * The addresses that have been walked or are queued to be, as the keys.
+     * Guarded by its own lock.
+     */
+    private final IntIntMap probed = new IntIntMap(1024, 0);
+
+    /**
+     * The number of routes found so far in the routing table of each
+     * address that is being walked.
+     */
+    private Map<String, Integer> walkedRoutes = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * The OIDs that each walk continues ipAdEntAddr and ipRouteNextHop from,
+     * by the address that is walked. An OID is null once its column has
+     * been walked to the end, and there is no entry before the first
+     * response.
+     */
+    private Map<String, SnmpOID[]> walkStarts = new ConcurrentHashMap<String, SnmpOID[]>();
+
+    /**
+     * The address through which each router is walked, by router name
+     */
+    private ConcurrentMap<String, String> walkers = new ConcurrentHashMap<String, String>();
+
+    // The number of walks that were skipped or cancelled, since another
+    // address of the same router was walked
+    private AtomicInteger redundantWalks = new AtomicInteger(0);
+
+    /**
+     * The number of routes (ipCidrRouteNumber) of each router at the last
+     * walk, by router name. It's -1 if the router doesn't have it.
+     */
+    private Map<String, Long> routeNumbers = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * A digest of the first headRows rows of ipRouteNextHop of each router
+     * at the last walk, by router name. refresh() compares it to the rows
+     * that the router has now, which is all it has to go by for routers
+     * without ipCidrRouteNumber.
+     */
+    private Map<String, Long> routeHeads = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * The digest of the first rows found so far by each walk, and the
+     * number of rows in it, by the address that is walked
+     */
+    private Map<String, long[]> walkedHeads = new ConcurrentHashMap<String, long[]>();
+
+    /**
+     * The next hops found so far by each walk, by the address that is
+     * walked. They replace the next hops of the router when the walk is
+     * complete.
+     */
+    private Map<String, IntIntMap> walkedHops = new ConcurrentHashMap<String, IntIntMap>();
+
+    /**
+     * The number of refreshes in a row that each router has not answered,
+     * by router name
+     */
+    private Map<String, Integer> misses = new HashMap<String, Integer>();
+
+    /**
+     * A router is removed after this many refreshes without an answer
+     */
+    private static final int maxMisses = 3;
+
+    // The number of rows of ipRouteNextHop that refresh() compares
+    private static final int headRows = 8;
+
+    // How long refresh() waits for the answers, in milliseconds
+    private static final long refreshTimeout = 60000;
+
+    // The walks ask for the sysName and the number of routes first
+    private static final int nonRepeaters = 2;
+
+    private volatile Thread refresher = null;
+
+    /**
+     * The maximum number of addresses that are walked at the same time
+     */
+    private static final int parallelism = Math.max(1, Integer.getInteger(
+            "ep2300.parallelism", 64));
+
+    /**
+     * The file that discover() saves the topology to, and loads it from if
+     * it's newer than cacheMaxAge milliseconds
+     */
+    private static final String cacheFile = System
+            .getProperty("ep2300.topologycache");
+    private static final long cacheMaxAge = Long.getLong(
+            "ep2300.topologymaxage", 3600000);
+
+    // The state of the traversal, guarded by the lock of levelLock
+    private final Object levelLock = new Object();
+    private final Queue<String> currentLevel = new LinkedList<String>();
+    private final Queue<String> nextLevel = new LinkedList<String>();
+    private int activeWalks = 0;
+    private int depth = 0;
+    private int levelSize = 0;
+    private long levelStart = 0;
+    private long discoveryStart = 0;
+    private boolean finished = true;
+
+    // The total time of the discovery in milliseconds
+    private volatile double discoveryTime = 0;
+
+    // Completed when the current traversal is finished
+    private volatile CompletableFuture<Topology> traversal = CompletableFuture
+            .completedFuture(this);
+
+    /**
+     * Failed probes are retried at most three times, and at most 1000 times
+     * during the whole discovery or each refresh.
+     */
+    private final RetryPolicy retries = new RetryPolicy(3, 100, 2000, 1000);
 
     /**
-     * A mapping from an IP to a router, each router can have several IPs.
+     * The addresses of the requests that are waiting for a response, by
+     * request ID
      */
-    private Map<String, Router> IPToRouter = new HashMap<String, Router>();
-    private Set<String> probed = new HashSet<String>();
+    private Map<Integer, String> requests = new ConcurrentHashMap<Integer, String>();
 
-    private AtomicInteger outstandingRequests = new AtomicInteger(0);
+    /**
+     * The number of times the probe of each address has been retried
+     */
+    private Map<String, Integer> attempts = new HashMap<String, Integer>();
 
     /**
-     * Default constructor. Only used by fromFile()
+     * Default constructor. Only used by fromFile() and TopologyFile
      */
-    private Topology()
+    Topology()
     {
         // Nothing to be done, as we don't do any probing
     }
@@ -57,8 +213,182 @@ public class Topology implements SnmpClient
      */
     public Topology(String firstRouter)
     {
-        probed.add(firstRouter);
-        probe(firstRouter);
+        markProbed(IPv4.parse(firstRouter));
+        walk(Collections.singletonList(firstRouter));
+    }
+
+    /**
+     * Starts a traversal with the given addresses as the first level. The
+     * previous traversal must be finished.
+     * 
+     * @param addresses The addresses to walk first
+     */
+    private void walk(Collection<String> addresses)
+    {
+        List<String> start;
+        synchronized (levelLock) {
+            finished = false;
+            traversal = new CompletableFuture<Topology>();
+            depth = 0;
+            discoveryStart = levelStart = System.nanoTime();
+            currentLevel.addAll(addresses);
+            levelSize = addresses.size();
+            start = nextWalks();
+        }
+        for (String ip : start) {
+            probe(ip);
+        }
+    }
+
+    /**
+     * Starts the discovery of a topology, without waiting for it.
+     * 
+     * The future is completed by the thread of the last response, so the
+     * actions that depend on it should not block, or should run in another
+     * executor (with the async methods of the future).
+     * 
+     * @param firstRouter The router to start probing at
+     * @return The future topology, completed when the discovery is finished
+     */
+    public static CompletableFuture<Topology> discoverAsync(String firstRouter)
+    {
+        return new Topology(firstRouter).traversal;
+    }
+
+    /**
+     * Discovers a topology and waits until it's finished. If a topology
+     * cache is set (the system property ep2300.topologycache) and the
+     * cached topology is recent enough, it's loaded instead, and otherwise
+     * the discovered topology is saved in the cache.
+     * 
+     * @param firstRouter The router to start probing at
+     * @return The topology
+     */
+    public static Topology discover(String firstRouter)
+    {
+        if (cacheFile != null && new File(cacheFile).exists()) {
+            try {
+                long age = System.currentTimeMillis()
+                        - TopologyFile.getSavedAt(cacheFile);
+                if (age >= 0 && age < cacheMaxAge) {
+                    long start = System.nanoTime();
+                    Topology topo = load(cacheFile);
+                    System.out.printf("Loaded %d routers from %s in %.1f ms\n",
+                            topo.routers.size(), cacheFile,
+                            (System.nanoTime() - start) / 1e6);
+                    return topo;
+                }
+            }
+            catch (IOException e) {
+                System.err.println("Cannot use the topology cache: "
+                        + e.getMessage());
+            }
+        }
+
+        Topology topo = new Topology(firstRouter);
+        topo.waitUntilFinished();
+        if (cacheFile != null) {
+            try {
+                topo.save(cacheFile);
+            }
+            catch (IOException e) {
+                System.err.println("Cannot save the topology cache: "
+                        + e.getMessage());
+            }
+        }
+        return topo;
+    }
+
+    /**
+     * Save the topology in the binary format of TopologyFile
+     * 
+     * @param filename The file to save it to
+     * @throws IOException If the file cannot be written
+     */
+    public void save(String filename) throws IOException
+    {
+        TopologyFile.save(this, filename);
+    }
+
+    /**
+     * Load a topology that was saved with save(). It can be refreshed like
+     * a discovered topology.
+     * 
+     * @param filename The file to load
+     * @return The topology
+     * @throws IOException If the file cannot be read or is not valid
+     */
+    public static Topology load(String filename) throws IOException
+    {
+        return TopologyFile.load(filename);
+    }
+
+    /**
+     * Adds a router that was loaded from a file
+     * 
+     * @param router The router, with its addresses and next hops
+     * @param walker The address it was walked through, or null
+     * @param routeNumber The number of routes at the last walk, -1 if the
+     *            router doesn't have it, or null if it's not known
+     * @param routeHead The digest of the first routes at the last walk, or
+     *            null if it's not known
+     */
+    void restore(Router router, String walker, Long routeNumber,
+            Long routeHead)
+    {
+        String name = router.getSysName();
+        routers.put(name, router);
+        index.add(router);
+        for (int ip : router.getAddresses()) {
+            markProbed(ip);
+        }
+        for (int hop : router.getNextHopAddresses()) {
+            markProbed(hop);
+        }
+        if (walker != null) {
+            walkers.put(name, walker);
+        }
+        if (routeNumber != null) {
+            routeNumbers.put(name, routeNumber);
+        }
+        if (routeHead != null) {
+            routeHeads.put(name, routeHead);
+        }
+    }
+
+    /**
+     * Get the address that a router was walked through
+     * 
+     * @param name The name of the router
+     * @return The address, or null if it was not walked
+     */
+    String getWalker(String name)
+    {
+        return walkers.get(name);
+    }
+
+    /**
+     * Get the number of routes of a router at its last walk
+     * 
+     * @param name The name of the router
+     * @return The number of routes, -1 if the router doesn't have it, or
+     *         null if it's not known
+     */
+    Long getRouteNumber(String name)
+    {
+        return routeNumbers.get(name);
+    }
+
+    /**
+     * Get the digest of the first routes of a router at its last walk, which
+     * refresh() compares with the routes it has now
+     * 
+     * @param name The name of the router
+     * @return The digest, or null if it's not known
+     */
+    Long getRouteHead(String name)
+    {
+        return routeHeads.get(name);
     }
 
     /**
@@ -87,17 +417,27 @@ public class Topology implements SnmpClient
 
                 // Add interface IPs
                 for (int i = 2; i < words.size() - 1; i++) {
-                    String ip = words.get(i);
-                    router.addIP(ip);
-                    topo.IPToRouter.put(ip, router);
+                    try {
+                        router.addIP(words.get(i));
+                    }
+                    catch (IllegalArgumentException e) {
+                        System.err.println(e.getMessage());
+                    }
                 }
+                topo.index.add(router);
             }
             else if (w0.matches("^[0-9]+[.:][0-9..]+")) {
                 // Neighbor list
-                router.nextHops.add(w0);
+                try {
+                    router.addNextHop(w0);
+                }
+                catch (IllegalArgumentException e) {
+                    System.err.println(e.getMessage());
+                }
             }
         }
 
+        topo.index.buildAdjacency();
         return topo;
     }
 
@@ -108,21 +448,37 @@ public class Topology implements SnmpClient
      */
     private void probe(String ip)
     {
-        // Start from discoverOID
-        probe(ip, SNMP.sysName, SNMP.ipRouteNextHop);
-        // probe(ip, SNMP.ipRouteNextHop);
+        // The addresses of the router are walked next to the routes
+        probe(ip, SNMP.ipAdEntAddr, SNMP.ipRouteNextHop);
     }
 
     /**
-     * Probe an IP for routes starting at startingOID
+     * Probe an IP for routes starting at startingOID. The sysName and the
+     * number of routes are always asked for as non-repeaters.
      * 
      * @param ip The IP to probe
-     * @param startingOID The OID to start at
+     * @param startingOID The OIDs to start the repeated columns at
      */
     private void probe(String ip, SnmpOID... startingOID)
     {
-        SNMP.sendOID(ip, this, startingOID);
-        outstandingRequests.incrementAndGet();
+        SnmpPDU pdu = new SnmpPDU();
+        pdu.setCommand(SnmpAPI.GETBULK_REQ_MSG);
+        pdu.setNonRepeaters(nonRepeaters);
+        pdu.setMaxRepetitions(SNMP.repetitions.getRepetitions(ip,
+                SNMP.ipRouteNextHop, nonRepeaters, startingOID.length));
+        pdu.addNull(SNMP.sysName);
+        pdu.addNull(SNMP.ipCidrRouteNumber);
+        for (SnmpOID oid : startingOID) {
+            pdu.addNull(oid);
+        }
+
+        // The address is registered before sending, since the callback can
+        // come before SNMP.send() returns.
+        int id = SNMP.newRequestID();
+        pdu.setRequestID(id);
+        requests.put(id, ip);
+
+        SNMP.send(ip, this, pdu);
     }
 
     @Override
@@ -137,112 +493,587 @@ public class Topology implements SnmpClient
     @Override
     public boolean callback(SnmpSession session, SnmpPDU pdu, int requestID)
     {
-        try {
-            if (pdu.getErrstat() != 0) {
-                System.err.println("A request has failed:");
-                System.err.println(pdu.getError());
-                return true; // No further processing is needed since the
-                // request
-                // failed
+        String routerIP = requests.remove(requestID);
+        if (routerIP == null) {
+            System.err.println("Response to an unknown request: " + requestID);
+            return true;
+        }
+
+        if (isRedundant(routerIP)) {
+            // The router is walked through another address
+            cancelWalk(session, routerIP);
+            return true;
+        }
+
+        if (pdu == null) {
+            // The request timed out, or could not be sent
+            retry(routerIP);
+        }
+        else if (pdu.getErrstat() != 0) {
+            System.err.println("A request has failed:");
+            System.err.println(pdu.getError());
+            // No further processing is needed since the request failed
+            walkFinished();
+        }
+        else if (SNMP.sysNamePrefix.matches(pdu.getObjectID(0))) {
+            SNMP.repetitions.recordResponse(routerIP, SNMP.ipRouteNextHop, pdu);
+            // The attempts only count failures in a row
+            synchronized (attempts) {
+                attempts.remove(routerIP);
             }
-            else {
-                UDPProtocolOptions opt = (UDPProtocolOptions) session
-                        .getProtocolOptions();
-                String routerIP = opt.getRemoteAddress().getCanonicalHostName();
-
-                if (SNMP.samePrefix(pdu.getObjectID(0), SNMP.sysName)) {
-                    // Check if this is a new router
-                    Router router;
-                    ArrayResponse<SnmpString> sysArray = new ArrayResponse<SnmpString>(
-                            pdu, SNMP.sysName, SNMP.numPerResponse);
-                    // Make sure we get a sysName in the response
-                    if (sysArray.getElements().size() > 0) {
-                        String routerName = sysArray.getElements().get(0)
-                                .toString();
-                        router = routers.get(routerName);
-                        if (router == null) {
-                            System.out.println("New router discovered: \t"
-                                    + routerName);
-                            router = new Router(routerName);
-                            router.addIP(routerIP);
-                            routers.put(routerName, router);
-                        }
-                        IPToRouter.put(routerIP, router);
-                        router.addIP(routerIP);
-                    }
-                    else {
-                        System.err
-                                .println("We didnt get router sysName at the same "
-                                        + "time as we got the first respons from that router!");
-                        probe(routerIP);
-                        return true;
-                    }
 
-                    // Go through the lists of next hops (=neighbors)
-                    ArrayResponse<SnmpIpAddress> respArray = new ArrayResponse<SnmpIpAddress>(
-                            pdu, SNMP.ipRouteNextHop, SNMP.numPerResponse);
+            // The first request of a walk asks for both columns, the others
+            // for the columns that haven't reached their end
+            SnmpOID[] starts = walkStarts.get(routerIP);
+            boolean first = (starts == null);
+            boolean addresses = (first || starts[0] != null);
+            boolean routeColumn = (first || starts[1] != null);
+            int numColumns = (addresses ? 1 : 0) + (routeColumn ? 1 : 0);
+
+            // Check if this is a new router
+            String routerName = pdu.getVariable(0).toString();
+            Router router = routers.get(routerName);
+            if (router == null) {
+                Router created = new Router(routerName);
+                router = routers.putIfAbsent(routerName, created);
+                if (router == null) {
+                    System.out.println("New router discovered: \t"
+                            + routerName);
+                    router = created;
+                }
+            }
+            index.addAddress(router, IPv4.parse(routerIP));
+
+            if (first) {
+                String walker = walkers.putIfAbsent(routerName, routerIP);
+                if (walker != null && !walker.equals(routerIP)) {
+                    // Another address of the router answered first
+                    cancelWalk(session, routerIP);
+                    return true;
+                }
+
+                routeNumbers.put(routerName, getRouteNumber(pdu));
+                walkedHeads.put(routerIP, new long[2]);
+                walkedHops.put(routerIP, new IntIntMap(16, 0));
+            }
 
-                    for (SnmpIpAddress addr : respArray) {
-                        String addrStr = addr.toString();
-                        if (addrStr.equals(routerIP)) {
-                            continue;
-                        }
+            // None of the addresses of the router need to be walked
+            SnmpOID nextAddress = null;
+            if (addresses) {
+                ArrayResponse<SnmpIpAddress> addrArray = new ArrayResponse<SnmpIpAddress>(
+                        pdu, SNMP.ipAdEntAddr, nonRepeaters, numColumns);
+                for (SnmpIpAddress addr : addrArray) {
+                    int ip = IPv4.parse(addr.toString());
+                    index.addAddress(router, ip);
+                    markProbed(ip);
+                }
+                nextAddress = addrArray.getNextStartOID();
+            }
 
-                        router.nextHops.add(addrStr);
+            // Go through the lists of next hops (=neighbors), unless the
+            // request only continues the addresses
+            Integer routes = walkedRoutes.get(routerIP);
+            routes = (routes != null ? routes : 0);
+            long[] head = walkedHeads.get(routerIP);
+            IntIntMap hops = walkedHops.get(routerIP);
+            SnmpOID nextRoute = null;
+            if (routeColumn) {
+                ArrayResponse<SnmpIpAddress> respArray = new ArrayResponse<SnmpIpAddress>(
+                        pdu, SNMP.ipRouteNextHop, nonRepeaters + numColumns
+                                - 1, numColumns);
+                routes += respArray.getElements().size();
+                digestHead(head, respArray);
 
-                        if (probed.add(addrStr)) {
-                            // Not yet probed
-                            probe(addrStr);
-                        }
+                List<String> newAddresses = new ArrayList<String>();
+                for (SnmpIpAddress addr : respArray) {
+                    String addrStr = addr.toString();
+                    int hop = IPv4.parse(addrStr);
+                    if (router.hasIP(hop)) {
+                        continue;
                     }
 
-                    if (!respArray.reachedEnd()) {
-                        // The list is not complete, request more elements
-                        probe(routerIP, SNMP.sysName, respArray
-                                .getNextStartOID());
+                    hops.put(hop, 1);
+
+                    if (markProbed(hop)) {
+                        // Not yet probed, so it's in the next level
+                        newAddresses.add(addrStr);
                     }
-                    else {
-                        // We're done
-                        session.removeSnmpClient(this);
+                }
+                if (!newAddresses.isEmpty()) {
+                    synchronized (levelLock) {
+                        nextLevel.addAll(newAddresses);
                     }
+                }
+                nextRoute = respArray.getNextStartOID();
+            }
 
-                    return true; // done processing PDU
+            if (nextAddress != null || nextRoute != null) {
+                // A list is not complete, request more elements
+                walkedRoutes.put(routerIP, routes);
+                walkStarts.put(routerIP,
+                        new SnmpOID[] { nextAddress, nextRoute });
+                List<SnmpOID> next = new ArrayList<SnmpOID>(2);
+                if (nextAddress != null) {
+                    next.add(nextAddress);
+                }
+                if (nextRoute != null) {
+                    next.add(nextRoute);
                 }
-                else {
-                    // The callback was not a ipRouteNextHop
-                    System.err.println("Invalid response, probing again: "
-                            + pdu.getObjectID(0));
-                    probe(routerIP);
-                    return false;
+                probe(routerIP, next.toArray(new SnmpOID[next.size()]));
+            }
+            else {
+                // We're done, the new next hops replace the old ones. Hops
+                // to addresses that came after them are the router's own.
+                int[] found = hops.keys();
+                int n = 0;
+                for (int hop : found) {
+                    if (!router.hasIP(hop)) {
+                        found[n++] = hop;
+                    }
                 }
+                router.setNextHops(Arrays.copyOf(found, n));
+                routeHeads.put(routerName, head[0]);
+                walkStarts.remove(routerIP);
+                walkedHeads.remove(routerIP);
+                walkedHops.remove(routerIP);
+                walkedRoutes.remove(routerIP);
+                SNMP.repetitions.recordRows(routerIP, SNMP.ipRouteNextHop,
+                        routes);
+                SNMP.unregister(session, this);
+                walkFinished();
+            }
+        }
+        else {
+            // The callback was not a ipRouteNextHop
+            System.err.println("Invalid response, probing again: "
+                    + pdu.getObjectID(0));
+            retry(routerIP);
+            return false;
+        }
+        return true; // done processing PDU
+    }
 
+    /**
+     * Probe an IP again later, from the start of its routing table, if the
+     * retry policy allows it.
+     * 
+     * @param ip The IP to probe
+     */
+    private void retry(final String ip)
+    {
+        int attempt;
+        synchronized (attempts) {
+            Integer previous = attempts.get(ip);
+            attempt = (previous != null ? previous : 0);
+            attempts.put(ip, attempt + 1);
+        }
+        walkedRoutes.remove(ip);
+        walkStarts.remove(ip);
+        walkedHeads.remove(ip);
+        walkedHops.remove(ip);
+
+        // The walk is still in progress while the retry is waiting
+        boolean scheduled = retries.retry(attempt, new Runnable() {
+            @Override
+            public void run()
+            {
+                probe(ip);
             }
+        });
+
+        if (!scheduled) {
+            System.err.println("Giving up on probing " + ip);
+            walkFinished();
+        }
+    }
+
+    /**
+     * Check if an address belongs to a known router that is walked through
+     * another address. A router that has not been walked yet, like those of
+     * fromFile(), can be walked through any of its addresses.
+     * 
+     * @param ip The address
+     * @return True if the address doesn't need to be walked
+     */
+    private boolean isRedundant(String ip)
+    {
+        Router owner = index.getRouter(ip);
+        if (owner == null) {
+            return false;
+        }
+        String walker = walkers.get(owner.getSysName());
+        return walker != null && !walker.equals(ip);
+    }
+
+    /**
+     * Get the number of routes (ipCidrRouteNumber) from a response, where it
+     * is the second variable binding
+     * 
+     * @param pdu The response
+     * @return The number of routes, or -1 if the router doesn't have it
+     */
+    private static long getRouteNumber(SnmpPDU pdu)
+    {
+        if (pdu.getVariableBindings().size() < 2
+                || !SNMP.ipCidrRouteNumberPrefix.matches(pdu.getObjectID(1))
+                || !(pdu.getVariable(1) instanceof SnmpUnsignedInt)) {
+            return -1;
+        }
+        return ((SnmpUnsignedInt) pdu.getVariable(1)).longValue();
+    }
+
+    /**
+     * Adds the rows of ipRouteNextHop in a response to a digest of the
+     * first rows of a routing table, until it has headRows rows
+     * 
+     * @param head The digest and the number of rows in it
+     * @param rows The rows of the response
+     */
+    private static void digestHead(long[] head,
+            ArrayResponse<SnmpIpAddress> rows)
+    {
+        List<SnmpOID> oids = rows.getOIDs();
+        List<SnmpIpAddress> hops = rows.getElements();
+        for (int i = 0; i < oids.size() && head[1] < headRows; i++) {
+            head[0] = head[0] * 31 + oids.get(i).toString().hashCode();
+            head[0] = head[0] * 31 + hops.get(i).toString().hashCode();
+            head[1]++;
         }
-        finally {
-            // System.out.println(outstandingRequests);
-            if (outstandingRequests.decrementAndGet() <= 0) {
-                System.out.println("Discovery finished.\n\n");
-                synchronized (this) {
-                    notifyAll();
+    }
+
+    /**
+     * Stops the walk of an address, since its router is walked through
+     * another address.
+     * 
+     * @param session The session of the address
+     * @param ip The address
+     */
+    private void cancelWalk(SnmpSession session, String ip)
+    {
+        walkedRoutes.remove(ip);
+        walkStarts.remove(ip);
+        walkedHeads.remove(ip);
+        walkedHops.remove(ip);
+        SNMP.unregister(session, this);
+        redundantWalks.incrementAndGet();
+        walkFinished();
+    }
+
+    /**
+     * Takes addresses from the current level to walk, as long as there are
+     * fewer walks in progress than the parallelism allows. Addresses of
+     * routers that are already known are skipped. When the level is done,
+     * the next level is started. Must be called with the lock of levelLock
+     * held.
+     * 
+     * @return The addresses to start walking
+     */
+    private List<String> nextWalks()
+    {
+        List<String> start = new ArrayList<String>();
+        while (true) {
+            while (activeWalks < parallelism && !currentLevel.isEmpty()) {
+                String ip = currentLevel.poll();
+                if (isRedundant(ip)) {
+                    redundantWalks.incrementAndGet();
+                    continue;
                 }
+                start.add(ip);
+                activeWalks++;
             }
+            if (activeWalks > 0) {
+                return start;
+            }
+
+            // The level is done
+            long now = System.nanoTime();
+            System.out.printf("Level %d: %d addresses in %.1f ms\n", depth,
+                    levelSize, (now - levelStart) / 1e6);
+
+            if (nextLevel.isEmpty()) {
+                discoveryTime = (now - discoveryStart) / 1e6;
+                System.out.printf("Discovery finished in %.1f ms "
+                        + "(%d redundant walks avoided, %s).\n\n\n",
+                        discoveryTime, redundantWalks.get(), retries);
+                finished = true;
+                index.buildAdjacency();
+                levelLock.notifyAll();
+                SNMP.unregister(null, this);
+                traversal.complete(this);
+                return start;
+            }
+
+            depth++;
+            levelSize = nextLevel.size();
+            levelStart = now;
+            currentLevel.addAll(nextLevel);
+            nextLevel.clear();
         }
     }
 
     /**
-     * This method is run until the topology discovery is completed
+     * Marks the walk of an address as finished, because the whole routing
+     * table was walked or because we gave up. Starts the next walk of the
+     * level, or the next level if this level is done.
      */
-    public synchronized void waitUntilFinished()
+    private void walkFinished()
     {
-        while (outstandingRequests.get() > 0) {
-            try {
-                wait();
+        List<String> start;
+        synchronized (levelLock) {
+            activeWalks--;
+            start = nextWalks();
+        }
+
+        for (String ip : start) {
+            probe(ip);
+        }
+    }
+
+    /**
+     * This method is run until the topology discovery is completed. The
+     * sessions are left open, so they can be reused when polling.
+     */
+    public void waitUntilFinished()
+    {
+        synchronized (levelLock) {
+            while (!finished) {
+                try {
+                    levelLock.wait();
+                }
+                catch (InterruptedException e) {
+                    // Nothing to do but continue
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks which routers have changed since they were walked, and walks
+     * them again. New routers are discovered from their neighbors, and
+     * routers that have not answered in several refreshes are removed. The
+     * topology can be polled at the same time. Returns when the refresh is
+     * done.
+     * 
+     * @throws InterruptedException If the thread was interrupted while
+     *             waiting for the routers
+     */
+    public synchronized void refresh() throws InterruptedException
+    {
+        waitUntilFinished();
+        long start = System.nanoTime();
+
+        // Ask all routers for their name, number of routes and first routes
+        // at once
+        final Map<Integer, Router> checks = new ConcurrentHashMap<Integer, Router>();
+        final Map<Router, SnmpPDU> answers = new ConcurrentHashMap<Router, SnmpPDU>();
+        final CountDownLatch done = new CountDownLatch(routers.size());
+        SnmpClient checker = new SnmpClient() {
+            @Override
+            public boolean authenticate(SnmpPDU pdu, String community)
+            {
+                return true;
+            }
+
+            @Override
+            public boolean callback(SnmpSession session, SnmpPDU pdu,
+                    int requestID)
+            {
+                Router router = checks.remove(requestID);
+                if (router != null) {
+                    if (pdu != null && pdu.getErrstat() == 0) {
+                        answers.put(router, pdu);
+                    }
+                    done.countDown();
+                }
+                return true;
+            }
+
+            @Override
+            public void debugPrint(String debugOutput)
+            {
+                System.err.println(debugOutput);
+            }
+        };
+
+        List<Router> checked = new ArrayList<Router>(routers.values());
+        for (Router router : checked) {
+            String ip = walkers.get(router.getSysName());
+            SnmpPDU pdu = new SnmpPDU();
+            pdu.setCommand(SnmpAPI.GETBULK_REQ_MSG);
+            pdu.setNonRepeaters(nonRepeaters);
+            pdu.setMaxRepetitions(headRows);
+            pdu.addNull(SNMP.sysName);
+            pdu.addNull(SNMP.ipCidrRouteNumber);
+            pdu.addNull(SNMP.ipRouteNextHop);
+            int id = SNMP.newRequestID();
+            pdu.setRequestID(id);
+            checks.put(id, router);
+            SNMP.send(ip != null ? ip : router.getIP(), checker, pdu);
+        }
+        if (!done.await(refreshTimeout, TimeUnit.MILLISECONDS)) {
+            System.err.println("Refresh: " + done.getCount()
+                    + " routers did not answer in time");
+        }
+        // Late answers count as misses
+        checks.clear();
+        SNMP.unregister(null, checker);
+
+        List<String> changed = new ArrayList<String>();
+        int removed = 0;
+        for (Router router : checked) {
+            String name = router.getSysName();
+            SnmpPDU pdu = answers.get(router);
+            if (pdu == null) {
+                Integer missed = misses.get(name);
+                missed = (missed != null ? missed : 0) + 1;
+                misses.put(name, missed);
+                if (missed >= maxMisses) {
+                    removeRouter(router);
+                    removed++;
+                }
+                continue;
+            }
+            misses.remove(name);
+
+            if (hasChanged(name, pdu)) {
+                String ip = walkers.get(name);
+                changed.add(ip != null ? ip : router.getIP());
+            }
+        }
+
+        if (!changed.isEmpty()) {
+            retries.newCycle(1000);
+            synchronized (attempts) {
+                attempts.clear();
+            }
+            walk(changed);
+            waitUntilFinished();
+        }
+        else if (removed > 0) {
+            index.buildAdjacency();
+        }
+
+        System.out.printf("Refreshed %d routers in %.1f ms: %d changed, "
+                + "%d removed, %d routers now\n", checked.size(), (System
+                .nanoTime() - start) / 1e6, changed.size(), removed, routers
+                .size());
+    }
+
+    /**
+     * Checks if the routing table of a router may have changed since its
+     * last walk. The number of routes is compared if the router has it, and
+     * the first routes in any case, since they are all there is to compare
+     * for routers without ipCidrRouteNumber.
+     * 
+     * @param name The name of the router
+     * @param pdu The answer to the request in refresh()
+     * @return True if the router should be walked again
+     */
+    private boolean hasChanged(String name, SnmpPDU pdu)
+    {
+        Long routes = routeNumbers.get(name);
+        if (routes == null || !name.equals(pdu.getVariable(0).toString())) {
+            return true;
+        }
+
+        long[] head = new long[2];
+        digestHead(head, new ArrayResponse<SnmpIpAddress>(pdu,
+                SNMP.ipRouteNextHop, nonRepeaters, 1));
+        Long lastHead = routeHeads.get(name);
+        long number = getRouteNumber(pdu);
+        if (number < 0) {
+            return lastHead == null || lastHead != head[0];
+        }
+        return routes != number
+                || (lastHead != null && lastHead != head[0]);
+    }
+
+    /**
+     * Removes a router, and forgets its addresses so that it can be
+     * discovered again.
+     */
+    private void removeRouter(Router router)
+    {
+        String name = router.getSysName();
+        System.out.println("Router removed: \t" + name);
+        routers.remove(name);
+        walkers.remove(name);
+        routeNumbers.remove(name);
+        routeHeads.remove(name);
+        misses.remove(name);
+        index.remove(router);
+        synchronized (probed) {
+            for (int ip : router.getAddresses()) {
+                probed.remove(ip);
             }
-            catch (InterruptedException e) {
-                // Nothing to do but continue
+        }
+    }
+
+    /**
+     * Marks an address as probed
+     * 
+     * @param ip The address as an int
+     * @return True if it was not probed before
+     */
+    private boolean markProbed(int ip)
+    {
+        synchronized (probed) {
+            if (probed.containsKey(ip)) {
+                return false;
             }
+            probed.put(ip, 1);
+            return true;
         }
-        SNMPConnection.close();
+    }
+
+    /**
+     * Refreshes the topology periodically in a background thread, until
+     * stopRefresh() is called.
+     * 
+     * @param interval The time between the refreshes, in milliseconds
+     */
+    public void startRefresh(final long interval)
+    {
+        stopRefresh();
+        refresher = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    while (true) {
+                        Thread.sleep(interval);
+                        refresh();
+                    }
+                }
+                catch (InterruptedException e) {
+                    // Stopped
+                }
+            }
+        }, "Topology refresh");
+        refresher.setDaemon(true);
+        refresher.start();
+    }
+
+    /**
+     * Stops the periodic refreshes, if they are running
+     */
+    public void stopRefresh()
+    {
+        Thread thread = refresher;
+        if (thread != null) {
+            thread.interrupt();
+            refresher = null;
+        }
+    }
+
+    /**
+     * Get the time that the discovery took
+     * 
+     * @return The time in milliseconds, or 0 if it has not finished
+     */
+    public double getDiscoveryTime()
+    {
+        return discoveryTime;
     }
 
     /**
@@ -251,8 +1082,7 @@ public class Topology implements SnmpClient
     public void clear()
     {
         for (Router router : routers.values()) {
-            router.octets.clear();
-            router.packets.clear();
+            router.clearCounters();
         }
     }
 
@@ -272,6 +1102,17 @@ public class Topology implements SnmpClient
         return routers;
     }
 
+    /**
+     * Get the int-keyed index of the topology, with the dense ids of the
+     * routers, their addresses and their neighbors
+     * 
+     * @return The index
+     */
+    public TopologyIndex getIndex()
+    {
+        return index;
+    }
+
     /**
      * Return the Router associated with the specified address
      * 
@@ -280,7 +1121,7 @@ public class Topology implements SnmpClient
      */
     public Router getRouterFromIP(String address)
     {
-        return IPToRouter.get(address);
+        return index.getRouter(address);
     }
 
     @Override
@@ -293,16 +1134,17 @@ public class Topology implements SnmpClient
         for (String hostname : routerList) {
             Router router = routers.get(hostname);
             out.printf("%s: ( ", hostname);
-            for (String ip : router.ips) {
+            for (String ip : router.getIPs()) {
                 out.printf("%s ", ip);
             }
             out.printf(")\n");
-            for (String nextHop : router.nextHops) {
+            for (int nextHop : router.getNextHopAddresses()) {
                 // Print neighbor
-                if (IPToRouter.get(nextHop) == router) {
+                Router neighbor = index.getRouter(nextHop);
+                if (neighbor == router) {
                     continue;
                 }
-                out.println("\t" + nextHop + " (" + IPToRouter.get(nextHop)
+                out.println("\t" + IPv4.toString(nextHop) + " (" + neighbor
                         + ")");
             }
             out.println();
@@ -326,13 +1168,16 @@ public class Topology implements SnmpClient
             // Read from file
             topo = Topology.fromFile(args[1]);
         }
+        else if (args.length == 2 && args[0].equals("-b")) {
+            // Read from a file saved with save()
+            topo = Topology.load(args[1]);
+        }
         else if (args.length == 1) {
             // Explore the network
             System.out.println("Discovering the topology...");
 
-            topo = new Topology(args[0]);
-            topo.waitUntilFinished();
-            SNMPConnection.close();
+            topo = Topology.discover(args[0]);
+            SNMP.close();
         }
         else {
             System.err.println("usage: java Topology <first router>");
@@ -343,6 +1188,10 @@ public class Topology implements SnmpClient
         System.out.println("----------------------------------------");
         System.out.println("Discovered topology:\n");
         System.out.print(topo.toString());
+
+        System.out.println("----------------------------------------");
+        System.out.println("Chosen max-repetitions:\n");
+        System.out.print(SNMP.repetitions.toString());
     }
 
 }
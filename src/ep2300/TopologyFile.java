@@ -0,0 +1,270 @@
+package ep2300;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Saves and loads topologies in a compact binary format, so that a monitor
+ * can start from a saved topology instead of discovering the network
+ * again. The file is memory mapped when it's loaded.
+ *
+ * The file is big endian, and looks like this:
+ *
+ * <pre>
+ * int magic ("EPTP"), int version, long savedAt, int numRouters
+ * numRouters x (short length, UTF-8 bytes)       the sysNames
+ * numRouters x (int name, int walker, int flags, long routeNumber,
+ *               long routeHead, int numIPs, numIPs x int,
+ *               int numHops, numHops x int)
+ * int CRC32 of everything before it
+ * </pre>
+ *
+ * where the addresses are IPv4 addresses as ints, name is the index of the
+ * sysName of the router and walker is the address the router was walked
+ * through (0 if none). routeNumber is its number of routes at the last walk
+ * (-1 if it doesn't have ipCidrRouteNumber) and routeHead the digest of its
+ * first routes, which refresh() compares. They are only set if the bits
+ * hasRouteNumber and hasRouteHead of flags are, so a loaded topology is
+ * refreshed like the one that was saved.
+ */
+public final class TopologyFile
+{
+    private static final int magic = 0x45505450;
+
+    /**
+     * The version of the format that is written. Files of other versions
+     * are not loaded.
+     */
+    public static final int version = 2;
+
+    // The bits of the flags of a router
+    private static final int hasRouteNumber = 1;
+    private static final int hasRouteHead = 2;
+
+    private static final int headerSize = 4 + 4 + 8 + 4;
+
+    private static final Charset utf8 = Charset.forName("UTF-8");
+
+    private TopologyFile()
+    {
+        // Not instantiable
+    }
+
+    /**
+     * Save a topology. The file is written under a temporary name and then
+     * renamed, so a file that is being loaded is never half written.
+     *
+     * @param topology The topology to save
+     * @param filename The file to save it to
+     * @throws IOException If the file cannot be written, or an address is
+     *             not an IPv4 address
+     */
+    public static void save(Topology topology, String filename)
+            throws IOException
+    {
+        List<Router> routers = new ArrayList<Router>(topology.getTopology()
+                .values());
+        File file = new File(filename);
+        File temp = new File(filename + ".tmp");
+
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)), crc));
+        try {
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(routers.size());
+
+            for (Router router : routers) {
+                byte[] name = router.getSysName().getBytes(utf8);
+                out.writeShort(name.length);
+                out.write(name);
+            }
+
+            for (int i = 0; i < routers.size(); i++) {
+                Router router = routers.get(i);
+                String walker = topology.getWalker(router.getSysName());
+                out.writeInt(i);
+                out.writeInt(walker != null ? toInt(walker) : 0);
+                Long routeNumber = topology.getRouteNumber(router
+                        .getSysName());
+                Long routeHead = topology.getRouteHead(router.getSysName());
+                out.writeInt((routeNumber != null ? hasRouteNumber : 0)
+                        | (routeHead != null ? hasRouteHead : 0));
+                out.writeLong(routeNumber != null ? routeNumber : 0);
+                out.writeLong(routeHead != null ? routeHead : 0);
+                writeAddresses(out, router.getAddresses());
+                writeAddresses(out, router.getNextHopAddresses());
+            }
+
+            // Not included in the checksum
+            out.flush();
+            out.writeInt((int) crc.getValue());
+        }
+        finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            // Some platforms can't rename over an existing file
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Cannot rename " + temp + " to " + file);
+            }
+        }
+    }
+
+    private static void writeAddresses(DataOutputStream out, int[] addresses)
+            throws IOException
+    {
+        out.writeInt(addresses.length);
+        for (int address : addresses) {
+            out.writeInt(address);
+        }
+    }
+
+    /**
+     * Load a saved topology
+     *
+     * @param filename The file to load
+     * @return The topology
+     * @throws IOException If the file cannot be read, or is not a valid
+     *             topology of this version
+     */
+    public static Topology load(String filename) throws IOException
+    {
+        ByteBuffer buf = map(filename);
+        if (buf.remaining() < headerSize + 4) {
+            throw new IOException(filename + " is too short");
+        }
+
+        // Check the checksum first, so that the rest can trust the counts
+        ByteBuffer body = buf.duplicate();
+        body.limit(buf.limit() - 4);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != buf.getInt(buf.limit() - 4)) {
+            throw new IOException(filename + " is corrupt");
+        }
+
+        try {
+            readHeader(buf, filename);
+            int numRouters = buf.getInt();
+
+            String[] names = new String[numRouters];
+            for (int i = 0; i < numRouters; i++) {
+                byte[] name = new byte[buf.getShort() & 0xffff];
+                buf.get(name);
+                names[i] = new String(name, utf8);
+            }
+
+            Topology topology = new Topology();
+            for (int i = 0; i < numRouters; i++) {
+                Router router = new Router(names[buf.getInt()]);
+                int walker = buf.getInt();
+                int flags = buf.getInt();
+                long routeNumber = buf.getLong();
+                long routeHead = buf.getLong();
+                for (int n = buf.getInt(); n > 0; n--) {
+                    router.addIP(buf.getInt());
+                }
+                int[] hops = new int[buf.getInt()];
+                for (int n = 0; n < hops.length; n++) {
+                    hops[n] = buf.getInt();
+                }
+                router.setNextHops(hops);
+                topology.restore(router, walker != 0 ? IPv4.toString(walker)
+                        : null, (flags & hasRouteNumber) != 0 ? routeNumber
+                        : null, (flags & hasRouteHead) != 0 ? routeHead : null);
+            }
+            topology.getIndex().buildAdjacency();
+            return topology;
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException(filename + " is truncated");
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException(filename + " has an invalid name index");
+        }
+    }
+
+    /**
+     * Get the time when a topology was saved, without loading it
+     *
+     * @param filename The file to check
+     * @return The time in milliseconds since the epoch
+     * @throws IOException If the file cannot be read, or is not a valid
+     *             topology of this version
+     */
+    public static long getSavedAt(String filename) throws IOException
+    {
+        ByteBuffer buf = map(filename);
+        if (buf.remaining() < headerSize) {
+            throw new IOException(filename + " is too short");
+        }
+        return readHeader(buf, filename);
+    }
+
+    /**
+     * Checks the magic number and the version
+     *
+     * @return The time when the file was saved
+     */
+    private static long readHeader(ByteBuffer buf, String filename)
+            throws IOException
+    {
+        if (buf.getInt() != magic) {
+            throw new IOException(filename + " is not a topology file");
+        }
+        int fileVersion = buf.getInt();
+        if (fileVersion != version) {
+            throw new IOException(filename + " has version " + fileVersion
+                    + ", not " + version);
+        }
+        return buf.getLong();
+    }
+
+    /**
+     * Maps a whole file into memory. The mapping stays valid after the file
+     * is closed.
+     */
+    private static MappedByteBuffer map(String filename) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel
+                    .size());
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Converts an address to an int for the file
+     */
+    private static int toInt(String address) throws IOException
+    {
+        try {
+            return IPv4.parse(address);
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+}
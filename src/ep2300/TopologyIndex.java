@@ -0,0 +1,201 @@
+package ep2300;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The int-keyed index of a topology. The routers get dense ids in the
+ * order they are added, and their IPv4 addresses, stored as ints, are
+ * mapped to the ids by an IntIntMap. Topology resolves the router of every
+ * response through it, so there is no String per address in the lookup.
+ *
+ * The neighbors of the routers are kept in compressed sparse row (CSR)
+ * arrays: the ids of the neighbors of router i are at [start[i],
+ * start[i + 1]) of one shared array. They are built again with
+ * buildAdjacency() when a traversal has finished, since the next hops
+ * change while it's in progress.
+ *
+ * The ids of removed routers are not reused, so an id always means the same
+ * router. The index can be used by several threads.
+ */
+public final class TopologyIndex
+{
+    private final List<Router> routers = new ArrayList<Router>();
+    private final IntIntMap ids = new IntIntMap(1024, -1);
+
+    private int[] neighborStart = new int[1];
+    private int[] neighbors = new int[0];
+
+    /**
+     * Adds a router and its addresses, and gives it the next id. A router
+     * that is already in the index keeps its id.
+     *
+     * @param router The router
+     * @return The id of the router
+     */
+    public synchronized int add(Router router)
+    {
+        if (router.getId() < 0) {
+            router.setId(routers.size());
+            routers.add(router);
+        }
+        for (int ip : router.getAddresses()) {
+            ids.put(ip, router.getId());
+        }
+        return router.getId();
+    }
+
+    /**
+     * Adds an address to a router, and the router to the index if it's not
+     * in it yet
+     *
+     * @param router The router
+     * @param ip The address as an int
+     */
+    public synchronized void addAddress(Router router, int ip)
+    {
+        router.addIP(ip);
+        ids.put(ip, add(router));
+    }
+
+    /**
+     * Removes a router and its addresses. Its id is not reused.
+     *
+     * @param router The router
+     */
+    public synchronized void remove(Router router)
+    {
+        int id = router.getId();
+        if (id < 0 || id >= routers.size() || routers.get(id) != router) {
+            return;
+        }
+        routers.set(id, null);
+        for (int ip : router.getAddresses()) {
+            if (ids.get(ip) == id) {
+                ids.remove(ip);
+            }
+        }
+    }
+
+    /**
+     * Get the router that has an address
+     *
+     * @param ip The address as an int
+     * @return The router, or null if no router has the address
+     */
+    public synchronized Router getRouter(int ip)
+    {
+        int id = ids.get(ip);
+        return id >= 0 ? routers.get(id) : null;
+    }
+
+    /**
+     * Get the router that has an address
+     *
+     * @param address The address in dotted notation
+     * @return The router, or null if no router has the address
+     */
+    public Router getRouter(String address)
+    {
+        try {
+            return getRouter(IPv4.parse(address));
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get a router by its id
+     *
+     * @param id The id
+     * @return The router, or null if it has been removed
+     */
+    public synchronized Router getRouterById(int id)
+    {
+        return routers.get(id);
+    }
+
+    /**
+     * Get the number of ids that have been given out, including those of
+     * removed routers
+     *
+     * @return One more than the highest id
+     */
+    public synchronized int size()
+    {
+        return routers.size();
+    }
+
+    /**
+     * Builds the CSR arrays of the neighbors from the next hops of the
+     * routers. The neighbors are routers, so links over several interfaces
+     * of the same routers are only counted once, and next hops that don't
+     * belong to a router of the topology are left out.
+     */
+    public synchronized void buildAdjacency()
+    {
+        int n = routers.size();
+        int[] start = new int[n + 1];
+        int[] links = new int[Math.max(16, n * 3)];
+        int[] lastSeenBy = new int[n];
+        Arrays.fill(lastSeenBy, -1);
+        int count = 0;
+        for (int id = 0; id < n; id++) {
+            start[id] = count;
+            Router router = routers.get(id);
+            if (router == null) {
+                continue;
+            }
+            lastSeenBy[id] = id;
+            for (int hop : router.getNextHopAddresses()) {
+                int neighbor = ids.get(hop);
+                if (neighbor < 0 || lastSeenBy[neighbor] == id) {
+                    continue;
+                }
+                lastSeenBy[neighbor] = id;
+                if (count == links.length) {
+                    links = Arrays.copyOf(links, count * 2);
+                }
+                links[count++] = neighbor;
+            }
+        }
+        start[n] = count;
+        neighborStart = start;
+        neighbors = Arrays.copyOf(links, count);
+    }
+
+    /**
+     * Get the neighbors of a router, as of the last buildAdjacency()
+     *
+     * @param router The router
+     * @return A new list of the neighboring routers
+     */
+    public synchronized List<Router> getNeighbors(Router router)
+    {
+        List<Router> list = new ArrayList<Router>();
+        int id = router.getId();
+        if (id < 0 || id + 1 >= neighborStart.length) {
+            return list;
+        }
+        for (int i = neighborStart[id]; i < neighborStart[id + 1]; i++) {
+            Router neighbor = routers.get(neighbors[i]);
+            if (neighbor != null) {
+                list.add(neighbor);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Get the total number of links, counting each direction separately, as
+     * of the last buildAdjacency()
+     *
+     * @return The number of neighbor entries
+     */
+    public synchronized int getLinkCount()
+    {
+        return neighbors.length;
+    }
+}
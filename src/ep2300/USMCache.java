@@ -0,0 +1,376 @@
+package ep2300;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the USM parameters of SNMPv3 engines: the localized authentication
+ * key and the engineBoots/engineTime of each engine, keyed by engineID.
+ * With a cache entry a new session can be set up without the engine
+ * discovery and without localizing the password again, which is a rather
+ * expensive operation (1 MB of hashing).
+ *
+ * The cache can optionally be saved to a file, so that the parameters
+ * survive restarts. The file has one engine per line:
+ *
+ * engineID user authKey engineBoots engineTime timestamp address...
+ *
+ * where engineID and authKey are in hex, and timestamp is the time in
+ * milliseconds when the engineTime was recorded. Since the file holds the
+ * localized keys, it's only readable by its owner. It's saved shortly after
+ * engines are discovered, so a crash doesn't lose them, and on close.
+ */
+public class USMCache
+{
+
+    /**
+     * The cached parameters of one engine
+     */
+    public final static class Entry
+    {
+        private final byte[] engineID;
+        private final String username;
+        private final byte[] authKey;
+        private final int engineBoots;
+        private final int engineTime;
+        private final long timestamp;
+
+        private Entry(byte[] engineID, String username, byte[] authKey,
+                int engineBoots, int engineTime, long timestamp)
+        {
+            this.engineID = engineID;
+            this.username = username;
+            this.authKey = authKey;
+            this.engineBoots = engineBoots;
+            this.engineTime = engineTime;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * Get the ID of the engine
+         *
+         * @return The engine ID
+         */
+        public byte[] getEngineID()
+        {
+            return engineID;
+        }
+
+        /**
+         * Get the user which the key was localized for
+         *
+         * @return The username
+         */
+        public String getUsername()
+        {
+            return username;
+        }
+
+        /**
+         * Get the authentication key, localized to this engine
+         *
+         * @return The localized key
+         */
+        public byte[] getAuthKey()
+        {
+            return authKey;
+        }
+
+        /**
+         * Get the number of times the engine has rebooted
+         *
+         * @return The engineBoots value
+         */
+        public int getEngineBoots()
+        {
+            return engineBoots;
+        }
+
+        /**
+         * Get the estimated current engineTime of the engine. This is the
+         * recorded engineTime plus the time that has passed since it was
+         * recorded, so requests using it fall within the time window of the
+         * engine.
+         *
+         * @return The estimated engineTime, in seconds
+         */
+        public int getEngineTime()
+        {
+            long passed = (System.currentTimeMillis() - timestamp) / 1000;
+            return (int) Math.min(Integer.MAX_VALUE, engineTime + passed);
+        }
+    }
+
+    private final Map<String, Entry> engines = new HashMap<String, Entry>();
+    private final Map<String, String> addressToEngine = new HashMap<String, String>();
+    private final String filename;
+    private boolean modified = false;
+    private boolean saveScheduled = false;
+
+    /**
+     * How long to wait after a discovery before saving, in milliseconds, so
+     * that the discoveries of a whole topology are saved together
+     */
+    private static final long saveDelay = 1000;
+
+    /**
+     * Create a new cache that is only kept in memory
+     */
+    public USMCache()
+    {
+        this(null);
+    }
+
+    /**
+     * Create a new cache which is saved to the specified file. If the file
+     * exists, then it's loaded. If filename is null, the cache is only kept
+     * in memory.
+     *
+     * @param filename The file to load and save the cache from, or null
+     */
+    public USMCache(String filename)
+    {
+        this.filename = filename;
+        if (filename != null) {
+            try {
+                load();
+            }
+            catch (IOException e) {
+                // No cache yet, it will be created when saving
+            }
+        }
+    }
+
+    /**
+     * Get the cached parameters of the engine at the address
+     *
+     * @param address The address of the engine
+     * @param username The user that the key should be localized for
+     * @return The cached parameters, or null if not cached
+     */
+    public synchronized Entry get(String address, String username)
+    {
+        String engineID = addressToEngine.get(address);
+        if (engineID == null) {
+            return null;
+        }
+
+        Entry entry = engines.get(engineID);
+        if (entry == null || !entry.username.equals(username)) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Store the parameters of the engine at the address. The engine time is
+     * recorded as being current.
+     *
+     * @param address The address of the engine
+     * @param engineID The ID of the engine
+     * @param username The user that the key is localized for
+     * @param authKey The localized authentication key
+     * @param engineBoots The engineBoots value of the engine
+     * @param engineTime The current engineTime of the engine
+     */
+    public synchronized void put(String address, byte[] engineID,
+            String username, byte[] authKey, int engineBoots, int engineTime)
+    {
+        String id = toHex(engineID);
+        engines.put(id, new Entry(engineID, username, authKey, engineBoots,
+                engineTime, System.currentTimeMillis()));
+        addressToEngine.put(address, id);
+        modified = true;
+        scheduleSave();
+    }
+
+    /**
+     * Save the cache a little later from a worker thread, unless a save is
+     * already scheduled
+     */
+    private void scheduleSave()
+    {
+        if (filename == null || saveScheduled) {
+            return;
+        }
+
+        saveScheduled = true;
+        Timers.later(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    save();
+                }
+                catch (IOException e) {
+                    System.err.println("Could not save the USM cache: "
+                            + e.getMessage());
+                }
+            }
+        }, saveDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Updates the engineBoots and engineTime of the engine at the address,
+     * for instance when the engine has reported that a request was not in
+     * its time window.
+     *
+     * @param address The address of the engine
+     * @param engineBoots The engineBoots value of the engine
+     * @param engineTime The current engineTime of the engine
+     */
+    public synchronized void updateTime(String address, int engineBoots,
+            int engineTime)
+    {
+        String id = addressToEngine.get(address);
+        Entry old = (id != null ? engines.get(id) : null);
+        if (old != null) {
+            engines.put(id, new Entry(old.engineID, old.username,
+                    old.authKey, engineBoots, engineTime, System
+                            .currentTimeMillis()));
+            modified = true;
+        }
+    }
+
+    /**
+     * Remove the engine at the address from the cache, for instance because
+     * the cached key was not accepted.
+     *
+     * @param address The address of the engine
+     */
+    public synchronized void invalidate(String address)
+    {
+        String id = addressToEngine.remove(address);
+        if (id != null) {
+            engines.remove(id);
+            modified = true;
+        }
+    }
+
+    /**
+     * Load the cache from the file
+     *
+     * @throws IOException If the file cannot be read
+     */
+    private synchronized void load() throws IOException
+    {
+        // Make sure the file exists before PatternReader tries to read it
+        new FileInputStream(filename).close();
+
+        for (List<String> words : PatternReader.getLines(filename)) {
+            if (words.size() < 7 || words.get(0).startsWith("#")) {
+                continue;
+            }
+
+            try {
+                byte[] engineID = fromHex(words.get(0));
+                Entry entry = new Entry(engineID, words.get(1),
+                        fromHex(words.get(2)), Integer.parseInt(words.get(3)),
+                        Integer.parseInt(words.get(4)), Long.parseLong(words
+                                .get(5)));
+                engines.put(words.get(0), entry);
+                for (int i = 6; i < words.size(); i++) {
+                    addressToEngine.put(words.get(i), words.get(0));
+                }
+            }
+            catch (NumberFormatException e) {
+                System.err.println("Ignoring invalid USM cache entry: "
+                        + words.get(0));
+            }
+        }
+    }
+
+    /**
+     * Save the cache to the file, if it has a file and has been modified.
+     * The cache is written to a temporary file that only the owner can read,
+     * which then replaces the file.
+     *
+     * @throws IOException If the file cannot be written
+     */
+    public synchronized void save() throws IOException
+    {
+        saveScheduled = false;
+        if (filename == null || !modified) {
+            return;
+        }
+
+        File file = new File(filename);
+        File temp = new File(filename + ".tmp");
+        temp.delete();
+        if (!temp.createNewFile()) {
+            throw new IOException("Cannot create " + temp);
+        }
+        // Restrict the permissions before the keys are written
+        if (!temp.setReadable(false, false) || !temp.setReadable(true, true)
+                || !temp.setWritable(false, false)
+                || !temp.setWritable(true, true)) {
+            temp.delete();
+            throw new IOException("Cannot make " + temp + " private");
+        }
+
+        PrintStream out = new PrintStream(new FileOutputStream(temp));
+        try {
+            out.println("# engineID user authKey engineBoots engineTime "
+                    + "timestamp address...");
+            for (Map.Entry<String, Entry> engine : engines.entrySet()) {
+                Entry entry = engine.getValue();
+                out.printf("%s %s %s %d %d %d", engine.getKey(),
+                        entry.username, toHex(entry.authKey),
+                        entry.engineBoots, entry.engineTime, entry.timestamp);
+                for (Map.Entry<String, String> address : addressToEngine
+                        .entrySet()) {
+                    if (address.getValue().equals(engine.getKey())) {
+                        out.print(" " + address.getKey());
+                    }
+                }
+                out.println();
+            }
+        }
+        finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            temp.delete();
+            throw new IOException("Cannot write " + temp);
+        }
+
+        if (!temp.renameTo(file)) {
+            // Some platforms can't rename over an existing file
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Cannot rename " + temp + " to " + file);
+            }
+        }
+        modified = false;
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] fromHex(String hex)
+    {
+        if (hex.length() % 2 != 0) {
+            throw new NumberFormatException("Odd length: " + hex);
+        }
+
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(
+                    hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}